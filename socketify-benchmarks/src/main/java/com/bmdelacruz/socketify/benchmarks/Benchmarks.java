@@ -0,0 +1,23 @@
+package com.bmdelacruz.socketify.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the suites with the GC profiler, so that every result comes with the bytes
+ * allocated per operation and the collections it caused. Takes the same options as the
+ * JMH launcher, for example a pattern of the benchmarks to run, <code>-p</code> to pin a
+ * parameter or <code>-rf json</code> to keep the results.
+ */
+public class Benchmarks {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
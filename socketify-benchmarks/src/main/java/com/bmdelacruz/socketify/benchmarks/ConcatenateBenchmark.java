@@ -0,0 +1,50 @@
+package com.bmdelacruz.socketify.benchmarks;
+
+import com.bmdelacruz.socketify.commons.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Glues a message together from the given number of parts with
+ * {@link Utils#concatenate(List)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcatenateBenchmark {
+    @Param({ "2", "16", "256" })
+    public int parts;
+
+    @Param({ "64", "4096" })
+    public int partSize;
+
+    private List<byte[]> arrays;
+
+    @Setup
+    public void setUp() {
+        arrays = new ArrayList<>();
+        for (int i = 0; i < parts; i++)
+            arrays.add(new byte[partSize]);
+    }
+
+    @Benchmark
+    public byte[] concatenate() {
+        return Utils.concatenate(arrays);
+    }
+}
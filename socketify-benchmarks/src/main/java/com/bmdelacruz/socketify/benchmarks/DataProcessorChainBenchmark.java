@@ -0,0 +1,151 @@
+package com.bmdelacruz.socketify.benchmarks;
+
+import com.bmdelacruz.socketify.data.BufferDataProcessor;
+import com.bmdelacruz.socketify.data.DataProcessor;
+import com.bmdelacruz.socketify.data.DataProcessorChain;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a message through a chain of processors which take turns masking and appending a
+ * checksum, written once against arrays and once against buffers. The array chain
+ * makes a new array per stage, while the buffer chain masks in place and appends into
+ * the scratch buffers. The buffer processors work on the arrays behind the buffers, since
+ * every buffer here is a heap buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataProcessorChainBenchmark {
+    @Param({ "64", "4096", "262144" })
+    public int messageSize;
+
+    @Param({ "1", "3", "6" })
+    public int chainLength;
+
+    private byte[] message;
+    private DataProcessorChain arrayChain;
+    private DataProcessorChain bufferChain;
+
+    @Setup
+    public void setUp() {
+        message = new byte[messageSize];
+        Arrays.fill(message, (byte) 'a');
+
+        arrayChain = new DataProcessorChain();
+        bufferChain = new DataProcessorChain();
+        for (int i = 0; i < chainLength; i++) {
+            arrayChain.addDataProcessor(i % 2 == 0 ? new ArrayMask() : new ArrayChecksum());
+            bufferChain.addDataProcessor(i % 2 == 0 ? new BufferMask() : new BufferChecksum());
+        }
+
+        if (!Arrays.equals(arrayChain.process(message), bufferChain.process(message)))
+            throw new IllegalStateException("The chains disagree.");
+    }
+
+    @Benchmark
+    public byte[] arrays() {
+        return arrayChain.process(message);
+    }
+
+    @Benchmark
+    public ByteBuffer buffers() {
+        return bufferChain.process(ByteBuffer.wrap(message));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(DataProcessorChainBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    private static final byte MASK = 0x5a;
+
+    private static class ArrayMask extends DataProcessor {
+        @Override
+        public byte[] process(byte[] data) {
+            byte[] masked = new byte[data.length];
+            for (int i = 0; i < data.length; i++)
+                masked[i] = (byte) (data[i] ^ MASK);
+            return masked;
+        }
+    }
+
+    private static class ArrayChecksum extends DataProcessor {
+        @Override
+        public byte[] process(byte[] data) {
+            byte checksum = 0;
+            for (byte b : data)
+                checksum += b;
+
+            byte[] checked = Arrays.copyOf(data, data.length + 1);
+            checked[data.length] = checksum;
+            return checked;
+        }
+    }
+
+    private static class BufferMask extends BufferDataProcessor {
+        @Override
+        public int getMaxOutputLength(int inputLength) {
+            return inputLength;
+        }
+
+        @Override
+        public void process(ByteBuffer input, ByteBuffer output) {
+            int length = input.remaining();
+            mask(input.array(), input.arrayOffset() + input.position(),
+                    output.array(), output.arrayOffset() + output.position(), length);
+            input.position(input.limit());
+            output.position(output.position() + length);
+        }
+
+        @Override
+        public boolean processInPlace(ByteBuffer data) {
+            int offset = data.arrayOffset() + data.position();
+            mask(data.array(), offset, data.array(), offset, data.remaining());
+            return true;
+        }
+
+        private static void mask(byte[] source, int sourceOffset, byte[] destination, int destinationOffset,
+                                 int length) {
+            for (int i = 0; i < length; i++)
+                destination[destinationOffset + i] = (byte) (source[sourceOffset + i] ^ MASK);
+        }
+    }
+
+    private static class BufferChecksum extends BufferDataProcessor {
+        @Override
+        public int getMaxOutputLength(int inputLength) {
+            return inputLength + 1;
+        }
+
+        @Override
+        public void process(ByteBuffer input, ByteBuffer output) {
+            byte[] array = input.array();
+            byte checksum = 0;
+            for (int i = input.arrayOffset() + input.position(); i < input.arrayOffset() + input.limit(); i++)
+                checksum += array[i];
+
+            output.put(input).put(checksum);
+        }
+    }
+}
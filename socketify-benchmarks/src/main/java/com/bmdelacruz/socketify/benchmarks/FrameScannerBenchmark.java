@@ -0,0 +1,180 @@
+package com.bmdelacruz.socketify.benchmarks;
+
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.commons.MarkerFrameCodec;
+import com.bmdelacruz.socketify.commons.Utils;
+import com.bmdelacruz.socketify.server.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the byte-at-a-time marker search which SelectionKeyProcessor used to do
+ * against the MarkerFrameCodec decoder, which scans with FrameScanner. A message and its
+ * marker arrive in reads of the server's default buffer size, and both sides turn them
+ * into the message's array. The baseline is given heap buffers as it used to allocate
+ * for each read, and the decoder direct ones as the pooled allocator hands out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameScannerBenchmark {
+    /**
+     * The old loop cannot handle a read which starts with the marker, so the sizes keep
+     * the marker from landing at the start of a read.
+     */
+    @Param({ "64", "4000", "1000000" })
+    public int messageSize;
+
+    private ByteBuffer[] heapReads;
+    private ByteBuffer[] directReads;
+    private List<byte[]> pendingDataList;
+    private List<byte[]> completeDataList;
+    private FrameCodec.Decoder decoder;
+    private List<byte[]> messages;
+
+    @Setup
+    public void setUp() {
+        byte[] message = new byte[messageSize + 1];
+        Arrays.fill(message, (byte) 'a');
+        message[messageSize] = 0x00;
+
+        int readCount = (message.length + Server.DEFAULT_BUFFER_SIZE - 1) / Server.DEFAULT_BUFFER_SIZE;
+        heapReads = new ByteBuffer[readCount];
+        directReads = new ByteBuffer[readCount];
+        for (int i = 0; i < readCount; i++) {
+            int offset = i * Server.DEFAULT_BUFFER_SIZE;
+            int length = Math.min(Server.DEFAULT_BUFFER_SIZE, message.length - offset);
+            heapReads[i] = ByteBuffer.allocate(length);
+            heapReads[i].put(message, offset, length);
+            directReads[i] = ByteBuffer.allocateDirect(length);
+            directReads[i].put(message, offset, length);
+        }
+
+        pendingDataList = new ArrayList<>();
+        completeDataList = new ArrayList<>();
+        decoder = new MarkerFrameCodec().newDecoder();
+        messages = new ArrayList<>();
+    }
+
+    @Benchmark
+    public List<byte[]> byteAtATime() {
+        completeDataList.clear();
+        for (ByteBuffer read : heapReads) {
+            read.clear();
+            processRead(read, pendingDataList, completeDataList, (byte) 0x00);
+        }
+        return completeDataList;
+    }
+
+    @Benchmark
+    public List<byte[]> wordAtATime() throws IOException {
+        messages.clear();
+        for (ByteBuffer read : directReads) {
+            read.clear();
+            decoder.decode(read, messages);
+        }
+        return messages;
+    }
+
+    /**
+     * The loop of the old SelectionKeyProcessor.read, from right after the read, unchanged
+     * except that the complete messages are left in the list instead of being processed.
+     */
+    private static void processRead(ByteBuffer buffer, List<byte[]> pendingDataList,
+                                    List<byte[]> completeDataList, byte markerByte) {
+        boolean isNullByteFound = false;
+        boolean hasCompleteMessage = false;
+        ByteBuffer remainingDataBuffer = null;
+
+        while (buffer.hasRemaining() && !isNullByteFound) {
+            isNullByteFound = hasCompleteMessage = buffer.get() == markerByte;
+            if (isNullByteFound) {
+                // CASE 1: Data is complete.
+                // The end of the data is on the same buffer.
+
+                remainingDataBuffer = buffer.slice();
+                buffer.reset().flip();
+
+                byte[] newData = Utils.extractBytesFrom(buffer);
+                if (pendingDataList.size() > 0) {
+                    pendingDataList.add(newData);
+                    newData = Utils.concatenate(pendingDataList);
+                    pendingDataList.clear();
+                }
+
+                completeDataList.add(newData);
+            } else {
+                buffer.mark();
+            }
+        }
+
+        if (hasCompleteMessage) {
+            // Loop on the buffer of the remaining data to check whether
+            // there are more complete data.
+
+            while (remainingDataBuffer != null && remainingDataBuffer.hasRemaining()) {
+                boolean isRemNullByteFound = false;
+                while (remainingDataBuffer.hasRemaining()) {
+                    isRemNullByteFound = remainingDataBuffer.get() == markerByte;
+                    if (isRemNullByteFound) {
+                        // CASE 3: Extra data was found.
+                        // The end of the pending data or the first data was already
+                        // found but another complete data was found.
+
+                        ByteBuffer temp = remainingDataBuffer.slice();
+                        remainingDataBuffer.reset().flip();
+
+                        completeDataList.add(Utils.extractBytesFrom(remainingDataBuffer));
+
+                        remainingDataBuffer = temp;
+                    } else {
+                        remainingDataBuffer.mark();
+                    }
+                }
+
+                if (!isRemNullByteFound) {
+                    // CASE 4: Extra data is incomplete
+                    // The end of the extra data is not on the buffer but the end
+                    // of the first data was already found.
+
+                    remainingDataBuffer.flip();
+                    pendingDataList.add(Utils.extractBytesFrom(remainingDataBuffer));
+                }
+            }
+        } else {
+            // CASE 2: Data is incomplete.
+            // The end of the data is on a different key.
+
+            buffer.flip();
+            pendingDataList.add(Utils.extractBytesFrom(buffer));
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FrameScannerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
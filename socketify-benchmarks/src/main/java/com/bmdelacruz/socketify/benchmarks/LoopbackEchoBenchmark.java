@@ -0,0 +1,139 @@
+package com.bmdelacruz.socketify.benchmarks;
+
+import com.bmdelacruz.socketify.client.Client;
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.commons.MarkerFrameCodec;
+import com.bmdelacruz.socketify.commons.VarintLengthPrefixFrameCodec;
+import com.bmdelacruz.socketify.server.ClientConnection;
+import com.bmdelacruz.socketify.server.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Echoes messages between a {@link Client} and a {@link Server} over loopback. The latency
+ * suite sends one message at a time and samples each round trip, while the throughput
+ * suite keeps a window of messages on the way.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackEchoBenchmark {
+    private static final int PORT = 10856;
+    private static final int WINDOW = 32;
+
+    @Param({ "64", "4096", "65536" })
+    public int messageSize;
+
+    @Param({ "marker", "varint" })
+    public String codec;
+
+    private Server server;
+    private Client client;
+    private BlockingQueue<byte[]> responses;
+    private byte[] message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        message = new byte[messageSize];
+        Arrays.fill(message, (byte) 'a');
+        responses = new LinkedBlockingQueue<>();
+
+        server = new Server(PORT);
+        server.setFrameCodec(newFrameCodec());
+        server.setListener(new Server.Listener() {
+            @Override
+            public void onClientConnect(ClientConnection clientConnection) {
+                clientConnection.addListener(new ClientConnection.Listener() {
+                    @Override
+                    public void onDataReceived(ClientConnection clientConnection, byte[] data,
+                                               ClientConnection.Messenger messenger) {
+                        messenger.reply(data);
+                    }
+
+                    @Override
+                    public void onDisconnected(ClientConnection clientConnection) {
+                    }
+
+                    @Override
+                    public void onFailure(ClientConnection clientConnection) {
+                    }
+                });
+            }
+
+            @Override
+            public void onClientMessageFailed(ClientConnection clientConnection, Exception e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+
+        client = new Client(PORT, "localhost", 64 * 1024);
+        client.setFrameCodec(newFrameCodec());
+        client.setListener(new Client.Listener() {
+            @Override
+            public void onDataReceived(byte[] data) {
+                responses.add(data);
+            }
+
+            @Override
+            public void onServerDisconnect() {
+            }
+        });
+        client.connect();
+
+        // Make sure the server took the connection before measuring.
+        client.sendBytes(message);
+        responses.take();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.disconnect();
+        server.stop();
+    }
+
+    private FrameCodec newFrameCodec() {
+        return codec.equals("varint") ? new VarintLengthPrefixFrameCodec() : new MarkerFrameCodec();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] roundTrip() throws IOException, InterruptedException {
+        client.sendBytes(message);
+        return responses.take();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(WINDOW)
+    public int window() throws IOException, InterruptedException {
+        for (int i = 0; i < WINDOW; i++)
+            client.sendBytes(message);
+
+        int length = 0;
+        for (int i = 0; i < WINDOW; i++)
+            length += responses.take().length;
+        return length;
+    }
+}
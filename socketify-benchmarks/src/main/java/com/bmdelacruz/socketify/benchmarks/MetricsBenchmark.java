@@ -0,0 +1,82 @@
+package com.bmdelacruz.socketify.benchmarks;
+
+import com.bmdelacruz.socketify.metrics.Counter;
+import com.bmdelacruz.socketify.metrics.Histogram;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The cost of counting an event, with one thread and with as many threads as there are
+ * processors, next to a plain {@link AtomicLong} which every thread adds to.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    private Counter counter;
+    private AtomicLong atomicLong;
+    private Histogram histogram;
+
+    @State(Scope.Thread)
+    public static class Values {
+        private long value;
+
+        /**
+         * @return Values spread over a few doublings, like the durations the histograms see.
+         */
+        public long next() {
+            value = value * 6364136223846793005L + 1442695040888963407L;
+            return (value >>> 40) & 0xffff;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        counter = new Counter();
+        atomicLong = new AtomicLong();
+        histogram = new Histogram();
+    }
+
+    @Benchmark
+    public void counter() {
+        counter.increment();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void counterContended() {
+        counter.increment();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void atomicLongContended() {
+        atomicLong.incrementAndGet();
+    }
+
+    @Benchmark
+    public void histogram(Values values) {
+        histogram.record(values.next());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void histogramContended(Values values) {
+        histogram.record(values.next());
+    }
+}
@@ -0,0 +1,154 @@
+package com.bmdelacruz.socketify.benchmarks;
+
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.commons.MarkerFrameCodec;
+import com.bmdelacruz.socketify.commons.PooledBufferAllocator;
+import com.bmdelacruz.socketify.commons.SelectionKeyProcessor;
+import com.bmdelacruz.socketify.commons.VarintLengthPrefixFrameCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a batch of framed messages into one end of a loopback connection and takes them
+ * apart with {@link SelectionKeyProcessor#read(SelectionKey)} on the other end. The read
+ * size against the message size gives the fragmentation: reads much smaller than a
+ * message split every message across reads, while reads much larger than a message take
+ * many whole messages and a partial one at a time. Each operation is one batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectionKeyReadBenchmark {
+    private static final int BATCH_BYTES = 256 * 1024;
+
+    @Param({ "64", "4096", "65536" })
+    public int messageSize;
+
+    @Param({ "512", "16384", "262144" })
+    public int readSize;
+
+    @Param({ "marker", "varint" })
+    public String codec;
+
+    private SocketChannel writer;
+    private SocketChannel reader;
+    private Selector selector;
+    private SelectionKey key;
+
+    private ByteBuffer batch;
+    private int messagesPerBatch;
+    private FrameCodec.Decoder frameDecoder;
+    private CountingProcessor processor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        FrameCodec frameCodec = codec.equals("varint") ? new VarintLengthPrefixFrameCodec() : new MarkerFrameCodec();
+
+        byte[] message = new byte[messageSize];
+        Arrays.fill(message, (byte) 'a');
+        messagesPerBatch = Math.max(1, BATCH_BYTES / messageSize);
+
+        batch = ByteBuffer.allocateDirect(frameCodec.getEncodedLength(messageSize) * messagesPerBatch);
+        for (int i = 0; i < messagesPerBatch; i++)
+            frameCodec.encode(ByteBuffer.wrap(message), batch);
+        batch.flip();
+
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+        writer = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        reader = serverSocketChannel.accept();
+        serverSocketChannel.close();
+
+        writer.setOption(StandardSocketOptions.SO_SNDBUF, 2 * BATCH_BYTES);
+        reader.setOption(StandardSocketOptions.SO_RCVBUF, 2 * BATCH_BYTES);
+        writer.configureBlocking(false);
+        reader.configureBlocking(false);
+
+        selector = Selector.open();
+        key = reader.register(selector, SelectionKey.OP_READ);
+
+        frameDecoder = frameCodec.newDecoder(PooledBufferAllocator.DEFAULT);
+        processor = new CountingProcessor(readSize, frameDecoder);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        frameDecoder.release();
+        selector.close();
+        writer.close();
+        reader.close();
+    }
+
+    @Benchmark
+    public int readBatch() throws IOException {
+        ByteBuffer toWrite = batch.duplicate();
+        processor.receivedMessages = 0;
+
+        // The reads take turns with the writes, since the socket holds less than a batch
+        // on some systems.
+        while (processor.receivedMessages < messagesPerBatch) {
+            if (toWrite.hasRemaining())
+                writer.write(toWrite);
+            processor.read(key);
+            if (processor.isFailed)
+                throw new IOException("The connection failed.");
+        }
+        return processor.receivedMessages;
+    }
+
+    private static class CountingProcessor extends SelectionKeyProcessor {
+        private final FrameCodec.Decoder frameDecoder;
+        private int receivedMessages;
+        private boolean isFailed;
+
+        public CountingProcessor(int readSize, FrameCodec.Decoder frameDecoder) {
+            super(readSize, PooledBufferAllocator.DEFAULT);
+            this.frameDecoder = frameDecoder;
+        }
+
+        @Override
+        public FrameCodec.Decoder getFrameDecoder(SelectionKey key) {
+            return frameDecoder;
+        }
+
+        @Override
+        public void processCompleteData(SelectionKey key, byte[] data) {
+            receivedMessages++;
+        }
+
+        @Override
+        public void onConnectionFailure(SelectionKey key) {
+            isFailed = true;
+        }
+
+        @Override
+        public void onDisconnect(SelectionKey key) {
+            isFailed = true;
+        }
+    }
+}
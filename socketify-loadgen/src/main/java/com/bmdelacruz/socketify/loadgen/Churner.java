@@ -0,0 +1,30 @@
+package com.bmdelacruz.socketify.loadgen;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Replaces the client of a random slot with a new one at a constant rate, the way
+ * clients come and go on a live server.
+ */
+class Churner extends PacedLoop {
+    private final LoadClients loadClients;
+    private final LoadStats loadStats;
+    private final Random random;
+
+    Churner(long startTime, long endTime, long intervalNanos, LoadClients loadClients, LoadStats loadStats) {
+        super(startTime, endTime, intervalNanos);
+        this.loadClients = loadClients;
+        this.loadStats = loadStats;
+        this.random = new Random();
+    }
+
+    @Override
+    void fire(long intendedTime) {
+        try {
+            loadClients.replace(random.nextInt(loadClients.getSlotCount()));
+        } catch (IOException e) {
+            loadStats.failedConnects.increment();
+        }
+    }
+}
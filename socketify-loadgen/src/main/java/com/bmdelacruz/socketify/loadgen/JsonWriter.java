@@ -0,0 +1,66 @@
+package com.bmdelacruz.socketify.loadgen;
+
+import java.util.Locale;
+
+/**
+ * Writes the report as a single line of JSON, so that runs can be collected and compared
+ * by scripts.
+ */
+class JsonWriter {
+    private final StringBuilder builder;
+    private boolean isFirstField;
+
+    JsonWriter() {
+        builder = new StringBuilder();
+        isFirstField = true;
+    }
+
+    JsonWriter beginObject(String name) {
+        name(name);
+        builder.append('{');
+        isFirstField = true;
+        return this;
+    }
+
+    JsonWriter endObject() {
+        builder.append('}');
+        isFirstField = false;
+        return this;
+    }
+
+    JsonWriter field(String name, long value) {
+        name(name);
+        builder.append(value);
+        return this;
+    }
+
+    JsonWriter field(String name, double value) {
+        name(name);
+        builder.append(String.format(Locale.ROOT, "%.1f", value));
+        return this;
+    }
+
+    JsonWriter field(String name, String value) {
+        name(name);
+        builder.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        return this;
+    }
+
+    /**
+     * Writes the separator and the name of the next field, unless the value is the
+     * outermost one.
+     */
+    private void name(String name) {
+        if (!isFirstField)
+            builder.append(',');
+        isFirstField = false;
+
+        if (name != null)
+            builder.append('"').append(name).append("\":");
+    }
+
+    @Override
+    public String toString() {
+        return builder.toString();
+    }
+}
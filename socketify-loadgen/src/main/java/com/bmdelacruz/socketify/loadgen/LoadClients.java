@@ -0,0 +1,92 @@
+package com.bmdelacruz.socketify.loadgen;
+
+import com.bmdelacruz.socketify.client.ClientGroup;
+import com.bmdelacruz.socketify.client.ServerConnection;
+import com.bmdelacruz.socketify.commons.FrameCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The simulated clients, one connection per slot, all run by a single
+ * {@link ClientGroup}. A slot whose connection is churned gets a new connection.
+ */
+class LoadClients {
+    private final InetSocketAddress address;
+    private final ClientGroup clientGroup;
+    private final LoadStats loadStats;
+    private final AtomicReferenceArray<ServerConnection> slots;
+
+    LoadClients(InetSocketAddress address, int connectionCount, int selectorLoopCount, FrameCodec frameCodec,
+                LoadStats loadStats) {
+        this.address = address;
+        this.loadStats = loadStats;
+
+        clientGroup = new ClientGroup(selectorLoopCount);
+        clientGroup.setFrameCodec(frameCodec);
+        slots = new AtomicReferenceArray<>(connectionCount);
+    }
+
+    /**
+     * Connects every slot, and waits until they are all connected or have failed.
+     * @return The number of connections which were established.
+     */
+    int connectAll() throws IOException, InterruptedException {
+        clientGroup.start();
+        for (int i = 0; i < slots.length(); i++)
+            slots.set(i, connect());
+
+        while (loadStats.connects.get() + loadStats.failedConnects.get() < slots.length())
+            Thread.sleep(10);
+        return (int) loadStats.connects.get();
+    }
+
+    private ServerConnection connect() throws IOException {
+        final long startTime = System.nanoTime();
+        return clientGroup.connect(address, new ServerConnection.Listener() {
+            @Override
+            public void onConnected(ServerConnection serverConnection) {
+                loadStats.connectLatency.record(System.nanoTime() - startTime);
+                loadStats.connects.increment();
+            }
+
+            @Override
+            public void onConnectFailed(ServerConnection serverConnection, IOException e) {
+                loadStats.failedConnects.increment();
+            }
+
+            @Override
+            public void onDataReceived(ServerConnection serverConnection, byte[] data) {
+                loadStats.onReceived(data);
+            }
+
+            @Override
+            public void onDisconnected(ServerConnection serverConnection) {
+                loadStats.disconnects.increment();
+            }
+        });
+    }
+
+    int getSlotCount() {
+        return slots.length();
+    }
+
+    /**
+     * @return The connection of the slot, which may still be connecting or may have ended.
+     */
+    ServerConnection get(int slot) {
+        return slots.get(slot);
+    }
+
+    /**
+     * Disconnects the client of the slot and connects a new one in its place.
+     */
+    void replace(int slot) throws IOException {
+        slots.getAndSet(slot, connect()).disconnect();
+    }
+
+    void stop() {
+        clientGroup.stop();
+    }
+}
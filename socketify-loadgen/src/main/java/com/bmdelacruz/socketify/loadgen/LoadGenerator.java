@@ -0,0 +1,262 @@
+package com.bmdelacruz.socketify.loadgen;
+
+import com.bmdelacruz.socketify.commons.FixedLengthPrefixFrameCodec;
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.commons.VarintLengthPrefixFrameCodec;
+import com.bmdelacruz.socketify.metrics.Histogram;
+import com.bmdelacruz.socketify.metrics.MetricsRegistry;
+import com.bmdelacruz.socketify.server.Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many simulated clients against a {@link com.bmdelacruz.socketify.server.Server} over
+ * loopback and reports the latency and throughput they saw as a line of JSON. Messages are
+ * sent open-loop, at a constant rate which does not depend on how fast the replies come,
+ * and latency is measured from the time each message was meant to be sent.
+ */
+public class LoadGenerator {
+    private static final String USAGE = "Usage: java -jar loadgen.jar [--name=value ...]\n"
+            + "  --mode=all|server|client  Run the server, the clients or both in this process. (all)\n"
+            + "  --host=HOST --port=PORT   The address of the server. (127.0.0.1, 10860)\n"
+            + "  --codec=varint|fixed      The frame codec of both sides. (varint)\n"
+            + "  --server-loops=N          The selector loops of the server, 0 for one. (0)\n"
+            + "  --backlog=N               The accept queue length of the server. (1024)\n"
+            + "  --client-loops=N          The selector loops of the clients. (processors)\n"
+            + "  --connections=N           The number of clients. (1000)\n"
+            + "  --rate=N                  The messages sent per second by all clients. (10000)\n"
+            + "  --senders=N               The threads which send the messages. (1)\n"
+            + "  --size=SPEC               fixed:N, uniform:MIN-MAX, exponential:MEAN or\n"
+            + "                            bimodal:SMALL,LARGE,RATIO. (fixed:128)\n"
+            + "  --fanout=N                The clients each fan-out message reaches. (0)\n"
+            + "  --fanout-ratio=R          The share of the messages which fan out. (0.1 with --fanout)\n"
+            + "  --churn=N                 The clients replaced per second. (0)\n"
+            + "  --warmup=SECONDS          The time before measuring starts. (5)\n"
+            + "  --duration=SECONDS        The time measured. (30)\n"
+            + "  --drain=SECONDS           The longest wait for replies after sending stops. (5)";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 1 && (args[0].equals("--help") || args[0].equals("-h"))) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        try {
+            run(new Options(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        System.exit(0);
+    }
+
+    private static void run(Options options) throws IOException, InterruptedException {
+        String mode = options.getString("mode", "all");
+        String host = options.getString("host", "127.0.0.1");
+        int port = options.getInt("port", 10860);
+        String codec = options.getString("codec", "varint");
+        int serverLoops = options.getInt("server-loops", 0);
+        int backlog = options.getInt("backlog", Server.DEFAULT_BACKLOG);
+        int clientLoops = options.getInt("client-loops", Runtime.getRuntime().availableProcessors());
+        int connections = options.getInt("connections", 1000);
+        double rate = options.getDouble("rate", 10000);
+        int senders = options.getInt("senders", 1);
+        SizeDistribution sizeDistribution = SizeDistribution.parse(options.getString("size", "fixed:128"),
+                Message.HEADER_LENGTH);
+        int fanout = options.getInt("fanout", 0);
+        double fanoutRatio = options.getDouble("fanout-ratio", fanout > 0 ? 0.1 : 0);
+        double churn = options.getDouble("churn", 0);
+        long warmupSeconds = options.getLong("warmup", 5);
+        long durationSeconds = options.getLong("duration", 30);
+        long drainSeconds = options.getLong("drain", 5);
+        options.checkUnknown();
+
+        if (!mode.equals("all") && !mode.equals("server") && !mode.equals("client"))
+            throw new IllegalArgumentException("The mode must be all, server or client.");
+        if (connections < 1 || rate <= 0 || senders < 1 || durationSeconds < 1 || warmupSeconds < 0)
+            throw new IllegalArgumentException("The connections, rate, senders and duration must be positive.");
+        if (fanout < 0 || fanoutRatio < 0 || fanoutRatio > 1 || churn < 0)
+            throw new IllegalArgumentException("The fanout, fanout ratio and churn cannot be negative.");
+
+        LoadServer loadServer = null;
+        if (!mode.equals("client")) {
+            loadServer = new LoadServer(port, serverLoops, backlog, newFrameCodec(codec), fanout);
+            loadServer.start();
+        }
+        if (mode.equals("server")) {
+            System.err.println("Serving on port " + port + ". Stop with Ctrl-C.");
+            awaitShutdown(loadServer);
+            return;
+        }
+
+        LoadStats loadStats = new LoadStats();
+        LoadClients loadClients = new LoadClients(new InetSocketAddress(host, port), connections, clientLoops,
+                newFrameCodec(codec), loadStats);
+        int connected = loadClients.connectAll();
+        System.err.println("Connected " + connected + " of " + connections + " clients.");
+
+        senders = Math.min(senders, connections);
+        long startTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measurementStartTime = startTime + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long endTime = measurementStartTime + TimeUnit.SECONDS.toNanos(durationSeconds);
+        loadStats.startMeasuring(measurementStartTime);
+
+        List<Thread> threads = new ArrayList<>();
+        long senderIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) * senders / rate);
+        for (int i = 0; i < senders; i++)
+            threads.add(new Thread(new OpenLoopSender(startTime, endTime, senderIntervalNanos, loadClients,
+                    loadStats, sizeDistribution, fanoutRatio, i, senders), "sender-" + i));
+        if (churn > 0)
+            threads.add(new Thread(new Churner(startTime, endTime, (long) (TimeUnit.SECONDS.toNanos(1) / churn),
+                    loadClients, loadStats), "churner"));
+        for (Thread thread : threads)
+            thread.start();
+
+        while (System.nanoTime() - endTime < 0) {
+            Thread.sleep(1000);
+            System.err.println(progressOf(loadStats, startTime, measurementStartTime));
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSeconds);
+        while (loadStats.echoesReceived.get() < loadStats.echoesSent.get() && System.nanoTime() - drainDeadline < 0)
+            Thread.sleep(10);
+        if (fanoutRatio > 0)
+            awaitQuiet(loadStats, drainDeadline);
+
+        JsonWriter report = new JsonWriter().beginObject(null);
+        report.beginObject("config")
+                .field("mode", mode)
+                .field("codec", codec)
+                .field("serverLoops", serverLoops)
+                .field("backlog", backlog)
+                .field("clientLoops", clientLoops)
+                .field("connections", connections)
+                .field("rate", rate)
+                .field("senders", senders)
+                .field("size", sizeDistribution.toString())
+                .field("fanout", fanout)
+                .field("fanoutRatio", fanoutRatio)
+                .field("churn", churn)
+                .field("warmupSeconds", warmupSeconds)
+                .field("durationSeconds", durationSeconds)
+                .endObject();
+        writeResults(report, loadStats, durationSeconds);
+        if (loadServer != null)
+            writeMetrics(report.beginObject("server"), loadServer.getMetrics()).endObject();
+        System.out.println(report.endObject());
+
+        loadClients.stop();
+        if (loadServer != null)
+            loadServer.stop();
+    }
+
+    private static FrameCodec newFrameCodec(String codec) {
+        // The messages carry binary timestamps, so a codec which ends them with a marker
+        // byte cannot be used.
+        switch (codec) {
+            case "varint":
+                return new VarintLengthPrefixFrameCodec();
+            case "fixed":
+                return new FixedLengthPrefixFrameCodec();
+            default:
+                throw new IllegalArgumentException("The codec must be varint or fixed.");
+        }
+    }
+
+    private static void awaitShutdown(final LoadServer loadServer) throws InterruptedException {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                System.out.println(writeMetrics(new JsonWriter().beginObject(null), loadServer.getMetrics())
+                        .endObject());
+                loadServer.stop();
+            }
+        });
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    /**
+     * Waits until no fan-out delivery arrived for a while, since their number is not known
+     * up front.
+     */
+    private static void awaitQuiet(LoadStats loadStats, long deadline) throws InterruptedException {
+        long deliveries;
+        do {
+            deliveries = loadStats.fanoutDeliveries.get();
+            Thread.sleep(200);
+        } while (loadStats.fanoutDeliveries.get() != deliveries && System.nanoTime() - deadline < 0);
+    }
+
+    private static String progressOf(LoadStats loadStats, long startTime, long measurementStartTime) {
+        long now = System.nanoTime();
+        String phase = now - measurementStartTime < 0 ? "warmup" : "measuring";
+        Histogram.Snapshot latency = loadStats.echoLatency.snapshot();
+        return String.format("%3ds %s sent=%d received=%d p99=%dus connected=%d",
+                TimeUnit.NANOSECONDS.toSeconds(now - startTime), phase,
+                loadStats.echoesSent.get() + loadStats.fanoutsSent.get(),
+                loadStats.echoesReceived.get() + loadStats.fanoutDeliveries.get(),
+                TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(99)),
+                loadStats.connects.get() - loadStats.disconnects.get());
+    }
+
+    private static void writeResults(JsonWriter report, LoadStats loadStats, long durationSeconds) {
+        long echoesSent = loadStats.echoesSent.get();
+        long echoesReceived = loadStats.echoesReceived.get();
+        long fanoutDeliveries = loadStats.fanoutDeliveries.get();
+
+        report.beginObject("connections")
+                .field("established", loadStats.connects.get())
+                .field("failed", loadStats.failedConnects.get())
+                .field("disconnected", loadStats.disconnects.get());
+        writeLatency(report, "connectLatencyMicros", loadStats.connectLatency).endObject();
+
+        report.beginObject("echo")
+                .field("sent", echoesSent)
+                .field("received", echoesReceived)
+                .field("lost", Math.max(0, echoesSent - echoesReceived))
+                .field("failedSends", loadStats.failedSends.get())
+                .field("skippedSends", loadStats.skippedSends.get())
+                .field("throughputPerSecond", (double) echoesReceived / durationSeconds);
+        writeLatency(report, "latencyMicros", loadStats.echoLatency).endObject();
+
+        report.beginObject("fanout")
+                .field("sent", loadStats.fanoutsSent.get())
+                .field("deliveries", fanoutDeliveries)
+                .field("deliveriesPerSecond", (double) fanoutDeliveries / durationSeconds);
+        writeLatency(report, "latencyMicros", loadStats.fanoutLatency).endObject();
+
+        report.beginObject("bytes")
+                .field("sent", loadStats.sentBytes.get())
+                .field("received", loadStats.receivedBytes.get())
+                .field("sentPerSecond", (double) loadStats.sentBytes.get() / durationSeconds)
+                .field("receivedPerSecond", (double) loadStats.receivedBytes.get() / durationSeconds)
+                .endObject();
+    }
+
+    private static JsonWriter writeLatency(JsonWriter report, String name, Histogram histogram) {
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        return report.beginObject(name)
+                .field("count", snapshot.getCount())
+                .field("mean", snapshot.getMean() / 1000.0)
+                .field("p50", snapshot.getPercentile(50) / 1000.0)
+                .field("p90", snapshot.getPercentile(90) / 1000.0)
+                .field("p99", snapshot.getPercentile(99) / 1000.0)
+                .field("p999", snapshot.getPercentile(99.9) / 1000.0)
+                .field("max", snapshot.getMax() / 1000.0)
+                .endObject();
+    }
+
+    private static JsonWriter writeMetrics(JsonWriter report, MetricsRegistry metrics) {
+        for (Map.Entry<String, Long> entry : metrics.snapshot().entrySet())
+            report.field(entry.getKey(), entry.getValue());
+        return report;
+    }
+}
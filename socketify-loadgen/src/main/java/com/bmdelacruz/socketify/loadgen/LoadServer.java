@@ -0,0 +1,90 @@
+package com.bmdelacruz.socketify.loadgen;
+
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.metrics.MetricsRegistry;
+import com.bmdelacruz.socketify.server.ClientConnection;
+import com.bmdelacruz.socketify.server.Server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The server under load. It echoes every message back to its sender, except fan-out
+ * messages, which it multicasts to the other clients of the sender's group. The clients
+ * are put in groups in the order they connect, so that each client has as many others in
+ * its group as the fan-out.
+ */
+class LoadServer {
+    private final Server server;
+
+    LoadServer(int port, int selectorLoopCount, int backlog, FrameCodec frameCodec, final int fanout) {
+        final AtomicLong connectionCount = new AtomicLong();
+
+        server = new Server(port) {
+            @Override
+            public ClientConnection createClientConnection(SocketChannel socketChannel) {
+                return new GroupedConnection(socketChannel, connectionCount.getAndIncrement() / (fanout + 1));
+            }
+        };
+        server.setSelectorLoopCount(selectorLoopCount);
+        server.setBacklog(backlog);
+        server.setFrameCodec(frameCodec);
+        server.setListener(new Server.Listener() {
+            @Override
+            public void onClientConnect(ClientConnection clientConnection) {
+                clientConnection.addListener(new ClientConnection.Listener() {
+                    @Override
+                    public void onDataReceived(final ClientConnection clientConnection, byte[] data,
+                                               ClientConnection.Messenger messenger) {
+                        if (Message.getType(data) != Message.FANOUT) {
+                            messenger.reply(data);
+                            return;
+                        }
+
+                        final long group = ((GroupedConnection) clientConnection).group;
+                        messenger.multicast(data, new Server.MulticastCondition() {
+                            @Override
+                            public boolean isIncludedInMulticast(ClientConnection recipient) {
+                                return recipient != clientConnection && ((GroupedConnection) recipient).group == group;
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onDisconnected(ClientConnection clientConnection) {
+                    }
+
+                    @Override
+                    public void onFailure(ClientConnection clientConnection) {
+                    }
+                });
+            }
+
+            @Override
+            public void onClientMessageFailed(ClientConnection clientConnection, Exception e) {
+            }
+        });
+    }
+
+    void start() throws IOException {
+        server.start();
+    }
+
+    void stop() {
+        server.stop();
+    }
+
+    MetricsRegistry getMetrics() {
+        return server.getMetrics();
+    }
+
+    private static class GroupedConnection extends ClientConnection {
+        private final long group;
+
+        GroupedConnection(SocketChannel socketChannel, long group) {
+            super(socketChannel);
+            this.group = group;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.bmdelacruz.socketify.loadgen;
+
+import com.bmdelacruz.socketify.metrics.Counter;
+import com.bmdelacruz.socketify.metrics.Histogram;
+
+/**
+ * What the clients saw. Only the messages meant to be sent after the warmup are counted,
+ * while the connection counts cover the whole run.
+ */
+class LoadStats {
+    private volatile boolean isMeasuring;
+    private volatile long measurementStartTime;
+
+    final Counter echoesSent = new Counter();
+    final Counter echoesReceived = new Counter();
+    final Counter fanoutsSent = new Counter();
+    final Counter fanoutDeliveries = new Counter();
+    final Counter failedSends = new Counter();
+    final Counter skippedSends = new Counter();
+    final Counter sentBytes = new Counter();
+    final Counter receivedBytes = new Counter();
+
+    final Counter connects = new Counter();
+    final Counter failedConnects = new Counter();
+    final Counter disconnects = new Counter();
+
+    final Histogram echoLatency = new Histogram();
+    final Histogram fanoutLatency = new Histogram();
+    final Histogram connectLatency = new Histogram();
+
+    /**
+     * @param measurementStartTime The end of the warmup, as given by {@link System#nanoTime()}.
+     */
+    void startMeasuring(long measurementStartTime) {
+        this.measurementStartTime = measurementStartTime;
+        isMeasuring = true;
+    }
+
+    boolean isMeasured(long intendedTime) {
+        return isMeasuring && intendedTime - measurementStartTime >= 0;
+    }
+
+    void onSent(byte type, long intendedTime, int length) {
+        if (!isMeasured(intendedTime))
+            return;
+
+        if (type == Message.FANOUT)
+            fanoutsSent.increment();
+        else
+            echoesSent.increment();
+        sentBytes.add(length);
+    }
+
+    void onReceived(byte[] message) {
+        long intendedTime = Message.getIntendedTime(message);
+        if (!isMeasured(intendedTime))
+            return;
+
+        long latency = System.nanoTime() - intendedTime;
+        if (Message.getType(message) == Message.FANOUT) {
+            fanoutDeliveries.increment();
+            fanoutLatency.record(latency);
+        } else {
+            echoesReceived.increment();
+            echoLatency.record(latency);
+        }
+        receivedBytes.add(message.length);
+    }
+}
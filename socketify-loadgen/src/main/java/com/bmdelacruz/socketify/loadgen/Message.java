@@ -0,0 +1,37 @@
+package com.bmdelacruz.socketify.loadgen;
+
+/**
+ * The layout of the generated messages: a type byte, then the time the message was meant
+ * to be sent as given by {@link System#nanoTime()}, then zeros up to the message size.
+ * Latency is measured from the intended time rather than the time the message actually
+ * went out, so that a stalled sender does not hide the stall from the results.
+ */
+final class Message {
+    static final byte ECHO = 0;
+    static final byte FANOUT = 1;
+    static final int HEADER_LENGTH = 9;
+
+    private Message() {
+    }
+
+    static byte[] create(byte type, long intendedTime, int size) {
+        byte[] message = new byte[size];
+        message[0] = type;
+        for (int i = 8; i > 0; i--) {
+            message[i] = (byte) intendedTime;
+            intendedTime >>>= 8;
+        }
+        return message;
+    }
+
+    static byte getType(byte[] message) {
+        return message[0];
+    }
+
+    static long getIntendedTime(byte[] message) {
+        long intendedTime = 0;
+        for (int i = 1; i <= 8; i++)
+            intendedTime = (intendedTime << 8) | (message[i] & 0xff);
+        return intendedTime;
+    }
+}
@@ -0,0 +1,78 @@
+package com.bmdelacruz.socketify.loadgen;
+
+import com.bmdelacruz.socketify.client.ServerConnection;
+import com.bmdelacruz.socketify.commons.WriteFuture;
+
+import java.util.Random;
+
+/**
+ * Sends messages at a constant rate, each to the next of its slots in turn. Sending
+ * never waits for replies, so the rate holds however slow the server gets. A slot which
+ * is not connected at the time, for example while it is churned, passes its turn to the
+ * next connected slot.
+ */
+class OpenLoopSender extends PacedLoop {
+    private final LoadClients loadClients;
+    private final LoadStats loadStats;
+    private final SizeDistribution sizeDistribution;
+    private final double fanoutRatio;
+    private final int firstSlot;
+    private final int slotStride;
+    private final Random random;
+
+    private int nextSlot;
+
+    /**
+     * @param firstSlot The first slot of this sender.
+     * @param slotStride The distance between the slots of this sender, which is the number
+     * of senders, so that the senders share the slots between them.
+     */
+    OpenLoopSender(long startTime, long endTime, long intervalNanos, LoadClients loadClients, LoadStats loadStats,
+                   SizeDistribution sizeDistribution, double fanoutRatio, int firstSlot, int slotStride) {
+        super(startTime, endTime, intervalNanos);
+        this.loadClients = loadClients;
+        this.loadStats = loadStats;
+        this.sizeDistribution = sizeDistribution;
+        this.fanoutRatio = fanoutRatio;
+        this.firstSlot = firstSlot;
+        this.slotStride = slotStride;
+        this.random = new Random(firstSlot);
+        this.nextSlot = firstSlot;
+    }
+
+    @Override
+    void fire(long intendedTime) {
+        ServerConnection serverConnection = nextConnectedConnection();
+        if (serverConnection == null) {
+            if (loadStats.isMeasured(intendedTime))
+                loadStats.skippedSends.increment();
+            return;
+        }
+
+        byte type = fanoutRatio > 0 && random.nextDouble() < fanoutRatio ? Message.FANOUT : Message.ECHO;
+        byte[] message = Message.create(type, intendedTime, sizeDistribution.next(random));
+
+        WriteFuture future = serverConnection.sendBytes(message);
+        if (future.isDone() && !future.isSuccess()) {
+            if (loadStats.isMeasured(intendedTime))
+                loadStats.failedSends.increment();
+            return;
+        }
+        loadStats.onSent(type, intendedTime, message.length);
+    }
+
+    private ServerConnection nextConnectedConnection() {
+        int slotCount = loadClients.getSlotCount();
+        for (int tries = 0; tries * slotStride < slotCount; tries++) {
+            ServerConnection serverConnection = loadClients.get(nextSlot);
+
+            nextSlot += slotStride;
+            if (nextSlot >= slotCount)
+                nextSlot = firstSlot;
+
+            if (serverConnection.isConnected())
+                return serverConnection;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,68 @@
+package com.bmdelacruz.socketify.loadgen;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The command line options, each given as <code>--name=value</code>.
+ */
+class Options {
+    private final Map<String, String> values;
+    private final Set<String> readNames;
+
+    Options(String[] args) {
+        values = new LinkedHashMap<>();
+        readNames = new HashSet<>();
+
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0)
+                throw new IllegalArgumentException("The option " + arg + " is not of the form --name=value.");
+            values.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+    }
+
+    String getString(String name, String defaultValue) {
+        readNames.add(name);
+        String value = values.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The option --" + name + " must be a whole number.");
+        }
+    }
+
+    double getDouble(String name, double defaultValue) {
+        String value = getString(name, null);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The option --" + name + " must be a number.");
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException Thrown when an option was given which nothing read,
+     * which is most likely a typo.
+     */
+    void checkUnknown() {
+        for (String name : values.keySet())
+            if (!readNames.contains(name))
+                throw new IllegalArgumentException("There is no option --" + name + ".");
+    }
+}
@@ -0,0 +1,46 @@
+package com.bmdelacruz.socketify.loadgen;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Does something at a constant rate from the start time until the end time, on a
+ * schedule which is fixed up front. When the loop falls behind, it catches up by firing
+ * at once for every time it missed rather than moving the schedule, so that the load
+ * does not ease off while the system under test is slow.
+ */
+abstract class PacedLoop implements Runnable {
+    private final long startTime;
+    private final long endTime;
+    private final long intervalNanos;
+
+    /**
+     * @param startTime The first intended time, as given by {@link System#nanoTime()}.
+     * @param endTime The time at which the loop stops.
+     * @param intervalNanos The time between two intended times.
+     */
+    PacedLoop(long startTime, long endTime, long intervalNanos) {
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.intervalNanos = Math.max(1, intervalNanos);
+    }
+
+    @Override
+    public final void run() {
+        long intendedTime = startTime;
+        while (intendedTime - endTime < 0 && !Thread.currentThread().isInterrupted()) {
+            long waitNanos = intendedTime - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+                continue;
+            }
+
+            fire(intendedTime);
+            intendedTime += intervalNanos;
+        }
+    }
+
+    /**
+     * @param intendedTime The time this was meant to happen at, which may be in the past.
+     */
+    abstract void fire(long intendedTime);
+}
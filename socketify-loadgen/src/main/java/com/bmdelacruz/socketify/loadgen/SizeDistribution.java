@@ -0,0 +1,86 @@
+package com.bmdelacruz.socketify.loadgen;
+
+import java.util.Random;
+
+/**
+ * The sizes of the messages which are sent, given as one of:
+ * <ul>
+ *     <li><code>fixed:SIZE</code>, or just <code>SIZE</code></li>
+ *     <li><code>uniform:MIN-MAX</code></li>
+ *     <li><code>exponential:MEAN</code></li>
+ *     <li><code>bimodal:SMALL,LARGE,RATIO</code>, where RATIO of the messages are large</li>
+ * </ul>
+ * Sizes below the minimum are raised to it, since every message carries a header.
+ */
+abstract class SizeDistribution {
+    private final String spec;
+    private final int minimum;
+
+    private SizeDistribution(String spec, int minimum) {
+        this.spec = spec;
+        this.minimum = minimum;
+    }
+
+    static SizeDistribution parse(String spec, int minimum) {
+        try {
+            int separator = spec.indexOf(':');
+            String kind = separator < 0 ? "fixed" : spec.substring(0, separator);
+            String arguments = spec.substring(separator + 1);
+
+            switch (kind) {
+                case "fixed":
+                    final int size = Integer.parseInt(arguments);
+                    return new SizeDistribution(spec, minimum) {
+                        @Override
+                        int sample(Random random) {
+                            return size;
+                        }
+                    };
+                case "uniform":
+                    String[] bounds = arguments.split("-");
+                    final int lowest = Integer.parseInt(bounds[0]);
+                    final int highest = Integer.parseInt(bounds[1]);
+                    if (highest < lowest)
+                        break;
+                    return new SizeDistribution(spec, minimum) {
+                        @Override
+                        int sample(Random random) {
+                            return lowest + random.nextInt(highest - lowest + 1);
+                        }
+                    };
+                case "exponential":
+                    final double mean = Double.parseDouble(arguments);
+                    return new SizeDistribution(spec, minimum) {
+                        @Override
+                        int sample(Random random) {
+                            return (int) Math.min(Integer.MAX_VALUE / 2, -mean * Math.log(1 - random.nextDouble()));
+                        }
+                    };
+                case "bimodal":
+                    String[] modes = arguments.split(",");
+                    final int small = Integer.parseInt(modes[0]);
+                    final int large = Integer.parseInt(modes[1]);
+                    final double largeRatio = Double.parseDouble(modes[2]);
+                    return new SizeDistribution(spec, minimum) {
+                        @Override
+                        int sample(Random random) {
+                            return random.nextDouble() < largeRatio ? large : small;
+                        }
+                    };
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ignored) {
+        }
+        throw new IllegalArgumentException("The message size " + spec + " is not a known distribution.");
+    }
+
+    abstract int sample(Random random);
+
+    int next(Random random) {
+        return Math.max(minimum, sample(random));
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
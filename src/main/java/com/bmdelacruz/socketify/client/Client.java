@@ -1,33 +1,72 @@
 package com.bmdelacruz.socketify.client;
 
-import com.bmdelacruz.socketify.commons.PendingData;
+import com.bmdelacruz.socketify.commons.BufferAllocator;
+import com.bmdelacruz.socketify.commons.FileRegionFrame;
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.commons.IdleMonitor;
+import com.bmdelacruz.socketify.commons.IdleTimeouts;
+import com.bmdelacruz.socketify.commons.MarkerFrameCodec;
+import com.bmdelacruz.socketify.commons.OutboundFrame;
+import com.bmdelacruz.socketify.commons.OutboundQueue;
+import com.bmdelacruz.socketify.commons.PooledBufferAllocator;
 import com.bmdelacruz.socketify.commons.SelectionKeyProcessor;
+import com.bmdelacruz.socketify.commons.SharedBuffer;
+import com.bmdelacruz.socketify.commons.TimingWheel;
+import com.bmdelacruz.socketify.commons.WriteFuture;
 import com.bmdelacruz.socketify.data.DataProcessor;
+import com.bmdelacruz.socketify.data.DataProcessingException;
 import com.bmdelacruz.socketify.data.DataProcessorChain;
+import com.bmdelacruz.socketify.data.DataProcessorFactory;
+import com.bmdelacruz.socketify.metrics.Counter;
+import com.bmdelacruz.socketify.metrics.MetricsRegistry;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Client {
     private final InetSocketAddress socketAddress;
     private final int bufferSize;
 
     private Listener listener;
+    private BufferAllocator bufferAllocator;
+    private FrameCodec frameCodec;
 
     private SocketChannel socketChannel;
     private Selector selector;
-    private PendingData pendingData;
+    private SelectionKey key;
+    private FrameCodec.Decoder frameDecoder;
+    private SelectionKeyProcessor selectionKeyProcessor;
+
+    private OutboundQueue outboundQueue;
+    private ByteBuffer[] gatheredBuffers;
+    private AtomicBoolean isFlushScheduled;
+
+    private IdleTimeouts idleTimeouts;
+    private byte[] heartbeatData;
+    private TimingWheel timingWheel;
+    private IdleMonitor idleMonitor;
 
     private Thread clientThread;
 
     private DataProcessorChain readDataProcessorChain;
     private DataProcessorChain writeDataProcessorChain;
+    private DataProcessorChain connectionReadChain;
+    private DataProcessorChain connectionWriteChain;
+
+    private final MetricsRegistry metrics;
+    private final Counter receivedBytes;
+    private final Counter receivedMessages;
+    private final Counter sentBytes;
+    private final Counter sentMessages;
 
     public interface Listener {
         void onDataReceived(byte[] data);
@@ -48,6 +87,15 @@ public class Client {
         socketAddress = new InetSocketAddress(address, portToConnectTo);
         readDataProcessorChain = new DataProcessorChain();
         writeDataProcessorChain = new DataProcessorChain();
+        bufferAllocator = PooledBufferAllocator.DEFAULT;
+        frameCodec = new MarkerFrameCodec();
+        idleTimeouts = new IdleTimeouts();
+
+        metrics = new MetricsRegistry();
+        receivedBytes = metrics.counter("bytes.received");
+        receivedMessages = metrics.counter("messages.received");
+        sentBytes = metrics.counter("bytes.sent");
+        sentMessages = metrics.counter("messages.sent");
     }
 
     public void addReadDataProcessor(DataProcessor dataProcessor) {
@@ -58,6 +106,78 @@ public class Client {
         writeDataProcessorChain.addDataProcessor(dataProcessor);
     }
 
+    /**
+     * Adds a read stage whose processor keeps state for a single connection. A new
+     * processor is made on each {@link #connect()}. Data which a processor rejects with a
+     * {@link DataProcessingException} fails the connection.
+     */
+    public void addReadDataProcessor(DataProcessorFactory dataProcessorFactory) {
+        readDataProcessorChain.addDataProcessorFactory(dataProcessorFactory);
+    }
+
+    /**
+     * Adds a write stage whose processor keeps state for a single connection. A new
+     * processor is made on each {@link #connect()}.
+     */
+    public void addWriteDataProcessor(DataProcessorFactory dataProcessorFactory) {
+        writeDataProcessorChain.addDataProcessorFactory(dataProcessorFactory);
+    }
+
+    /**
+     * Sets the allocator of the buffers used for reading from and writing to the server.
+     * Must be called before {@link #connect()}.
+     * @param bufferAllocator The allocator to use.
+     */
+    public final void setBufferAllocator(BufferAllocator bufferAllocator) {
+        if (bufferAllocator == null)
+            throw new IllegalArgumentException("The bufferAllocator cannot be null.");
+        this.bufferAllocator = bufferAllocator;
+    }
+
+    /**
+     * Sets how the messages are framed on the stream. The server must use the same kind
+     * of codec. Must be called before {@link #connect()}.
+     * @param frameCodec The codec to use.
+     */
+    public final void setFrameCodec(FrameCodec frameCodec) {
+        if (frameCodec == null)
+            throw new IllegalArgumentException("The frameCodec cannot be null.");
+        this.frameCodec = frameCodec;
+    }
+
+    /**
+     * The client's metrics: <code>bytes.received</code>, <code>bytes.sent</code>,
+     * <code>messages.received</code> and <code>messages.sent</code>, counted over every
+     * connection the client made.
+     */
+    public final MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Watches the connection for a kind of idleness, so that a server which died without
+     * closing its end is noticed, or so that a quiet connection is kept alive with
+     * heartbeats. A connection which is dropped calls onServerDisconnect. Must be called
+     * before {@link #connect()}.
+     * @param state The kind of idleness to watch.
+     * @param timeoutMillis How long the connection must be idle for, or 0 to stop watching.
+     * @param action What is done once it is. A heartbeat needs {@link #setHeartbeatData(byte[])}.
+     */
+    public final void setIdleTimeout(IdleTimeouts.State state, long timeoutMillis, IdleTimeouts.Action action) {
+        idleTimeouts.set(state, timeoutMillis, action);
+    }
+
+    /**
+     * Sets the message which is sent as a heartbeat, such as an empty one. It is framed
+     * but not processed by the write data processors. Received messages which equal it
+     * are taken as the server's heartbeats and are not passed to the read data processors
+     * or the listener.
+     * @param heartbeatData The heartbeat message, or null for none.
+     */
+    public final void setHeartbeatData(byte[] heartbeatData) {
+        this.heartbeatData = heartbeatData;
+    }
+
     public final boolean isConnected() {
         return clientThread.isAlive();
     }
@@ -67,12 +187,28 @@ public class Client {
     }
 
     public final void connect() throws IOException {
+        if (idleTimeouts.hasHeartbeat() && heartbeatData == null)
+            throw new IllegalStateException("Sending heartbeats needs heartbeat data.");
+
         selector = Selector.open();
-        pendingData = new PendingData();
+        frameDecoder = frameCodec.newDecoder(bufferAllocator);
+        selectionKeyProcessor = new ClientSelectionKeyProcessor();
+        outboundQueue = new OutboundQueue();
+        gatheredBuffers = new ByteBuffer[OutboundQueue.MAX_GATHERED_BUFFERS];
+        isFlushScheduled = new AtomicBoolean();
+        connectionReadChain = readDataProcessorChain.newConnectionChain();
+        connectionWriteChain = writeDataProcessorChain.newConnectionChain();
 
         socketChannel = SocketChannel.open(this.socketAddress);
         socketChannel.configureBlocking(false);
-        socketChannel.register(selector, SelectionKey.OP_READ);
+        key = socketChannel.register(selector, SelectionKey.OP_READ);
+
+        timingWheel = new TimingWheel();
+        idleMonitor = null;
+        if (idleTimeouts.isEnabled()) {
+            idleMonitor = new ClientIdleMonitor();
+            idleMonitor.start();
+        }
 
         clientThread = new Thread(new ClientRunnable());
         clientThread.start();
@@ -84,55 +220,209 @@ public class Client {
         clientThread.interrupt();
     }
 
-    public final void sendBytes(byte[] data) throws IOException {
-        if (!isConnected()) return;
+    /**
+     * Queues the data to be sent to the server by the client's thread. This never blocks
+     * and may be called from any number of threads at once; the messages of each thread
+     * are sent in the order they were queued.
+     * @param data The data to be sent.
+     * @return A future which completes once the whole message is written to the socket,
+     * or fails if the connection ends first.
+     */
+    public final WriteFuture sendBytes(byte[] data) throws IOException {
+        if (!isConnected() || !socketChannel.isOpen())
+            return WriteFuture.failed(new ClosedChannelException());
+
+        DataProcessorChain chain = connectionWriteChain;
+        if (chain == writeDataProcessorChain)
+            return enqueue(chain, data);
+
+        // The chain keeps state for the connection, so its frames must be queued in the
+        // order it made them.
+        synchronized (chain) {
+            if (chain.isReleased())
+                return WriteFuture.failed(new ClosedChannelException());
+            return enqueue(chain, data);
+        }
+    }
+
+    private WriteFuture enqueue(DataProcessorChain chain, byte[] data) {
+        return enqueue(chain.process(ByteBuffer.wrap(data)));
+    }
+
+    private WriteFuture enqueue(ByteBuffer payload) {
+        ByteBuffer dataBuffer = bufferAllocator.allocate(frameCodec.getEncodedLength(payload.remaining()));
+        frameCodec.encode(payload, dataBuffer);
+        dataBuffer.flip();
+
+        WriteFuture future = new WriteFuture();
+        return enqueue(new OutboundFrame(new SharedBuffer(dataBuffer, bufferAllocator), future), future);
+    }
 
-        data = writeDataProcessorChain.process(data);
+    /**
+     * Queues a region of a file to be sent to the server as one message, in order with the
+     * messages sent through {@link #sendBytes(byte[])}. The region goes from the file to
+     * the socket without being copied into the heap, so the write data processors are not
+     * applied to it. The frame codec must be length-prefixed.
+     * @param fileChannel The file to send from. It must stay open until the returned
+     *                    future completes.
+     * @param position The position of the region in the file.
+     * @param count The length of the region.
+     * @return A future which completes once the whole region is written to the socket,
+     * or fails if the connection ends first.
+     */
+    public final WriteFuture sendFile(FileChannel fileChannel, long position, long count) {
+        if (!isConnected() || !socketChannel.isOpen())
+            return WriteFuture.failed(new ClosedChannelException());
+
+        WriteFuture future = new WriteFuture();
+        return enqueue(FileRegionFrame.encode(frameCodec, bufferAllocator, fileChannel, position, count, future), future);
+    }
+
+    private WriteFuture enqueue(OutboundFrame outboundFrame, WriteFuture future) {
+        outboundQueue.add(outboundFrame);
+        flush();
+
+        // The connection may have ended before the frame was added.
+        if (!socketChannel.isOpen())
+            outboundQueue.discardPending(new ClosedChannelException());
+
+        return future;
+    }
 
-        ByteBuffer dataBuffer = (ByteBuffer) ByteBuffer.allocate(data.length + 1)
-                .put(data).put((byte) 0x00).flip();
-        socketChannel.write(dataBuffer);
-        dataBuffer.clear();
+    /**
+     * Writes the queued frames right away on the client's thread, or wakes the thread up
+     * so that it does so. A burst of sends only wakes it up once.
+     */
+    private void flush() {
+        if (Thread.currentThread() == clientThread) {
+            write();
+        } else if (isFlushScheduled.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void write() {
+        if (!key.isValid())
+            return;
+
+        long previousSentBytes = outboundQueue.getSentBytes();
+        long previousSentFrames = outboundQueue.getSentFrames();
+        try {
+            if (outboundQueue.writeTo(socketChannel, gatheredBuffers))
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            else
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            selectionKeyProcessor.onConnectionFailure(key);
+        } finally {
+            long writtenBytes = outboundQueue.getSentBytes() - previousSentBytes;
+            sentBytes.add(writtenBytes);
+            sentMessages.add(outboundQueue.getSentFrames() - previousSentFrames);
+
+            if (writtenBytes > 0 && idleMonitor != null)
+                idleMonitor.onWrite();
+        }
+    }
+
+    private void stopIdleMonitor() {
+        if (idleMonitor != null)
+            idleMonitor.stop();
+    }
+
+    private void releaseDataProcessorChains() {
+        connectionReadChain.release();
+        connectionWriteChain.release();
     }
 
     private void read(SelectionKey key) throws IOException {
-        SelectionKeyProcessor skp = new SelectionKeyProcessor() {
-            @Override
-            public List<byte[]> getPendingReadList(SelectionKey key) {
-                return pendingData.getPendingData();
-            }
+        selectionKeyProcessor.read(key);
+    }
 
-            @Override
-            public void processCompleteData(SelectionKey key, byte[] data) {
-                if (listener != null) {
-                    data = readDataProcessorChain.process(data);
-                    listener.onDataReceived(data);
-                }
-            }
+    private class ClientSelectionKeyProcessor extends SelectionKeyProcessor {
+        public ClientSelectionKeyProcessor() {
+            super(bufferSize, bufferAllocator);
+        }
 
-            @Override
-            public void onDisconnect(SelectionKey key) {
-                try {
-                    key.cancel();
-                    key.channel().close();
+        @Override
+        public FrameCodec.Decoder getFrameDecoder(SelectionKey key) {
+            return frameDecoder;
+        }
 
-                    if (listener != null)
-                        listener.onServerDisconnect();
-                } catch (IOException ignored) {}
-            }
+        @Override
+        public void onBytesRead(SelectionKey key, int byteCount) {
+            receivedBytes.add(byteCount);
+            if (idleMonitor != null)
+                idleMonitor.onRead();
+        }
 
-            @Override
-            public void onConnectionFailure(SelectionKey key) {
-                try {
-                    key.cancel();
-                    key.channel().close();
+        @Override
+        public void processCompleteData(SelectionKey key, byte[] data) {
+            if (heartbeatData != null && Arrays.equals(data, heartbeatData))
+                return;
+            receivedMessages.increment();
+
+            // A chain which keeps state must see every message, even those nobody hears.
+            DataProcessorChain chain = connectionReadChain;
+            if ((listener == null && chain == readDataProcessorChain) || chain.isReleased())
+                return;
 
-                    if (listener != null)
-                        listener.onServerDisconnect();
-                } catch (IOException ignored) {}
+            try {
+                data = chain.process(data);
+            } catch (DataProcessingException e) {
+                onConnectionFailure(key);
+                return;
             }
-        };
-        skp.read(key);
+
+            if (listener != null)
+                listener.onDataReceived(data);
+        }
+
+        @Override
+        public void onDisconnect(SelectionKey key) {
+            try {
+                key.cancel();
+                key.channel().close();
+                outboundQueue.discardAll(new ClosedChannelException());
+                frameDecoder.release();
+                releaseDataProcessorChains();
+                stopIdleMonitor();
+
+                if (listener != null)
+                    listener.onServerDisconnect();
+            } catch (IOException ignored) {}
+        }
+
+        @Override
+        public void onConnectionFailure(SelectionKey key) {
+            try {
+                key.cancel();
+                key.channel().close();
+                outboundQueue.discardAll(new ClosedChannelException());
+                frameDecoder.release();
+                releaseDataProcessorChains();
+                stopIdleMonitor();
+
+                if (listener != null)
+                    listener.onServerDisconnect();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Drops the connection or sends the server a heartbeat once it is idle.
+     */
+    private class ClientIdleMonitor extends IdleMonitor {
+        public ClientIdleMonitor() {
+            super(idleTimeouts, timingWheel);
+        }
+
+        @Override
+        protected void onIdle(IdleTimeouts.State state, IdleTimeouts.Action action) {
+            if (action == IdleTimeouts.Action.DISCONNECT)
+                selectionKeyProcessor.onConnectionFailure(key);
+            else
+                enqueue(ByteBuffer.wrap(heartbeatData));
+        }
     }
 
     private class ClientRunnable implements Runnable {
@@ -141,15 +431,19 @@ public class Client {
             while (!Thread.currentThread().isInterrupted()) {
                 try {
                     selector.select(100);
+                    timingWheel.advance(System.nanoTime());
+
+                    if (isFlushScheduled.getAndSet(false))
+                        write();
 
                     Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
                     while (keys.hasNext()) {
                         SelectionKey key = keys.next();
                         keys.remove();
 
-                        if (!key.isValid())
-                            continue;
-                        if (key.isReadable())
+                        if (key.isValid() && key.isWritable())
+                            write();
+                        if (key.isValid() && key.isReadable())
                             read(key);
                     }
                 } catch (IOException e) {
@@ -158,6 +452,10 @@ public class Client {
                 }
             }
 
+            outboundQueue.discardAll(new ClosedChannelException());
+            frameDecoder.release();
+            releaseDataProcessorChains();
+            stopIdleMonitor();
             try {
                 selector.close();
                 socketChannel.close();
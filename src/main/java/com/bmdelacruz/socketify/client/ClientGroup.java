@@ -0,0 +1,548 @@
+package com.bmdelacruz.socketify.client;
+
+import com.bmdelacruz.socketify.commons.BufferAllocator;
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.commons.MarkerFrameCodec;
+import com.bmdelacruz.socketify.commons.OutboundFrame;
+import com.bmdelacruz.socketify.commons.OutboundQueue;
+import com.bmdelacruz.socketify.commons.PooledBufferAllocator;
+import com.bmdelacruz.socketify.commons.SelectionKeyProcessor;
+import com.bmdelacruz.socketify.commons.SharedBuffer;
+import com.bmdelacruz.socketify.commons.WriteFuture;
+import com.bmdelacruz.socketify.data.DataProcessor;
+import com.bmdelacruz.socketify.data.DataProcessingException;
+import com.bmdelacruz.socketify.data.DataProcessorChain;
+import com.bmdelacruz.socketify.data.DataProcessorFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many connections to servers on a small, fixed set of selector loops, instead of
+ * a thread and a selector per connection like {@link Client} does. Connections are
+ * established without blocking, so any number of them can be set up at once, and each
+ * one fails if it is not established before its connect timeout.
+ */
+public class ClientGroup {
+    private static final long DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    private final int selectorLoopCount;
+    private final int bufferSize;
+
+    private BufferAllocator bufferAllocator;
+    private FrameCodec frameCodec;
+    private long connectTimeout;
+
+    private SelectorLoop[] selectorLoops;
+    private final AtomicInteger nextSelectorLoopIndex;
+
+    private DataProcessorChain readDataProcessorChain;
+    private DataProcessorChain writeDataProcessorChain;
+
+    public ClientGroup() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ClientGroup(int selectorLoopCount) {
+        this(selectorLoopCount, 1024);
+    }
+
+    public ClientGroup(int selectorLoopCount, int bufferSize) {
+        if (selectorLoopCount < 1)
+            throw new IllegalArgumentException("The selectorLoopCount must be at least 1.");
+
+        this.selectorLoopCount = selectorLoopCount;
+        this.bufferSize = bufferSize;
+
+        nextSelectorLoopIndex = new AtomicInteger();
+        readDataProcessorChain = new DataProcessorChain();
+        writeDataProcessorChain = new DataProcessorChain();
+        bufferAllocator = PooledBufferAllocator.DEFAULT;
+        frameCodec = new MarkerFrameCodec();
+        connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    }
+
+    public void addReadDataProcessor(DataProcessor dataProcessor) {
+        readDataProcessorChain.addDataProcessor(dataProcessor);
+    }
+
+    public void addWriteDataProcessor(DataProcessor dataProcessor) {
+        writeDataProcessorChain.addDataProcessor(dataProcessor);
+    }
+
+    /**
+     * Adds a read stage whose processor keeps state for a single connection. Each
+     * connection gets its own processor from the factory, which is released once the
+     * connection ends. Data which a processor rejects with a {@link DataProcessingException}
+     * ends the connection.
+     */
+    public void addReadDataProcessor(DataProcessorFactory dataProcessorFactory) {
+        readDataProcessorChain.addDataProcessorFactory(dataProcessorFactory);
+    }
+
+    /**
+     * Adds a write stage whose processor keeps state for a single connection. Each
+     * connection gets its own processor from the factory, which is released once the
+     * connection ends.
+     */
+    public void addWriteDataProcessor(DataProcessorFactory dataProcessorFactory) {
+        writeDataProcessorChain.addDataProcessorFactory(dataProcessorFactory);
+    }
+
+    /**
+     * Sets the allocator of the buffers used for reading from and writing to the servers.
+     * Must be called before {@link #start()}.
+     * @param bufferAllocator The allocator to use.
+     */
+    public final void setBufferAllocator(BufferAllocator bufferAllocator) {
+        if (bufferAllocator == null)
+            throw new IllegalArgumentException("The bufferAllocator cannot be null.");
+        this.bufferAllocator = bufferAllocator;
+    }
+
+    /**
+     * Sets how the messages are framed on the stream. The servers must use the same kind
+     * of codec. Must be called before {@link #start()}.
+     * @param frameCodec The codec to use.
+     */
+    public final void setFrameCodec(FrameCodec frameCodec) {
+        if (frameCodec == null)
+            throw new IllegalArgumentException("The frameCodec cannot be null.");
+        this.frameCodec = frameCodec;
+    }
+
+    /**
+     * Sets how long connections made with {@link #connect(InetSocketAddress, ServerConnection.Listener)}
+     * may take to be established. Defaults to 10 seconds.
+     * @param connectTimeout The timeout in milliseconds.
+     */
+    public final void setConnectTimeout(long connectTimeout) {
+        if (connectTimeout <= 0)
+            throw new IllegalArgumentException("The connectTimeout must be positive.");
+        this.connectTimeout = connectTimeout;
+    }
+
+    public final void start() throws IOException {
+        selectorLoops = new SelectorLoop[selectorLoopCount];
+        for (int i = 0; i < selectorLoopCount; i++)
+            selectorLoops[i] = new SelectorLoop();
+        for (SelectorLoop selectorLoop : selectorLoops)
+            selectorLoop.start();
+    }
+
+    public final void stop() {
+        for (SelectorLoop selectorLoop : selectorLoops)
+            selectorLoop.stop();
+    }
+
+    public final ServerConnection connect(int port, String address, ServerConnection.Listener listener)
+            throws IOException {
+        return connect(new InetSocketAddress(address, port), listener);
+    }
+
+    public final ServerConnection connect(InetSocketAddress address, ServerConnection.Listener listener)
+            throws IOException {
+        return connect(address, listener, connectTimeout);
+    }
+
+    /**
+     * Starts connecting to the server without waiting for the connection to be established.
+     * The listener learns on one of the group's threads whether the connection succeeded.
+     * @param address The address of the server.
+     * @param listener The listener of the connection's events.
+     * @param connectTimeout How long the connection may take to be established, in milliseconds.
+     * @return The connection, on which data may be sent right away.
+     * @throws IOException If the socket could not be opened, or the address cannot be
+     * connected to at all.
+     */
+    public final ServerConnection connect(InetSocketAddress address, ServerConnection.Listener listener,
+                                          long connectTimeout) throws IOException {
+        if (connectTimeout <= 0)
+            throw new IllegalArgumentException("The connectTimeout must be positive.");
+
+        int selectorLoopIndex = (nextSelectorLoopIndex.getAndIncrement() & Integer.MAX_VALUE) % selectorLoops.length;
+
+        SocketChannel socketChannel = SocketChannel.open();
+        try {
+            socketChannel.configureBlocking(false);
+            socketChannel.connect(address);
+        } catch (IOException e) {
+            socketChannel.close();
+            throw e;
+        }
+
+        ServerConnection serverConnection = new ServerConnection(this, address, socketChannel, listener,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeout), selectorLoopIndex);
+        serverConnection.setFrameDecoder(frameCodec.newDecoder(bufferAllocator));
+        serverConnection.setReadDataProcessorChain(readDataProcessorChain.newConnectionChain());
+        serverConnection.setWriteDataProcessorChain(writeDataProcessorChain.newConnectionChain());
+        selectorLoops[selectorLoopIndex].handOff(serverConnection);
+
+        return serverConnection;
+    }
+
+    WriteFuture sendTo(ServerConnection serverConnection, byte[] data) {
+        if (serverConnection.getState() == ServerConnection.State.CLOSED)
+            return WriteFuture.failed(new ClosedChannelException());
+
+        DataProcessorChain chain = serverConnection.getWriteDataProcessorChain();
+        if (chain == writeDataProcessorChain)
+            return enqueue(serverConnection, chain, data);
+
+        // The chain keeps state for the connection, so its frames must be queued in the
+        // order it made them.
+        synchronized (chain) {
+            if (chain.isReleased())
+                return WriteFuture.failed(new ClosedChannelException());
+            return enqueue(serverConnection, chain, data);
+        }
+    }
+
+    private WriteFuture enqueue(ServerConnection serverConnection, DataProcessorChain chain, byte[] data) {
+        ByteBuffer payload = chain.process(ByteBuffer.wrap(data));
+
+        ByteBuffer dataBuffer = bufferAllocator.allocate(frameCodec.getEncodedLength(payload.remaining()));
+        frameCodec.encode(payload, dataBuffer);
+        dataBuffer.flip();
+
+        WriteFuture future = new WriteFuture();
+        OutboundQueue outboundQueue = serverConnection.getOutboundQueue();
+        outboundQueue.add(new OutboundFrame(new SharedBuffer(dataBuffer, bufferAllocator), future));
+        selectorLoopOf(serverConnection).flush(serverConnection);
+
+        // The connection may have ended before the frame was added.
+        if (serverConnection.getState() == ServerConnection.State.CLOSED)
+            outboundQueue.discardPending(new ClosedChannelException());
+
+        return future;
+    }
+
+    void disconnect(final ServerConnection serverConnection) {
+        selectorLoopOf(serverConnection).execute(new Runnable() {
+            @Override
+            public void run() {
+                if (selectorLoopOf(serverConnection).end(serverConnection))
+                    serverConnection.onDisconnected();
+            }
+        });
+    }
+
+    private SelectorLoop selectorLoopOf(ServerConnection serverConnection) {
+        return selectorLoops[serverConnection.getSelectorLoopIndex()];
+    }
+
+    private class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<ServerConnection> handedOffConnections;
+        private final Queue<Runnable> tasks;
+        private final Queue<ServerConnection> flushRequests;
+        private final AtomicBoolean isWakeupPending;
+        private final PriorityQueue<ServerConnection> pendingConnects;
+        private final ByteBuffer[] gatheredBuffers;
+        private final SelectionKeyProcessor selectionKeyProcessor;
+
+        private Thread thread;
+
+        public SelectorLoop() throws IOException {
+            selector = Selector.open();
+            handedOffConnections = new ConcurrentLinkedQueue<>();
+            tasks = new ConcurrentLinkedQueue<>();
+            flushRequests = new ConcurrentLinkedQueue<>();
+            isWakeupPending = new AtomicBoolean();
+            pendingConnects = new PriorityQueue<>(16, new Comparator<ServerConnection>() {
+                @Override
+                public int compare(ServerConnection a, ServerConnection b) {
+                    long difference = a.getConnectDeadline() - b.getConnectDeadline();
+                    return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+                }
+            });
+            gatheredBuffers = new ByteBuffer[OutboundQueue.MAX_GATHERED_BUFFERS];
+            selectionKeyProcessor = new SelectionKeyProcessor(bufferSize, bufferAllocator) {
+                @Override
+                public FrameCodec.Decoder getFrameDecoder(SelectionKey key) {
+                    return ((ServerConnection) key.attachment()).getFrameDecoder();
+                }
+
+                @Override
+                public void processCompleteData(SelectionKey key, byte[] data) {
+                    ServerConnection serverConnection = (ServerConnection) key.attachment();
+
+                    // The chain is released once the connection ends, which may happen
+                    // while the rest of a read is still being handed out.
+                    DataProcessorChain chain = serverConnection.getReadDataProcessorChain();
+                    if (chain.isReleased())
+                        return;
+
+                    try {
+                        data = chain.process(data);
+                    } catch (DataProcessingException e) {
+                        onConnectionFailure(key);
+                        return;
+                    }
+                    serverConnection.onDataReceived(data);
+                }
+
+                @Override
+                public void onDisconnect(SelectionKey key) {
+                    ServerConnection serverConnection = (ServerConnection) key.attachment();
+                    if (end(serverConnection))
+                        serverConnection.onDisconnected();
+                }
+
+                @Override
+                public void onConnectionFailure(SelectionKey key) {
+                    onDisconnect(key);
+                }
+            };
+        }
+
+        public void start() {
+            thread = new Thread(this);
+            thread.start();
+        }
+
+        public void stop() {
+            thread.interrupt();
+        }
+
+        /**
+         * Hands a connection which is being established to this loop. It gets registered
+         * on the loop's own thread.
+         */
+        public void handOff(ServerConnection serverConnection) {
+            handedOffConnections.add(serverConnection);
+            wakeup();
+        }
+
+        /**
+         * Writes the queued frames of the connection as soon as possible. On this loop's
+         * thread the write is attempted right away. From any other thread a flush request
+         * is submitted instead, at most once per connection until the loop gets to it.
+         */
+        public void flush(ServerConnection serverConnection) {
+            if (Thread.currentThread() == thread) {
+                write(serverConnection);
+            } else if (serverConnection.scheduleFlush()) {
+                flushRequests.add(serverConnection);
+                wakeup();
+            }
+        }
+
+        /**
+         * Wakes the selector up unless a wakeup is already on its way.
+         */
+        private void wakeup() {
+            if (isWakeupPending.compareAndSet(false, true))
+                selector.wakeup();
+        }
+
+        /**
+         * Runs the task on this loop's thread.
+         */
+        public void execute(Runnable task) {
+            tasks.add(task);
+            wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    selector.select(nextSelectTimeout());
+                    isWakeupPending.set(false);
+
+                    ServerConnection handedOffConnection;
+                    while ((handedOffConnection = handedOffConnections.poll()) != null)
+                        register(handedOffConnection);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+
+                    ServerConnection flushConnection;
+                    while ((flushConnection = flushRequests.poll()) != null) {
+                        flushConnection.clearFlushScheduled();
+                        write(flushConnection);
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (key.isValid() && key.isConnectable()) finishConnect(key);
+                        if (key.isValid() && key.isWritable()) write((ServerConnection) key.attachment());
+                        if (key.isValid() && key.isReadable()) selectionKeyProcessor.read(key);
+                    }
+
+                    expireConnects();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+
+            for (SelectionKey key : selector.keys())
+                end((ServerConnection) key.attachment());
+            ServerConnection handedOffConnection;
+            while ((handedOffConnection = handedOffConnections.poll()) != null)
+                end(handedOffConnection);
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * @return How long the selector may block before the earliest connect deadline
+         * passes, at most 100 milliseconds.
+         */
+        private long nextSelectTimeout() {
+            ServerConnection earliest = peekPendingConnect();
+            if (earliest == null)
+                return 100;
+
+            long remaining = TimeUnit.NANOSECONDS.toMillis(earliest.getConnectDeadline() - System.nanoTime());
+            return Math.max(1, Math.min(100, remaining + 1));
+        }
+
+        private void register(ServerConnection serverConnection) {
+            SocketChannel socketChannel = serverConnection.getSocketChannel();
+            try {
+                if (socketChannel.isConnectionPending()) {
+                    serverConnection.setSelectionKey(
+                            socketChannel.register(selector, SelectionKey.OP_CONNECT, serverConnection));
+                    pendingConnects.add(serverConnection);
+                } else {
+                    serverConnection.setSelectionKey(
+                            socketChannel.register(selector, SelectionKey.OP_READ, serverConnection));
+                    onConnectionEstablished(serverConnection);
+                }
+            } catch (IOException e) {
+                failConnect(serverConnection, e);
+            }
+        }
+
+        private void finishConnect(SelectionKey key) {
+            ServerConnection serverConnection = (ServerConnection) key.attachment();
+            try {
+                if (!serverConnection.getSocketChannel().finishConnect())
+                    return;
+            } catch (IOException e) {
+                failConnect(serverConnection, e);
+                return;
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+            onConnectionEstablished(serverConnection);
+        }
+
+        private void onConnectionEstablished(ServerConnection serverConnection) {
+            if (serverConnection.getState() != ServerConnection.State.CONNECTING)
+                return;
+
+            serverConnection.setState(ServerConnection.State.CONNECTED);
+            serverConnection.onConnected();
+
+            // Send whatever was queued while the connection was being established.
+            write(serverConnection);
+        }
+
+        /**
+         * Fails the connections which are still not established after their deadline.
+         */
+        private void expireConnects() {
+            long now = System.nanoTime();
+
+            ServerConnection serverConnection;
+            while ((serverConnection = peekPendingConnect()) != null
+                    && serverConnection.getConnectDeadline() - now <= 0) {
+                pendingConnects.poll();
+                failConnect(serverConnection, new SocketTimeoutException("The connection was not established in time."));
+            }
+        }
+
+        /**
+         * A connection stays in the queue of pending connects after it is established or
+         * ends, since taking it out of the middle of the queue is slow. It is dropped once
+         * it reaches the head instead.
+         * @return The pending connect with the earliest deadline, or <code>null</code> if
+         * there is none.
+         */
+        private ServerConnection peekPendingConnect() {
+            ServerConnection serverConnection;
+            while ((serverConnection = pendingConnects.peek()) != null
+                    && serverConnection.getState() != ServerConnection.State.CONNECTING)
+                pendingConnects.poll();
+            return serverConnection;
+        }
+
+        private void failConnect(ServerConnection serverConnection, IOException e) {
+            if (end(serverConnection))
+                serverConnection.onConnectFailed(e);
+        }
+
+        /**
+         * Closes the connection and fails whatever is still queued for it.
+         * @return <code>false</code> if the connection had already ended.
+         */
+        private boolean end(ServerConnection serverConnection) {
+            if (serverConnection.getState() == ServerConnection.State.CLOSED)
+                return false;
+
+            serverConnection.setState(ServerConnection.State.CLOSED);
+
+            SelectionKey key = serverConnection.getSelectionKey();
+            if (key != null)
+                key.cancel();
+            try {
+                serverConnection.getSocketChannel().close();
+            } catch (IOException ignored) {
+            }
+
+            serverConnection.getOutboundQueue().discardAll(new ClosedChannelException());
+            serverConnection.getFrameDecoder().release();
+            serverConnection.getReadDataProcessorChain().release();
+            serverConnection.getWriteDataProcessorChain().release();
+            return true;
+        }
+
+        /**
+         * Writes as much of the connection's outbound data as the socket will take. Frames
+         * queued while the connection is being established are left until it is.
+         */
+        private void write(ServerConnection serverConnection) {
+            SelectionKey key = serverConnection.getSelectionKey();
+            if (serverConnection.getState() != ServerConnection.State.CONNECTED || !key.isValid())
+                return;
+
+            try {
+                boolean isDrained = serverConnection.getOutboundQueue()
+                        .writeTo(serverConnection.getSocketChannel(), gatheredBuffers);
+
+                if (isDrained)
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                else
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                if (end(serverConnection))
+                    serverConnection.onDisconnected();
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.bmdelacruz.socketify.client;
+
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.commons.OutboundQueue;
+import com.bmdelacruz.socketify.commons.WriteFuture;
+import com.bmdelacruz.socketify.data.DataProcessorChain;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection to a server which is run by a {@link ClientGroup}.
+ */
+public class ServerConnection {
+    enum State { CONNECTING, CONNECTED, CLOSED }
+
+    private final ClientGroup clientGroup;
+    private final InetSocketAddress address;
+    private final SocketChannel socketChannel;
+    private final Listener listener;
+    private final long connectDeadline;
+    private final int selectorLoopIndex;
+
+    private volatile State state;
+    private volatile SelectionKey selectionKey;
+    private FrameCodec.Decoder frameDecoder;
+    private DataProcessorChain readDataProcessorChain;
+    private DataProcessorChain writeDataProcessorChain;
+    private final OutboundQueue outboundQueue;
+    private final AtomicBoolean isFlushScheduled;
+
+    public interface Listener {
+        void onConnected(ServerConnection serverConnection);
+        void onConnectFailed(ServerConnection serverConnection, IOException e);
+        void onDataReceived(ServerConnection serverConnection, byte[] data);
+        void onDisconnected(ServerConnection serverConnection);
+    }
+
+    ServerConnection(ClientGroup clientGroup, InetSocketAddress address, SocketChannel socketChannel,
+                     Listener listener, long connectDeadline, int selectorLoopIndex) {
+        this.clientGroup = clientGroup;
+        this.address = address;
+        this.socketChannel = socketChannel;
+        this.listener = listener;
+        this.connectDeadline = connectDeadline;
+        this.selectorLoopIndex = selectorLoopIndex;
+        this.state = State.CONNECTING;
+        this.outboundQueue = new OutboundQueue();
+        this.isFlushScheduled = new AtomicBoolean();
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public SocketChannel getSocketChannel() {
+        return socketChannel;
+    }
+
+    /**
+     * @return <code>true</code> once the connection is established and until it ends.
+     */
+    public boolean isConnected() {
+        return state == State.CONNECTED;
+    }
+
+    /**
+     * Queues the data to be sent to the server. Data sent while the connection is still
+     * being established is written once it is.
+     * @param data The data to be sent.
+     * @return A future which completes once the whole message is written to the socket,
+     * or fails if the connection ends first.
+     */
+    public WriteFuture sendBytes(byte[] data) {
+        return clientGroup.sendTo(this, data);
+    }
+
+    /**
+     * Closes the connection. The listener is notified on the group's thread.
+     */
+    public void disconnect() {
+        clientGroup.disconnect(this);
+    }
+
+    /**
+     * @return The number of bytes queued for the server which are not yet written.
+     */
+    public long getQueuedBytes() {
+        return outboundQueue.getQueuedBytes();
+    }
+
+    /**
+     * @return The number of messages queued for the server which are not yet fully written.
+     */
+    public int getQueuedMessages() {
+        return outboundQueue.getQueuedFrames();
+    }
+
+    State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    long getConnectDeadline() {
+        return connectDeadline;
+    }
+
+    int getSelectorLoopIndex() {
+        return selectorLoopIndex;
+    }
+
+    SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    FrameCodec.Decoder getFrameDecoder() {
+        return frameDecoder;
+    }
+
+    void setFrameDecoder(FrameCodec.Decoder frameDecoder) {
+        this.frameDecoder = frameDecoder;
+    }
+
+    /**
+     * @return The read chain of this connection, which is the group's own chain unless it
+     * has processors made for each connection.
+     */
+    DataProcessorChain getReadDataProcessorChain() {
+        return readDataProcessorChain;
+    }
+
+    void setReadDataProcessorChain(DataProcessorChain readDataProcessorChain) {
+        this.readDataProcessorChain = readDataProcessorChain;
+    }
+
+    DataProcessorChain getWriteDataProcessorChain() {
+        return writeDataProcessorChain;
+    }
+
+    void setWriteDataProcessorChain(DataProcessorChain writeDataProcessorChain) {
+        this.writeDataProcessorChain = writeDataProcessorChain;
+    }
+
+    OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * @return <code>true</code> if no flush was scheduled yet, in which case the caller
+     * must submit one.
+     */
+    boolean scheduleFlush() {
+        return isFlushScheduled.compareAndSet(false, true);
+    }
+
+    void clearFlushScheduled() {
+        isFlushScheduled.set(false);
+    }
+
+    void onConnected() {
+        if (listener != null) listener.onConnected(this);
+    }
+
+    void onConnectFailed(IOException e) {
+        if (listener != null) listener.onConnectFailed(this, e);
+    }
+
+    void onDataReceived(byte[] data) {
+        if (listener != null) listener.onDataReceived(this, data);
+    }
+
+    void onDisconnected() {
+        if (listener != null) listener.onDisconnected(this);
+    }
+}
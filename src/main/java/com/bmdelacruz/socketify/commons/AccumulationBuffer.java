@@ -0,0 +1,173 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds the bytes of a connection which do not form a whole frame yet. New bytes go right
+ * after the held ones, either by reading into {@link #writableBuffer(int)} or through
+ * {@link #append(ByteBuffer, int, int)}, and the frames are taken from the front. The
+ * storage comes from a buffer allocator. When there is no room left, the consumed bytes
+ * are compacted away if few bytes are held, or else the storage doubles. Once every byte is consumed, the
+ * storage goes back to the allocator, so an idle connection holds none.
+ *
+ * Only the thread which owns the connection may use it.
+ */
+public class AccumulationBuffer {
+    private final BufferAllocator bufferAllocator;
+    private final int initialCapacity;
+
+    private ByteBuffer buffer;
+    private int readIndex;
+    private int writeIndex;
+    private long copiedBytes;
+
+    public AccumulationBuffer(BufferAllocator bufferAllocator, int initialCapacity) {
+        if (bufferAllocator == null)
+            throw new IllegalArgumentException("The bufferAllocator cannot be null.");
+        if (initialCapacity <= 0)
+            throw new IllegalArgumentException("The initialCapacity must be positive.");
+
+        this.bufferAllocator = bufferAllocator;
+        this.initialCapacity = initialCapacity;
+    }
+
+    /**
+     * @return The number of bytes held which are not consumed yet.
+     */
+    public int readableBytes() {
+        return writeIndex - readIndex;
+    }
+
+    /**
+     * @return The number of bytes this buffer moved around so far while compacting, growing
+     * and appending.
+     */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    /**
+     * Makes room for at least the given number of bytes after the held ones. The returned
+     * buffer's position is where the next byte goes and its limit is the end of the room.
+     * Once bytes are put into it, {@link #commitWritten()} must be called before anything
+     * else is done with this buffer.
+     * @param minWritable The number of bytes to make room for.
+     * @return The storage of this buffer.
+     */
+    public ByteBuffer writableBuffer(int minWritable) {
+        ensureWritable(minWritable);
+
+        buffer.limit(buffer.capacity()).position(writeIndex);
+        return buffer;
+    }
+
+    /**
+     * Takes the bytes put into the buffer returned by {@link #writableBuffer(int)} as held.
+     */
+    public void commitWritten() {
+        if (buffer != null) {
+            writeIndex = buffer.position();
+            releaseIfEmpty();
+        }
+    }
+
+    /**
+     * Copies a range of the source after the held bytes. The source's position and limit
+     * are left alone.
+     * @param source The buffer to copy from.
+     * @param offset The absolute index of the first byte to copy.
+     * @param length The number of bytes to copy.
+     */
+    public void append(ByteBuffer source, int offset, int length) {
+        if (length == 0)
+            return;
+
+        ensureWritable(length);
+
+        buffer.limit(writeIndex + length).position(writeIndex);
+        buffer.put(Utils.sliceOf(source, offset, length));
+        writeIndex += length;
+        copiedBytes += length;
+    }
+
+    /**
+     * @return The storage of this buffer with the held bytes as its remaining bytes, or an
+     * empty buffer when none are held.
+     */
+    public ByteBuffer readableBuffer() {
+        if (buffer == null)
+            return ByteBuffer.allocate(0);
+
+        buffer.limit(writeIndex).position(readIndex);
+        return buffer;
+    }
+
+    /**
+     * Drops the held bytes up to the absolute index in the buffer returned by
+     * {@link #readableBuffer()}.
+     * @param index The index of the first byte which is still needed.
+     */
+    public void consumeTo(int index) {
+        if (buffer == null)
+            return;
+        if (index < readIndex || index > writeIndex)
+            throw new IllegalArgumentException("The index " + index + " is outside of the held bytes.");
+
+        readIndex = index;
+        releaseIfEmpty();
+    }
+
+    /**
+     * Drops every held byte and gives the storage back to the allocator.
+     */
+    public void release() {
+        if (buffer != null) {
+            bufferAllocator.release(buffer);
+            buffer = null;
+        }
+        readIndex = 0;
+        writeIndex = 0;
+    }
+
+    private void releaseIfEmpty() {
+        if (readIndex == writeIndex)
+            release();
+    }
+
+    private void ensureWritable(int minWritable) {
+        if (buffer == null) {
+            buffer = bufferAllocator.allocate(Math.max(initialCapacity, minWritable));
+            readIndex = 0;
+            writeIndex = 0;
+            return;
+        }
+
+        if (buffer.capacity() - writeIndex >= minWritable)
+            return;
+
+        // Compacting copies the held bytes, so it is only worth it while they are few.
+        // Otherwise the storage grows, which leaves room for a few frames before the
+        // held bytes need moving again.
+        int readableBytes = readableBytes();
+        if (readableBytes <= buffer.capacity() / 4 && buffer.capacity() - readableBytes >= minWritable) {
+            buffer.limit(writeIndex).position(readIndex);
+            buffer.compact();
+        } else {
+            int newCapacity = buffer.capacity();
+            do {
+                if (newCapacity > Integer.MAX_VALUE / 2)
+                    throw new IllegalStateException("The accumulation buffer cannot grow past 2 GB.");
+                newCapacity *= 2;
+            } while (newCapacity - readableBytes < minWritable);
+
+            ByteBuffer newBuffer = bufferAllocator.allocate(newCapacity);
+            newBuffer.put(Utils.sliceOf(buffer, readIndex, readableBytes));
+            bufferAllocator.release(buffer);
+            buffer = newBuffer;
+        }
+
+        copiedBytes += readableBytes;
+        readIndex = 0;
+        writeIndex = readableBytes;
+    }
+}
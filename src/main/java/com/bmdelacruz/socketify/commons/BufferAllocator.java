@@ -0,0 +1,19 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.nio.ByteBuffer;
+
+public interface BufferAllocator {
+    /**
+     * Gets a buffer which can hold at least the requested number of bytes. The position
+     * of the returned buffer is zero and its limit is the requested capacity.
+     * @param capacity The number of bytes the buffer must be able to hold.
+     * @return A cleared buffer.
+     */
+    ByteBuffer allocate(int capacity);
+
+    /**
+     * Gives a buffer back to the allocator. The buffer must not be used after this.
+     * @param buffer A buffer which was returned by {@link #allocate(int)}.
+     */
+    void release(ByteBuffer buffer);
+}
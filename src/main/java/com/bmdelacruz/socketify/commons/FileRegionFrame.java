@@ -0,0 +1,149 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A frame whose message is a region of a file. Only the header and the trailer are held
+ * in memory. The region is moved from the file to the connection with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which lets the kernel
+ * copy it without passing it through the heap. The file channel belongs to the sender and
+ * must stay open until the frame is written or discarded.
+ */
+public class FileRegionFrame extends OutboundFrame {
+    private final int headerLength;
+    private final ByteBuffer trailer;
+    private final FileChannel fileChannel;
+    private final long position;
+    private final long count;
+
+    private long transferred;
+
+    /**
+     * @param envelope The header of the frame followed by its trailer. The new instance
+     *                 owns one reference to it.
+     * @param headerLength The length of the header.
+     * @param fileChannel The file to read the message from.
+     * @param position The position of the message in the file.
+     * @param count The length of the message.
+     * @param future The future to complete once the frame is written, or null.
+     */
+    public FileRegionFrame(SharedBuffer envelope, int headerLength, FileChannel fileChannel,
+                           long position, long count, WriteFuture future) {
+        super(envelope, future);
+
+        this.headerLength = headerLength;
+        this.fileChannel = fileChannel;
+        this.position = position;
+        this.count = count;
+
+        ByteBuffer header = getView();
+        trailer = header.duplicate();
+        trailer.position(header.position() + headerLength);
+        header.limit(header.position() + headerLength);
+    }
+
+    /**
+     * Frames a region of a file with a length-prefixed codec. Other codecs cannot frame
+     * it, since the file may contain their marker.
+     * @param frameCodec The codec to frame the region with.
+     * @param bufferAllocator The allocator of the buffer holding the header and trailer.
+     * @param fileChannel The file to read the message from.
+     * @param position The position of the message in the file.
+     * @param count The length of the message.
+     * @param future The future to complete once the frame is written, or null.
+     * @return The new frame.
+     */
+    public static FileRegionFrame encode(FrameCodec frameCodec, BufferAllocator bufferAllocator,
+                                         FileChannel fileChannel, long position, long count,
+                                         WriteFuture future) {
+        if (fileChannel == null)
+            throw new IllegalArgumentException("The fileChannel cannot be null.");
+        if (position < 0)
+            throw new IllegalArgumentException("The position cannot be negative.");
+        if (count < 0 || count > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The count must be between 0 and " + Integer.MAX_VALUE + ".");
+        if (!frameCodec.isLengthPrefixed())
+            throw new IllegalStateException("A file can only be sent with a length-prefixed frame codec.");
+
+        int headerLength = frameCodec.getHeaderLength((int) count);
+        ByteBuffer envelope = bufferAllocator.allocate(headerLength + frameCodec.getTrailerLength());
+        frameCodec.writeHeader(envelope, (int) count);
+        frameCodec.writeTrailer(envelope);
+        envelope.flip();
+
+        return new FileRegionFrame(new SharedBuffer(envelope, bufferAllocator), headerLength,
+                fileChannel, position, count, future);
+    }
+
+    @Override
+    public long getLength() {
+        return super.getLength() + count;
+    }
+
+    @Override
+    public long getRemaining() {
+        return getView().remaining() + (count - transferred) + trailer.remaining();
+    }
+
+    /**
+     * @return A new view of the whole header, including what was written already.
+     */
+    ByteBuffer getHeader() {
+        ByteBuffer header = getFrame();
+        header.limit(header.position() + headerLength);
+        return header;
+    }
+
+    /**
+     * @return A new view of the whole trailer, including what was written already.
+     */
+    ByteBuffer getTrailer() {
+        ByteBuffer trailer = getFrame();
+        trailer.position(trailer.position() + headerLength);
+        return trailer;
+    }
+
+    FileChannel getFileChannel() {
+        return fileChannel;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Writes as much of the frame as the channel will take.
+     * @param channel The channel to write to.
+     * @return <code>true</code> if the whole frame was written.
+     * @throws IOException Thrown when writing fails or the file ends before the region does.
+     */
+    boolean transferTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer header = getView();
+        while (header.hasRemaining())
+            if (channel.write(header) == 0)
+                return false;
+
+        while (transferred < count) {
+            long transferredBytes = fileChannel.transferTo(position + transferred, count - transferred, channel);
+            if (transferredBytes == 0) {
+                if (position + transferred >= fileChannel.size())
+                    throw new EOFException("The file ended " + (count - transferred) + " bytes before the region.");
+                return false;
+            }
+            transferred += transferredBytes;
+        }
+
+        while (trailer.hasRemaining())
+            if (channel.write(trailer) == 0)
+                return false;
+        return true;
+    }
+}
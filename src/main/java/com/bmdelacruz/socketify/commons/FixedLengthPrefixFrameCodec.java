@@ -0,0 +1,56 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Puts the length of each message before it as a 4-byte integer in network byte order.
+ */
+public class FixedLengthPrefixFrameCodec extends LengthPrefixFrameCodec {
+    private static final int PREFIX_LENGTH = 4;
+
+    @Override
+    public int getHeaderLength(int payloadLength) {
+        return PREFIX_LENGTH;
+    }
+
+    @Override
+    public void writeHeader(ByteBuffer destination, int payloadLength) {
+        destination.put((byte) (payloadLength >>> 24))
+                .put((byte) (payloadLength >>> 16))
+                .put((byte) (payloadLength >>> 8))
+                .put((byte) payloadLength);
+    }
+
+    @Override
+    public Decoder newDecoder() {
+        return new FixedLengthPrefixDecoder(getMaxFrameSize(), getMaxStreamedFrameSize());
+    }
+
+    private static class FixedLengthPrefixDecoder extends LengthPrefixDecoder {
+        private int length;
+        private int prefixBytesRead;
+
+        FixedLengthPrefixDecoder(int maxFrameSize, long maxStreamedFrameSize) {
+            super(maxFrameSize, maxStreamedFrameSize);
+        }
+
+        @Override
+        protected int readLength(ByteBuffer buffer) throws ProtocolException {
+            while (prefixBytesRead < PREFIX_LENGTH && buffer.hasRemaining()) {
+                length = (length << 8) | (buffer.get() & 0xFF);
+                prefixBytesRead++;
+            }
+            if (prefixBytesRead < PREFIX_LENGTH)
+                return -1;
+
+            int result = length;
+            length = 0;
+            prefixBytesRead = 0;
+
+            if (result < 0)
+                throw new ProtocolException("The length prefix " + result + " is negative.");
+            return result;
+        }
+    }
+}
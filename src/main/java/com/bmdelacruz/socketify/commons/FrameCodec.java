@@ -0,0 +1,256 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Describes how messages are framed on the stream. Both sides of a connection must
+ * use the same kind of codec.
+ */
+public abstract class FrameCodec {
+    /**
+     * The length of the largest message the decoders accept unless told otherwise.
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private long maxStreamedFrameSize = Long.MAX_VALUE;
+
+    /**
+     * Receives a message in chunks as its bytes arrive, instead of as a whole once all of
+     * them did.
+     */
+    public interface ChunkListener {
+        /**
+         * @param length The length of the message, or -1 when it is only known at its end.
+         */
+        void onMessageStart(int length);
+
+        /**
+         * @param chunk The next bytes of the message. The buffer is only valid during the
+         *              call, so whatever is needed later must be copied out of it.
+         */
+        void onChunk(ByteBuffer chunk);
+
+        void onMessageEnd();
+    }
+
+    /**
+     * Sets the length of the largest message the decoders accept whole. A decoder which
+     * comes upon a longer one throws a {@link ProtocolException}, which closes the
+     * connection, so a peer cannot make the other side hold an unbounded message. Only
+     * affects the decoders created afterwards. {@link #DEFAULT_MAX_FRAME_SIZE} by default,
+     * which is 16 MiB. Messages streamed in chunks are not held, so they are limited by
+     * {@link #setMaxStreamedFrameSize(long)} instead.
+     * @param maxFrameSize The limit in bytes.
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= 0)
+            throw new IllegalArgumentException("The maxFrameSize must be positive.");
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Sets the length of the largest message the decoders stream in chunks. A decoder
+     * which comes upon a longer one throws a {@link ProtocolException}, which closes the
+     * connection. Only affects the decoders created afterwards. Unlimited by default.
+     * @param maxStreamedFrameSize The limit in bytes.
+     */
+    public void setMaxStreamedFrameSize(long maxStreamedFrameSize) {
+        if (maxStreamedFrameSize <= 0)
+            throw new IllegalArgumentException("The maxStreamedFrameSize must be positive.");
+        this.maxStreamedFrameSize = maxStreamedFrameSize;
+    }
+
+    public long getMaxStreamedFrameSize() {
+        return maxStreamedFrameSize;
+    }
+
+    /**
+     * @param payloadLength The length of the message.
+     * @return The number of bytes written before the message.
+     */
+    public abstract int getHeaderLength(int payloadLength);
+
+    /**
+     * Writes the bytes which go before the message.
+     * @param destination The buffer to write to.
+     * @param payloadLength The length of the message.
+     */
+    public abstract void writeHeader(ByteBuffer destination, int payloadLength);
+
+    /**
+     * @return The number of bytes written after the message.
+     */
+    public int getTrailerLength() {
+        return 0;
+    }
+
+    /**
+     * Writes the bytes which go after the message.
+     * @param destination The buffer to write to.
+     */
+    public void writeTrailer(ByteBuffer destination) {
+    }
+
+    /**
+     * @return <code>true</code> if the frames carry the length of the message, in which
+     * case the message may contain any byte.
+     */
+    public abstract boolean isLengthPrefixed();
+
+    /**
+     * Creates the decoder for a single connection.
+     * @return A new decoder which holds the partial frame of the connection.
+     */
+    public abstract Decoder newDecoder();
+
+    /**
+     * Creates the decoder for a single connection, which takes the buffers it holds on to
+     * from the allocator. The decoder must be released once the connection ends.
+     * @param bufferAllocator The allocator to take the buffers from.
+     * @return A new decoder which holds the partial frame of the connection.
+     */
+    public Decoder newDecoder(BufferAllocator bufferAllocator) {
+        return newDecoder();
+    }
+
+    /**
+     * @param payloadLength The length of the message.
+     * @return The length of the whole frame.
+     */
+    public final int getEncodedLength(int payloadLength) {
+        return getHeaderLength(payloadLength) + payloadLength + getTrailerLength();
+    }
+
+    /**
+     * Writes the whole frame of the message.
+     * @param payload The message.
+     * @param destination The buffer to write to. It must have at least
+     *                    {@link #getEncodedLength(int)} bytes remaining.
+     */
+    public final void encode(byte[] payload, ByteBuffer destination) {
+        writeHeader(destination, payload.length);
+        destination.put(payload);
+        writeTrailer(destination);
+    }
+
+    /**
+     * Writes the whole frame of the message.
+     * @param payload The message, as the remaining bytes of the buffer. Its position is
+     *                left alone.
+     * @param destination The buffer to write to. It must have at least
+     *                    {@link #getEncodedLength(int)} bytes remaining.
+     */
+    public final void encode(ByteBuffer payload, ByteBuffer destination) {
+        writeHeader(destination, payload.remaining());
+        destination.put(payload.duplicate());
+        writeTrailer(destination);
+    }
+
+    public static abstract class Decoder {
+        private final int maxFrameSize;
+        private final long maxStreamedFrameSize;
+
+        protected Decoder() {
+            this(DEFAULT_MAX_FRAME_SIZE);
+        }
+
+        /**
+         * @param maxFrameSize The length of the largest message to accept whole.
+         */
+        protected Decoder(int maxFrameSize) {
+            this(maxFrameSize, Long.MAX_VALUE);
+        }
+
+        /**
+         * @param maxFrameSize The length of the largest message to accept whole.
+         * @param maxStreamedFrameSize The length of the largest message to stream.
+         */
+        protected Decoder(int maxFrameSize, long maxStreamedFrameSize) {
+            this.maxFrameSize = maxFrameSize;
+            this.maxStreamedFrameSize = maxStreamedFrameSize;
+        }
+
+        /**
+         * @param frameSize The length of the message so far.
+         * @throws ProtocolException Thrown when the message is longer than allowed.
+         */
+        protected final void checkFrameSize(long frameSize) throws ProtocolException {
+            if (frameSize > maxFrameSize)
+                throw new ProtocolException("The message is longer than the maximum of " + maxFrameSize + " bytes.");
+        }
+
+        /**
+         * @param frameSize The length of the streamed message so far.
+         * @throws ProtocolException Thrown when the message is longer than allowed.
+         */
+        protected final void checkStreamedFrameSize(long frameSize) throws ProtocolException {
+            if (frameSize > maxStreamedFrameSize)
+                throw new ProtocolException("The streamed message is longer than the maximum of "
+                        + maxStreamedFrameSize + " bytes.");
+        }
+
+        /**
+         * Consumes the remaining bytes of the buffer. Every message completed by them is
+         * added to the list while the bytes of an incomplete one are kept for later.
+         * @param buffer The bytes which were received.
+         * @param messages Where the completed messages are added.
+         * @throws IOException Thrown when the bytes do not form a valid frame.
+         */
+        public abstract void decode(ByteBuffer buffer, List<byte[]> messages) throws IOException;
+
+        /**
+         * Consumes the remaining bytes of the buffer, handing them to the listener as they
+         * are without holding on to any of them. A decoder must be used either this way or
+         * the other for the whole life of its connection.
+         * @param buffer The bytes which were received.
+         * @param chunkListener Where the messages are streamed to.
+         * @throws IOException Thrown when the bytes do not form a valid frame.
+         */
+        public abstract void decode(ByteBuffer buffer, ChunkListener chunkListener) throws IOException;
+
+        /**
+         * Lends the buffer which the next bytes should be read into. Its room starts right
+         * after the partial frame which the decoder holds, so the bytes never have to be
+         * copied there. The bytes which were read are then decoded by
+         * {@link #decodeReadBuffer(ByteBuffer, List)}.
+         * @param minWritable The least room the buffer must have.
+         * @return The buffer to read into, or null when the bytes are to be passed to
+         * {@link #decode(ByteBuffer, List)} instead.
+         */
+        public ByteBuffer getReadBuffer(int minWritable) {
+            return null;
+        }
+
+        /**
+         * Decodes the bytes which were read into the buffer from {@link #getReadBuffer(int)}.
+         * By default they are passed to {@link #decode(ByteBuffer, List)} and the buffer is
+         * cleared for the next read, which suits a decoder that lends a buffer it owns
+         * without keeping its partial frame there.
+         * @param readBuffer The buffer which was lent, positioned after the bytes read.
+         * @param messages Where the completed messages are added.
+         * @throws IOException Thrown when the bytes do not form a valid frame.
+         */
+        public void decodeReadBuffer(ByteBuffer readBuffer, List<byte[]> messages) throws IOException {
+            readBuffer.flip();
+            try {
+                decode(readBuffer, messages);
+            } finally {
+                readBuffer.clear();
+            }
+        }
+
+        /**
+         * Gives back the buffers the decoder holds on to. Called once the connection ended.
+         */
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds marker bytes eight bytes at a time. Each word read from the buffer is compared
+ * against the marker repeated in every byte lane, and the lanes that matched are found
+ * with a carry-free bit trick, so there are no false positives to re-check.
+ */
+public final class FrameScanner {
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private FrameScanner() {
+    }
+
+    /**
+     * Finds the first occurrence of the marker in the buffer without touching its position.
+     * @param buffer The buffer to scan.
+     * @param from The absolute index at which to start, inclusive.
+     * @param to The absolute index at which to stop, exclusive.
+     * @param marker The byte to look for.
+     * @return The absolute index of the marker, or -1 if it is not in the range.
+     */
+    public static int indexOf(ByteBuffer buffer, int from, int to, byte marker) {
+        long pattern = (marker & 0xFFL) * ONES;
+        boolean isBigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+
+        int i = from;
+        for (; i + Long.SIZE / Byte.SIZE <= to; i += Long.SIZE / Byte.SIZE) {
+            long word = buffer.getLong(i) ^ pattern;
+            long matches = ~(((word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | word | LOW_SEVEN_BITS);
+            if (matches != 0) {
+                int lane = isBigEndian
+                        ? Long.numberOfLeadingZeros(matches) >>> 3
+                        : Long.numberOfTrailingZeros(matches) >>> 3;
+                return i + lane;
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) == marker)
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,19 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocates a new heap buffer every time and leaves released ones to the garbage collector.
+ */
+public class HeapBufferAllocator implements BufferAllocator {
+    public static final HeapBufferAllocator INSTANCE = new HeapBufferAllocator();
+
+    @Override
+    public ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocate(capacity);
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+    }
+}
@@ -0,0 +1,108 @@
+package com.bmdelacruz.socketify.commons;
+
+/**
+ * Watches a connection for idleness. Reads and writes only note the time, and a single
+ * timer per connection is kept on the timing wheel for the earliest moment the
+ * connection could become idle. When it fires, the monitor works out which kinds of
+ * idleness were reached and schedules itself again for the next possible one, so a busy
+ * connection costs one timer per timeout period rather than one per read or write.
+ * Must only be used by the owner of the timing wheel.
+ */
+public abstract class IdleMonitor {
+    private final IdleTimeouts idleTimeouts;
+    private final TimingWheel timingWheel;
+    private final Runnable check;
+
+    private long lastReadTime;
+    private long lastWriteTime;
+    private final long[] lastIdleTimes;
+    private TimingWheel.Timeout timeout;
+    private boolean isStopped;
+
+    public IdleMonitor(IdleTimeouts idleTimeouts, TimingWheel timingWheel) {
+        this.idleTimeouts = idleTimeouts;
+        this.timingWheel = timingWheel;
+        this.lastIdleTimes = new long[IdleTimeouts.State.values().length];
+        this.check = new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        };
+    }
+
+    /**
+     * Starts watching, counting the connection as active from now on.
+     */
+    public void start() {
+        long now = timingWheel.getCurrentTime();
+        lastReadTime = now;
+        lastWriteTime = now;
+        for (int i = 0; i < lastIdleTimes.length; i++)
+            lastIdleTimes[i] = now;
+        check();
+    }
+
+    /**
+     * Stops watching. No more idle events follow, even from within one.
+     */
+    public void stop() {
+        isStopped = true;
+        if (timeout != null)
+            timeout.cancel();
+    }
+
+    public void onRead() {
+        lastReadTime = timingWheel.getCurrentTime();
+    }
+
+    public void onWrite() {
+        lastWriteTime = timingWheel.getCurrentTime();
+    }
+
+    private void check() {
+        if (isStopped)
+            return;
+
+        long now = timingWheel.getCurrentTime();
+        long nextCheckDelay = Long.MAX_VALUE;
+        for (IdleTimeouts.State state : IdleTimeouts.State.values()) {
+            long timeoutNanos = idleTimeouts.getTimeoutNanos(state);
+            if (timeoutNanos == 0)
+                continue;
+
+            // An idle event restarts the count, so that a heartbeat is sent once per
+            // timeout for as long as the connection stays idle.
+            long idleSince = Math.max(getLastActiveTime(state), lastIdleTimes[state.ordinal()]);
+            if (now - idleSince >= timeoutNanos) {
+                lastIdleTimes[state.ordinal()] = now;
+                onIdle(state, idleTimeouts.getAction(state));
+                if (isStopped)
+                    return;
+                idleSince = now;
+            }
+            nextCheckDelay = Math.min(nextCheckDelay, idleSince + timeoutNanos - now);
+        }
+
+        if (nextCheckDelay != Long.MAX_VALUE)
+            timeout = timingWheel.schedule(check, nextCheckDelay);
+    }
+
+    private long getLastActiveTime(IdleTimeouts.State state) {
+        switch (state) {
+            case READER_IDLE:
+                return lastReadTime;
+            case WRITER_IDLE:
+                return lastWriteTime;
+            default:
+                return Math.max(lastReadTime, lastWriteTime);
+        }
+    }
+
+    /**
+     * For when the connection has been idle for the state's timeout.
+     * @param state The kind of idleness which was reached.
+     * @param action What was configured to be done about it.
+     */
+    protected abstract void onIdle(IdleTimeouts.State state, IdleTimeouts.Action action);
+}
@@ -0,0 +1,92 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Which kinds of idleness are watched on each connection, after how long a connection
+ * counts as idle, and what is done about it.
+ */
+public class IdleTimeouts {
+    public enum State {
+        /**
+         * Nothing was read from the connection.
+         */
+        READER_IDLE,
+        /**
+         * Nothing was written to the connection.
+         */
+        WRITER_IDLE,
+        /**
+         * Nothing was read from or written to the connection.
+         */
+        ALL_IDLE
+    }
+
+    public enum Action {
+        /**
+         * The connection is closed as failed.
+         */
+        DISCONNECT,
+        /**
+         * The heartbeat message is sent, and sent again each time the connection stays
+         * idle for as long once more.
+         */
+        HEARTBEAT
+    }
+
+    private final long[] timeoutNanos;
+    private final Action[] actions;
+
+    public IdleTimeouts() {
+        timeoutNanos = new long[State.values().length];
+        actions = new Action[State.values().length];
+    }
+
+    /**
+     * @param state The kind of idleness to watch.
+     * @param timeoutMillis How long the connection must be idle for, or 0 to stop watching.
+     * @param action What is done once it is.
+     */
+    public void set(State state, long timeoutMillis, Action action) {
+        if (state == null)
+            throw new IllegalArgumentException("The state cannot be null.");
+        if (action == null)
+            throw new IllegalArgumentException("The action cannot be null.");
+        if (timeoutMillis < 0)
+            throw new IllegalArgumentException("The timeoutMillis cannot be negative.");
+
+        timeoutNanos[state.ordinal()] = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        actions[state.ordinal()] = action;
+    }
+
+    /**
+     * @return The timeout of the state in nanoseconds, or 0 when it is not watched.
+     */
+    public long getTimeoutNanos(State state) {
+        return timeoutNanos[state.ordinal()];
+    }
+
+    public Action getAction(State state) {
+        return actions[state.ordinal()];
+    }
+
+    /**
+     * @return <code>true</code> if any kind of idleness is watched.
+     */
+    public boolean isEnabled() {
+        for (long timeout : timeoutNanos)
+            if (timeout > 0)
+                return true;
+        return false;
+    }
+
+    /**
+     * @return <code>true</code> if a watched kind of idleness is answered with a heartbeat.
+     */
+    public boolean hasHeartbeat() {
+        for (State state : State.values())
+            if (timeoutNanos[state.ordinal()] > 0 && actions[state.ordinal()] == Action.HEARTBEAT)
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,110 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Puts the length of each message before it. Since the length is known before the message
+ * arrives, the decoder copies the message straight into an array and never looks at its
+ * bytes.
+ */
+public abstract class LengthPrefixFrameCodec extends FrameCodec {
+    @Override
+    public boolean isLengthPrefixed() {
+        return true;
+    }
+
+    protected static abstract class LengthPrefixDecoder extends Decoder {
+        /**
+         * The most room given to a message before its bytes arrive. The length comes from
+         * the peer, so a larger message gets its array grown as its bytes do, and a peer
+         * which only sends a prefix cannot make the decoder hold much.
+         */
+        private static final int MAX_INITIAL_CAPACITY = 64 * 1024;
+
+        private byte[] message;
+        private int messageLength;
+        private int messageBytesRead;
+        private int streamedBytesLeft = -1;
+
+        protected LengthPrefixDecoder() {
+        }
+
+        protected LengthPrefixDecoder(int maxFrameSize) {
+            super(maxFrameSize);
+        }
+
+        protected LengthPrefixDecoder(int maxFrameSize, long maxStreamedFrameSize) {
+            super(maxFrameSize, maxStreamedFrameSize);
+        }
+
+        /**
+         * Consumes the bytes of the length prefix.
+         * @param buffer The bytes which were received.
+         * @return The length of the next message, or -1 if the prefix is still incomplete.
+         * @throws ProtocolException Thrown when the prefix is invalid.
+         */
+        protected abstract int readLength(ByteBuffer buffer) throws ProtocolException;
+
+        @Override
+        public final void decode(ByteBuffer buffer, List<byte[]> messages) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (message == null) {
+                    int length = readLength(buffer);
+                    if (length == -1)
+                        return;
+
+                    checkFrameSize(length);
+                    message = new byte[Math.min(length, MAX_INITIAL_CAPACITY)];
+                    messageLength = length;
+                    messageBytesRead = 0;
+                }
+
+                int count = Math.min(messageLength - messageBytesRead, buffer.remaining());
+                if (messageBytesRead + count > message.length) {
+                    // Doubling keeps the copies linear in the length of the message, and
+                    // the last growth stops at its length so the array can be passed on.
+                    int capacity = Math.max(messageBytesRead + count, message.length * 2);
+                    message = Arrays.copyOf(message, Math.min(capacity, messageLength));
+                }
+                buffer.get(message, messageBytesRead, count);
+                messageBytesRead += count;
+
+                if (messageBytesRead == messageLength) {
+                    messages.add(message);
+                    message = null;
+                }
+            }
+        }
+
+        @Override
+        public final void decode(ByteBuffer buffer, ChunkListener chunkListener) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (streamedBytesLeft == -1) {
+                    int length = readLength(buffer);
+                    if (length == -1)
+                        return;
+
+                    checkStreamedFrameSize(length);
+                    chunkListener.onMessageStart(length);
+                    streamedBytesLeft = length;
+                }
+
+                int count = Math.min(streamedBytesLeft, buffer.remaining());
+                if (count > 0) {
+                    chunkListener.onChunk(Utils.sliceOf(buffer, buffer.position(), count));
+                    buffer.position(buffer.position() + count);
+                    streamedBytesLeft -= count;
+                }
+
+                if (streamedBytesLeft == 0) {
+                    chunkListener.onMessageEnd();
+                    streamedBytesLeft = -1;
+                }
+            }
+        }
+    }
+}
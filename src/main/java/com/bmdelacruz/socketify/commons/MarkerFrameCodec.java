@@ -0,0 +1,183 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Ends each message with a marker byte. The messages cannot contain the marker.
+ */
+public class MarkerFrameCodec extends FrameCodec {
+    public static final byte DEFAULT_MARKER_BYTE = (byte) 0x00;
+
+    private final byte markerByte;
+
+    public MarkerFrameCodec() {
+        this(DEFAULT_MARKER_BYTE);
+    }
+
+    public MarkerFrameCodec(byte markerByte) {
+        this.markerByte = markerByte;
+    }
+
+    /**
+     * @return The marker that signifies the end of the data.
+     */
+    public byte getMarkerByte() {
+        return markerByte;
+    }
+
+    @Override
+    public int getHeaderLength(int payloadLength) {
+        return 0;
+    }
+
+    @Override
+    public void writeHeader(ByteBuffer destination, int payloadLength) {
+    }
+
+    @Override
+    public int getTrailerLength() {
+        return 1;
+    }
+
+    @Override
+    public void writeTrailer(ByteBuffer destination) {
+        destination.put(markerByte);
+    }
+
+    @Override
+    public boolean isLengthPrefixed() {
+        return false;
+    }
+
+    @Override
+    public Decoder newDecoder() {
+        return newDecoder(HeapBufferAllocator.INSTANCE);
+    }
+
+    @Override
+    public Decoder newDecoder(BufferAllocator bufferAllocator) {
+        return new MarkerDecoder(getMaxFrameSize(), getMaxStreamedFrameSize(), bufferAllocator);
+    }
+
+    /**
+     * Keeps the bytes of the partial frame in an accumulation buffer. When the bytes are
+     * read straight into it, a message which spans several reads is copied once, into its
+     * array, instead of once per read and once more to join the pieces.
+     */
+    private class MarkerDecoder extends Decoder {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private final AccumulationBuffer pending;
+        private long streamedLength;
+        private boolean isStreamingMessage;
+
+        MarkerDecoder(int maxFrameSize, long maxStreamedFrameSize, BufferAllocator bufferAllocator) {
+            super(maxFrameSize, maxStreamedFrameSize);
+            pending = new AccumulationBuffer(bufferAllocator, INITIAL_CAPACITY);
+        }
+
+        @Override
+        public void decode(ByteBuffer buffer, List<byte[]> messages) throws ProtocolException {
+            int limit = buffer.limit();
+            int start = buffer.position();
+            int end;
+
+            while ((end = FrameScanner.indexOf(buffer, start, limit, markerByte)) != -1) {
+                // The end of a message is on this buffer. Any pending data belongs
+                // to the first of these messages.
+
+                checkFrameSize(pending.readableBytes() + end - start);
+
+                if (pending.readableBytes() == 0) {
+                    messages.add(Utils.extractBytesFrom(buffer, start, end - start));
+                } else {
+                    pending.append(buffer, start, end - start);
+                    ByteBuffer held = pending.readableBuffer();
+                    messages.add(Utils.extractBytesFrom(held, held.position(), held.remaining()));
+                    pending.release();
+                }
+                start = end + 1;
+            }
+
+            if (start < limit) {
+                // The end of the last message is on a different read.
+
+                checkFrameSize(pending.readableBytes() + limit - start);
+                pending.append(buffer, start, limit - start);
+            }
+            buffer.position(limit);
+        }
+
+        @Override
+        public ByteBuffer getReadBuffer(int minWritable) {
+            return pending.writableBuffer(minWritable);
+        }
+
+        @Override
+        public void decodeReadBuffer(ByteBuffer readBuffer, List<byte[]> messages) throws ProtocolException {
+            // The read buffer is the writable end of the pending bytes, so they are
+            // decoded in place. Whatever was held before this read was already scanned for the marker.
+            int scannedBytes = pending.readableBytes();
+            pending.commitWritten();
+
+            ByteBuffer buffer = pending.readableBuffer();
+            int limit = buffer.limit();
+            int start = buffer.position();
+            int from = start + scannedBytes;
+            int end;
+
+            while ((end = FrameScanner.indexOf(buffer, from, limit, markerByte)) != -1) {
+                checkFrameSize(end - start);
+
+                messages.add(Utils.extractBytesFrom(buffer, start, end - start));
+                start = end + 1;
+                from = start;
+            }
+
+            checkFrameSize(limit - start);
+            pending.consumeTo(start);
+        }
+
+        @Override
+        public void release() {
+            pending.release();
+        }
+
+        @Override
+        public void decode(ByteBuffer buffer, ChunkListener chunkListener) throws ProtocolException {
+            int limit = buffer.limit();
+            int start = buffer.position();
+            int end;
+
+            while ((end = FrameScanner.indexOf(buffer, start, limit, markerByte)) != -1) {
+                streamChunk(buffer, start, end - start, chunkListener);
+                chunkListener.onMessageEnd();
+
+                isStreamingMessage = false;
+                streamedLength = 0;
+                start = end + 1;
+            }
+
+            if (start < limit) {
+                streamChunk(buffer, start, limit - start, chunkListener);
+            }
+            buffer.position(limit);
+        }
+
+        private void streamChunk(ByteBuffer buffer, int offset, int length, ChunkListener chunkListener)
+                throws ProtocolException {
+            checkStreamedFrameSize(streamedLength + length);
+
+            if (!isStreamingMessage) {
+                chunkListener.onMessageStart(-1);
+                isStreamingMessage = true;
+            }
+            if (length > 0) {
+                chunkListener.onChunk(Utils.sliceOf(buffer, offset, length));
+                streamedLength += length;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An encoded frame waiting to be written to one connection. The bytes belong to a shared
+ * buffer which may be queued for other connections too, so each connection writes
+ * through its own view and releases its reference once the view is drained.
+ */
+public class OutboundFrame {
+    private final SharedBuffer sharedBuffer;
+    private final ByteBuffer view;
+    private final long length;
+    private final WriteFuture future;
+
+    public OutboundFrame(SharedBuffer sharedBuffer) {
+        this(sharedBuffer, null);
+    }
+
+    /**
+     * @param sharedBuffer The frame. The new instance owns one reference to it.
+     * @param future The future to complete once the frame is written, or null.
+     */
+    public OutboundFrame(SharedBuffer sharedBuffer, WriteFuture future) {
+        this.sharedBuffer = sharedBuffer;
+        this.view = sharedBuffer.view();
+        this.length = view.remaining();
+        this.future = future;
+    }
+
+    public ByteBuffer getView() {
+        return view;
+    }
+
+    /**
+     * @return The number of bytes the frame adds to the depth of the queue.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return The number of bytes which are not written yet.
+     */
+    public long getRemaining() {
+        return view.remaining();
+    }
+
+    /**
+     * @return A new view of the whole frame, including what was written already.
+     */
+    ByteBuffer getFrame() {
+        return sharedBuffer.view();
+    }
+
+    WriteFuture getFuture() {
+        return future;
+    }
+
+    /**
+     * Releases the frame without completing its future, once something else took the
+     * future over.
+     */
+    void release() {
+        sharedBuffer.release();
+    }
+
+    void succeed() {
+        sharedBuffer.release();
+        if (future != null)
+            future.complete();
+    }
+
+    /**
+     * Releases the frame and fails its future. Use this for a frame which could not be
+     * queued. The queue takes care of the frames it holds.
+     */
+    public void fail(Throwable cause) {
+        sharedBuffer.release();
+        if (future != null)
+            future.fail(cause);
+    }
+}
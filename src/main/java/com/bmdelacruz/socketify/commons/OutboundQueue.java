@@ -0,0 +1,421 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The frames waiting to be written to one connection. Any thread may add frames without
+ * locking while only the thread which owns the connection writes them out. A frame
+ * counts towards the depth of the queue from the moment it is added until it has been
+ * fully written or discarded.
+ *
+ * The queue may be given a spool. Once the frames held in memory pass the spool's
+ * watermark, the frames added next go to the spool instead, until the spool is written
+ * out. A frame in the spool still counts towards the depth of the queue.
+ */
+public class OutboundQueue {
+    public static final int MAX_GATHERED_BUFFERS = 64;
+    public static final int MAX_GATHERED_BYTES = 64 * 1024;
+
+    private final ConcurrentLinkedQueue<OutboundFrame> pendingFrames;
+    private final ArrayDeque<OutboundFrame> gatheredFrames;
+    private final AtomicLong queuedBytes;
+    private final AtomicInteger queuedFrames;
+    private final AtomicLong sentBytes;
+    private final AtomicLong sentFrames;
+
+    private static final OutboundFrame SPOOL_MARKER =
+            new OutboundFrame(new SharedBuffer(ByteBuffer.allocate(0), HeapBufferAllocator.INSTANCE));
+
+    private OutboundSpool spool;
+    private long spoolWatermark;
+    private boolean isSpooling;
+    private boolean isClosed;
+    private OutboundSpool replaySpool;
+
+    private volatile int blockedSenders;
+
+    public OutboundQueue() {
+        pendingFrames = new ConcurrentLinkedQueue<>();
+        gatheredFrames = new ArrayDeque<>();
+        queuedBytes = new AtomicLong();
+        queuedFrames = new AtomicInteger();
+        sentBytes = new AtomicLong();
+        sentFrames = new AtomicLong();
+    }
+
+    /**
+     * Lets the frames go to the spool once more than the watermark is held in memory.
+     * Adding frames then takes a lock. Must be called before any frame is added.
+     * @param spool The spool to use.
+     * @param spoolWatermark The number of bytes which may be held in memory.
+     */
+    public void setSpool(OutboundSpool spool, long spoolWatermark) {
+        if (spool == null)
+            throw new IllegalArgumentException("The spool cannot be null.");
+        if (spoolWatermark < 0)
+            throw new IllegalArgumentException("The spoolWatermark cannot be negative.");
+
+        this.spool = spool;
+        this.spoolWatermark = spoolWatermark;
+    }
+
+    public void add(OutboundFrame outboundFrame) {
+        queuedBytes.addAndGet(outboundFrame.getLength());
+        queuedFrames.incrementAndGet();
+
+        if (spool == null) {
+            pendingFrames.add(outboundFrame);
+            return;
+        }
+
+        // Until the spool is written out, the marker stays last in memory and every new
+        // frame goes after it, into the spool.
+        synchronized (spool) {
+            if (isClosed) {
+                complete(outboundFrame, new ClosedChannelException());
+                return;
+            }
+
+            if (!isSpooling && queuedBytes.get() - spool.getUnreadBytes() <= spoolWatermark) {
+                pendingFrames.add(outboundFrame);
+                return;
+            }
+
+            try {
+                spool.append(outboundFrame);
+            } catch (IOException e) {
+                complete(outboundFrame, e);
+                return;
+            }
+
+            if (!isSpooling) {
+                isSpooling = true;
+                pendingFrames.add(SPOOL_MARKER);
+            }
+        }
+    }
+
+    /**
+     * Writes the frames of the spool before any other frame which is not being written
+     * yet. Use this to deliver what was kept for the connection's session while it was
+     * away. Must only be called by the owner of the connection, at most once.
+     * @param retainedSpool The spool to write. The queue takes it over.
+     */
+    public void replay(OutboundSpool retainedSpool) {
+        if (replaySpool != null)
+            throw new IllegalStateException("A spool is already being replayed.");
+
+        queuedBytes.addAndGet(retainedSpool.getUnreadBytes());
+        queuedFrames.addAndGet(retainedSpool.getUnreadFrames());
+        replaySpool = retainedSpool;
+    }
+
+    /**
+     * Writes as much as the channel will take using gathering writes. Each write takes
+     * at most as many frames as there are gathered buffers, or about
+     * {@link #MAX_GATHERED_BYTES}, from the queue. The rest stay queued, where they can
+     * still be dropped. A file region frame, and the spool, are written on their own once
+     * the frames before them are out. Must only be called by the owner of the connection.
+     * @param channel The channel to write to.
+     * @param gatheredBuffers The scratch array to gather the frames in.
+     * @return <code>true</code> if every frame was written, or <code>false</code> if the
+     * channel could not take everything.
+     * @throws IOException Thrown when writing fails.
+     */
+    public boolean writeTo(GatheringByteChannel channel, ByteBuffer[] gatheredBuffers) throws IOException {
+        while (true) {
+            if (replaySpool != null && gatheredFrames.isEmpty()) {
+                if (!transferSpool(replaySpool, channel))
+                    return false;
+
+                replaySpool = null;
+            }
+
+            long gatheredBytes = 0;
+            for (OutboundFrame outboundFrame : gatheredFrames)
+                gatheredBytes += outboundFrame.getRemaining();
+
+            OutboundFrame pendingFrame;
+            while (gatheredFrames.size() < gatheredBuffers.length && gatheredBytes < MAX_GATHERED_BYTES
+                    && !isWrittenAlone(gatheredFrames.peekLast())
+                    && (pendingFrame = pendingFrames.poll()) != null) {
+                gatheredFrames.add(pendingFrame);
+                gatheredBytes += pendingFrame.getLength();
+            }
+
+            if (gatheredFrames.isEmpty())
+                return true;
+
+            if (gatheredFrames.peekFirst() == SPOOL_MARKER) {
+                if (!transferSpool(spool, channel))
+                    return false;
+
+                synchronized (spool) {
+                    if (spool.isEmpty()) {
+                        isSpooling = false;
+                        gatheredFrames.pollFirst();
+                    }
+                }
+                continue;
+            }
+
+            if (gatheredFrames.peekFirst() instanceof FileRegionFrame) {
+                if (!((FileRegionFrame) gatheredFrames.peekFirst()).transferTo(channel))
+                    return false;
+
+                OutboundFrame fileRegionFrame = gatheredFrames.pollFirst();
+                complete(fileRegionFrame, null);
+                addSent(fileRegionFrame.getLength(), 1);
+                continue;
+            }
+
+            int count = 0;
+            for (OutboundFrame outboundFrame : gatheredFrames) {
+                if (count == gatheredBuffers.length || isWrittenAlone(outboundFrame)) break;
+                gatheredBuffers[count++] = outboundFrame.getView();
+            }
+
+            long writtenBytes;
+            try {
+                writtenBytes = channel.write(gatheredBuffers, 0, count);
+            } finally {
+                Arrays.fill(gatheredBuffers, 0, count, null);
+            }
+
+            int completedFrames = 0;
+            while (!gatheredFrames.isEmpty() && !isWrittenAlone(gatheredFrames.peekFirst())
+                    && !gatheredFrames.peekFirst().getView().hasRemaining()) {
+                complete(gatheredFrames.pollFirst(), null);
+                completedFrames++;
+            }
+            addSent(writtenBytes, completedFrames);
+
+            if (writtenBytes == 0)
+                return false;
+        }
+    }
+
+    /**
+     * Writes as much of the spool as the channel will take and takes the written frames
+     * off the depth of the queue.
+     * @return <code>true</code> if the spool is empty now.
+     */
+    private boolean transferSpool(OutboundSpool outboundSpool, GatheringByteChannel channel) throws IOException {
+        long transferredBytes;
+        int transferredFrames;
+        boolean isEmpty;
+        synchronized (outboundSpool) {
+            long unreadBytes = outboundSpool.getUnreadBytes();
+            int unreadFrames = outboundSpool.getUnreadFrames();
+            isEmpty = outboundSpool.transferTo(channel);
+            transferredBytes = unreadBytes - outboundSpool.getUnreadBytes();
+            transferredFrames = unreadFrames - outboundSpool.getUnreadFrames();
+        }
+
+        queuedBytes.addAndGet(-transferredBytes);
+        queuedFrames.addAndGet(-transferredFrames);
+        addSent(transferredBytes, transferredFrames);
+        notifyBlockedSenders();
+        return isEmpty;
+    }
+
+    /**
+     * Only the owner of the connection writes, so the totals are stored without the cost
+     * of an atomic add.
+     */
+    private void addSent(long bytes, int frames) {
+        sentBytes.lazySet(sentBytes.get() + bytes);
+        if (frames > 0)
+            sentFrames.lazySet(sentFrames.get() + frames);
+    }
+
+    private static boolean isWrittenAlone(OutboundFrame outboundFrame) {
+        return outboundFrame == SPOOL_MARKER || outboundFrame instanceof FileRegionFrame;
+    }
+
+    public boolean hasPendingFrames() {
+        return !pendingFrames.isEmpty() || replaySpool != null;
+    }
+
+    /**
+     * @return <code>true</code> if adding a frame of the given length would go past the
+     * limit. A frame always fits in an empty queue. Senders which check at the same time
+     * may each see room and all add their frames, so the limit can be passed by up to a
+     * frame per concurrent sender.
+     */
+    public boolean isFull(long length, long limit) {
+        long bytes = queuedBytes.get();
+        return bytes > 0 && bytes + length > limit;
+    }
+
+    /**
+     * Discards the oldest frames which are not being written yet until a frame of the
+     * given length fits or there is nothing left to discard. May be called from any
+     * thread while the owner writes.
+     */
+    public void dropOldest(long length, long limit) {
+        OutboundFrame outboundFrame;
+        while (isFull(length, limit) && (outboundFrame = pendingFrames.peek()) != null) {
+            // The frames in the spool are never dropped. The marker is the last frame in
+            // memory while they wait, so the frames before it are all there is to drop.
+            // It is never taken off the queue here, or the owner could find the queue
+            // empty and stop writing while the spool still holds frames.
+            if (outboundFrame == SPOOL_MARKER)
+                break;
+
+            // The owner may have taken the frame to write it since it was peeked, in
+            // which case it is not dropped and the next one is looked at.
+            if (pendingFrames.remove(outboundFrame))
+                complete(outboundFrame, new IOException("The message was dropped to make room for newer ones."));
+        }
+    }
+
+    /**
+     * Waits until a frame of the given length fits or the connection is gone.
+     */
+    public void awaitCapacity(long length, long limit, SelectionKey key) throws InterruptedException {
+        synchronized (this) {
+            blockedSenders++;
+            try {
+                while (isFull(length, limit) && key.isValid())
+                    wait();
+            } finally {
+                blockedSenders--;
+            }
+        }
+    }
+
+    /**
+     * Discards the frames which are not being written yet and wakes up the blocked
+     * senders. May be called from any thread.
+     */
+    public void discardPending(Throwable cause) {
+        OutboundFrame outboundFrame;
+        while ((outboundFrame = pendingFrames.poll()) != null)
+            if (outboundFrame != SPOOL_MARKER)
+                complete(outboundFrame, cause);
+
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Discards every frame, including the one being written. Must only be called by the
+     * owner of the connection.
+     */
+    public void discardAll(Throwable cause) {
+        if (spool != null) {
+            synchronized (spool) {
+                isClosed = true;
+                spool.discard(cause);
+            }
+        }
+        if (replaySpool != null) {
+            replaySpool.discard(cause);
+            replaySpool = null;
+        }
+
+        OutboundFrame outboundFrame;
+        while ((outboundFrame = gatheredFrames.pollFirst()) != null)
+            if (outboundFrame != SPOOL_MARKER)
+                complete(outboundFrame, cause);
+        discardPending(cause);
+    }
+
+    /**
+     * Moves every frame which is not fully written into the given spool, in the order they
+     * would have been written, so that they can be replayed to a later connection. A frame
+     * which was partly written is moved from its start. Frames added afterwards are
+     * discarded. Must only be called by the owner of the connection.
+     * @param target The spool to move the frames to.
+     * @param cause Why the frames which cannot be moved are discarded.
+     */
+    public void moveTo(OutboundSpool target, Throwable cause) {
+        if (spool != null) {
+            synchronized (spool) {
+                isClosed = true;
+            }
+        }
+
+        try {
+            if (replaySpool != null) {
+                target.appendUnread(replaySpool);
+                replaySpool = null;
+            }
+
+            OutboundFrame outboundFrame;
+            while ((outboundFrame = gatheredFrames.peekFirst()) != null
+                    || (outboundFrame = pendingFrames.peek()) != null) {
+                if (outboundFrame == SPOOL_MARKER)
+                    target.appendUnread(spool);
+                else
+                    target.append(outboundFrame);
+
+                if (!gatheredFrames.isEmpty())
+                    gatheredFrames.pollFirst();
+                else
+                    pendingFrames.poll();
+            }
+        } catch (IOException e) {
+            discardAll(e);
+        }
+
+        // Discarding takes each frame off the depth, so the depth is only cleared of the
+        // moved frames afterwards, or it would go negative.
+        discardPending(cause);
+        queuedBytes.set(0);
+        queuedFrames.set(0);
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public int getQueuedFrames() {
+        return queuedFrames.get();
+    }
+
+    /**
+     * @return The number of bytes written to the channel so far.
+     */
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * @return The number of frames fully written to the channel so far.
+     */
+    public long getSentFrames() {
+        return sentFrames.get();
+    }
+
+    private void complete(OutboundFrame outboundFrame, Throwable failure) {
+        queuedBytes.addAndGet(-outboundFrame.getLength());
+        queuedFrames.decrementAndGet();
+
+        if (failure == null)
+            outboundFrame.succeed();
+        else
+            outboundFrame.fail(failure);
+
+        notifyBlockedSenders();
+    }
+
+    private void notifyBlockedSenders() {
+        if (blockedSenders > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Frames of one connection kept in memory-mapped segment files instead of the heap. The
+ * frames are copied into the mapped segments as they are added and go from the segment
+ * files to the socket with {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+ * so neither way passes them through the heap. A segment file is deleted once every frame
+ * in it is written, and the spool holds no file while it is empty.
+ *
+ * Any thread may use it. The futures of the spooled frames complete once the frames are
+ * written out of the spool.
+ */
+public class OutboundSpool {
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private final File directory;
+    private final int segmentSize;
+
+    private final ArrayDeque<Segment> segments;
+    private final LongQueue frameEnds;
+    private final ArrayDeque<SpooledFuture> futures;
+
+    private long writePosition;
+    private long readPosition;
+    private long frameStart;
+
+    public OutboundSpool(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory The directory to create the segment files in.
+     * @param segmentSize The size of each segment file.
+     */
+    public OutboundSpool(File directory, int segmentSize) {
+        if (directory == null)
+            throw new IllegalArgumentException("The directory cannot be null.");
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("The segmentSize must be positive.");
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        segments = new ArrayDeque<>();
+        frameEnds = new LongQueue();
+        futures = new ArrayDeque<>();
+    }
+
+    /**
+     * Copies the whole frame into the spool, which then takes care of completing it. The
+     * frame's buffer is released right away.
+     * @param outboundFrame The frame to add. If any of it was written already, it is added
+     *                      again from its start.
+     * @throws IOException Thrown when the segment files cannot be written. The frame is
+     * then left alone.
+     */
+    public synchronized void append(OutboundFrame outboundFrame) throws IOException {
+        long start = writePosition;
+        try {
+            if (outboundFrame instanceof FileRegionFrame) {
+                FileRegionFrame fileRegionFrame = (FileRegionFrame) outboundFrame;
+                write(fileRegionFrame.getHeader());
+                write(fileRegionFrame.getFileChannel(), fileRegionFrame.getPosition(), fileRegionFrame.getCount());
+                write(fileRegionFrame.getTrailer());
+            } else {
+                write(outboundFrame.getFrame());
+            }
+        } catch (IOException e) {
+            truncate(start);
+            throw e;
+        }
+
+        frameEnds.add(writePosition);
+        if (outboundFrame.getFuture() != null)
+            futures.add(new SpooledFuture(writePosition, outboundFrame.getFuture()));
+        outboundFrame.release();
+    }
+
+    /**
+     * Moves the frames which are not fully written out of another spool into this one,
+     * after the frames already here. A frame which was partly written is moved from its
+     * start. The other spool is left empty.
+     * @param other The spool to take the frames from.
+     * @throws IOException Thrown when the segment files cannot be written.
+     */
+    public void appendUnread(OutboundSpool other) throws IOException {
+        synchronized (this) {
+            synchronized (other) {
+                long start = writePosition;
+                long shift = writePosition - other.frameStart;
+                try {
+                    for (Segment segment : other.segments) {
+                        long from = Math.max(segment.start, other.frameStart);
+                        int offset = (int) (from - segment.start);
+                        write(Utils.sliceOf(segment.buffer, offset, segment.written - offset));
+                    }
+                } catch (IOException e) {
+                    truncate(start);
+                    throw e;
+                }
+
+                while (!other.frameEnds.isEmpty())
+                    frameEnds.add(other.frameEnds.poll() + shift);
+                SpooledFuture spooledFuture;
+                while ((spooledFuture = other.futures.poll()) != null)
+                    futures.add(new SpooledFuture(spooledFuture.end + shift, spooledFuture.future));
+
+                other.deleteSegments();
+            }
+        }
+    }
+
+    /**
+     * Writes as much of the spool as the channel will take.
+     * @param channel The channel to write to.
+     * @return <code>true</code> if the spool is empty now.
+     * @throws IOException Thrown when writing fails.
+     */
+    public synchronized boolean transferTo(WritableByteChannel channel) throws IOException {
+        try {
+            for (Segment segment : segments) {
+                long offset = readPosition - segment.start;
+                long available = segment.written - offset;
+                if (available <= 0)
+                    continue;
+
+                long transferredBytes = segment.channel.transferTo(offset, available, channel);
+                readPosition += transferredBytes;
+                completeWrittenFrames();
+
+                if (transferredBytes < available)
+                    return false;
+            }
+            return true;
+        } finally {
+            deleteWrittenSegments();
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return frameEnds.isEmpty();
+    }
+
+    /**
+     * @return The number of bytes which are not written yet.
+     */
+    public synchronized long getUnreadBytes() {
+        return writePosition - readPosition;
+    }
+
+    /**
+     * @return The number of frames which are not fully written yet.
+     */
+    public synchronized int getUnreadFrames() {
+        return frameEnds.size();
+    }
+
+    /**
+     * Deletes the segment files and fails the futures of the frames which were not fully
+     * written.
+     */
+    public synchronized void discard(Throwable cause) {
+        SpooledFuture spooledFuture;
+        while ((spooledFuture = futures.poll()) != null)
+            spooledFuture.future.fail(cause);
+
+        deleteSegments();
+    }
+
+    private void deleteSegments() {
+        Segment segment;
+        while ((segment = segments.poll()) != null)
+            segment.delete();
+
+        frameEnds.clear();
+        futures.clear();
+        readPosition = writePosition;
+        frameStart = writePosition;
+    }
+
+    /**
+     * Deletes the segments before the start of the frame being written. Those after it
+     * are kept even if they were written, so that the frame can still be moved whole.
+     */
+    private void deleteWrittenSegments() {
+        while (!segments.isEmpty() && segments.peekFirst().start + segments.peekFirst().written <= frameStart)
+            segments.pollFirst().delete();
+    }
+
+    private void completeWrittenFrames() {
+        while (!frameEnds.isEmpty() && frameEnds.peek() <= readPosition)
+            frameStart = frameEnds.poll();
+        while (!futures.isEmpty() && futures.peekFirst().end <= readPosition)
+            futures.pollFirst().future.complete();
+    }
+
+    private void write(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            Segment segment = tailSegment();
+            int length = Math.min(source.remaining(), segmentSize - segment.written);
+
+            ByteBuffer chunk = source.duplicate();
+            chunk.limit(chunk.position() + length);
+            Utils.sliceOf(segment.buffer, segment.written, length).put(chunk);
+
+            source.position(source.position() + length);
+            segment.written += length;
+            writePosition += length;
+        }
+    }
+
+    private void write(FileChannel fileChannel, long position, long count) throws IOException {
+        while (count > 0) {
+            Segment segment = tailSegment();
+            int length = (int) Math.min(count, segmentSize - segment.written);
+
+            ByteBuffer destination = Utils.sliceOf(segment.buffer, segment.written, length);
+            while (destination.hasRemaining()) {
+                int readBytes = fileChannel.read(destination, position + destination.position() - segment.written);
+                if (readBytes < 0)
+                    throw new EOFException("The file ended " + (count - destination.position() + segment.written)
+                            + " bytes before the region.");
+            }
+
+            position += length;
+            count -= length;
+            segment.written += length;
+            writePosition += length;
+        }
+    }
+
+    private Segment tailSegment() throws IOException {
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.written == segmentSize) {
+            segment = new Segment(File.createTempFile("socketify-spool-", ".seg", directory), writePosition, segmentSize);
+            segments.add(segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Forgets the bytes written from the given position on, after a frame failed halfway.
+     */
+    private void truncate(long position) {
+        while (!segments.isEmpty() && segments.peekLast().start >= position)
+            segments.pollLast().delete();
+        if (!segments.isEmpty()) {
+            Segment segment = segments.peekLast();
+            segment.written = (int) Math.min(segment.written, position - segment.start);
+        }
+        writePosition = position;
+    }
+
+    private static class Segment {
+        /**
+         * The files which could not be deleted yet. Some platforms, Windows among them,
+         * refuse to delete a file while it is mapped, and a mapping only goes away once its
+         * buffer is collected, so the deletion is tried again whenever another segment is
+         * deleted.
+         */
+        private static final Queue<File> undeletedFiles = new ConcurrentLinkedQueue<>();
+
+        private final File file;
+        private final long start;
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+
+        private int written;
+
+        public Segment(File file, long start, int size) throws IOException {
+            this.file = file;
+            this.start = start;
+
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                channel = randomAccessFile.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } catch (IOException e) {
+                randomAccessFile.close();
+                deleteFile(file);
+                throw e;
+            }
+        }
+
+        /**
+         * Closes and deletes the file. The segment must not be used afterwards. The mapping
+         * goes away once the buffer is collected, so the reference to it is dropped first.
+         */
+        public void delete() {
+            buffer = null;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+
+            Iterator<File> iterator = undeletedFiles.iterator();
+            while (iterator.hasNext()) {
+                File undeletedFile = iterator.next();
+                if (undeletedFile.delete() || !undeletedFile.exists())
+                    iterator.remove();
+            }
+            deleteFile(file);
+        }
+
+        private static void deleteFile(File file) {
+            if (!file.delete() && file.exists()) {
+                file.deleteOnExit();
+                undeletedFiles.add(file);
+            }
+        }
+    }
+
+    private static class SpooledFuture {
+        private final long end;
+        private final WriteFuture future;
+
+        public SpooledFuture(long end, WriteFuture future) {
+            this.end = end;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A queue of longs kept in a ring, so that spooling many small frames only costs a few
+     * bytes of heap each.
+     */
+    private static class LongQueue {
+        private long[] elements = new long[16];
+        private int head;
+        private int size;
+
+        public void add(long element) {
+            if (size == elements.length) {
+                long[] newElements = new long[elements.length * 2];
+                for (int i = 0; i < size; i++)
+                    newElements[i] = elements[(head + i) % elements.length];
+                elements = newElements;
+                head = 0;
+            }
+            elements[(head + size) % elements.length] = element;
+            size++;
+        }
+
+        public long peek() {
+            return elements[head];
+        }
+
+        public long poll() {
+            long element = elements[head];
+            head = (head + 1) % elements.length;
+            size--;
+            return element;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void clear() {
+            head = 0;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A BufferAllocator which keeps released direct buffers in thread-local pools, one for
+ * each power-of-two size class. Requests larger than the largest size class are served
+ * from the heap and are never pooled.
+ *
+ * <p>Buffers are often allocated on one thread and released on another, such as frames
+ * which are encoded by a sender and written by a selector loop. Once the releasing
+ * thread's pool is full, its buffers go to a shared pool of the size class instead, from
+ * which the threads whose own pools ran dry are served.</p>
+ *
+ * <p>When leak detection is on, the allocator remembers where each outstanding buffer
+ * was allocated so that unreleased buffers can be reported, and it rejects buffers which
+ * are released twice. Turn it on for the default allocator by setting the
+ * <code>socketify.leakDetection</code> system property to <code>true</code>.</p>
+ */
+public class PooledBufferAllocator implements BufferAllocator {
+    public static final int DEFAULT_MIN_CAPACITY = 64;
+    public static final int DEFAULT_MAX_CAPACITY = 64 * 1024;
+    public static final int DEFAULT_MAX_POOLED_PER_SIZE_CLASS = 16;
+    public static final int DEFAULT_MAX_SHARED_PER_SIZE_CLASS = 256;
+
+    public static final PooledBufferAllocator DEFAULT = new PooledBufferAllocator(
+            DEFAULT_MIN_CAPACITY, DEFAULT_MAX_CAPACITY, DEFAULT_MAX_POOLED_PER_SIZE_CLASS,
+            DEFAULT_MAX_SHARED_PER_SIZE_CLASS, Boolean.getBoolean("socketify.leakDetection"));
+
+    private final int minCapacityShift;
+    private final int maxCapacity;
+    private final int sizeClassCount;
+    private final int maxPooledPerSizeClass;
+    private final int maxSharedPerSizeClass;
+    private final boolean leakDetection;
+
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> pools;
+    private final Queue<ByteBuffer>[] sharedPools;
+    private final AtomicInteger[] sharedPoolSizes;
+    private final AtomicLong hitCount;
+    private final AtomicLong missCount;
+    private final Map<ByteBuffer, Throwable> outstandingBuffers;
+
+    public PooledBufferAllocator() {
+        this(DEFAULT_MIN_CAPACITY, DEFAULT_MAX_CAPACITY, DEFAULT_MAX_POOLED_PER_SIZE_CLASS, false);
+    }
+
+    public PooledBufferAllocator(int minCapacity, int maxCapacity, int maxPooledPerSizeClass,
+                                 boolean leakDetection) {
+        this(minCapacity, maxCapacity, maxPooledPerSizeClass, DEFAULT_MAX_SHARED_PER_SIZE_CLASS, leakDetection);
+    }
+
+    /**
+     * @param minCapacity The capacity of the smallest size class. Rounded up to a power of two.
+     * @param maxCapacity The capacity of the largest size class. Rounded up to a power of two.
+     * @param maxPooledPerSizeClass The number of buffers each thread keeps for each size class.
+     * @param maxSharedPerSizeClass The number of buffers shared between threads for each size class.
+     * @param leakDetection Whether to track the outstanding buffers.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PooledBufferAllocator(int minCapacity, int maxCapacity, int maxPooledPerSizeClass,
+                                 int maxSharedPerSizeClass, boolean leakDetection) {
+        if (minCapacity <= 0 || maxCapacity < minCapacity)
+            throw new IllegalArgumentException("The capacities must be positive and minCapacity <= maxCapacity.");
+
+        this.minCapacityShift = ceilLog2(minCapacity);
+        this.maxCapacity = 1 << ceilLog2(maxCapacity);
+        this.sizeClassCount = ceilLog2(maxCapacity) - minCapacityShift + 1;
+        this.maxPooledPerSizeClass = maxPooledPerSizeClass;
+        this.maxSharedPerSizeClass = maxSharedPerSizeClass;
+        this.leakDetection = leakDetection;
+
+        this.hitCount = new AtomicLong();
+        this.missCount = new AtomicLong();
+        this.outstandingBuffers = leakDetection
+                ? Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>())
+                : null;
+        this.pools = new ThreadLocal<ArrayDeque<ByteBuffer>[]>() {
+            @Override
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            protected ArrayDeque<ByteBuffer>[] initialValue() {
+                ArrayDeque<ByteBuffer>[] pools = (ArrayDeque<ByteBuffer>[]) new ArrayDeque[sizeClassCount];
+                for (int i = 0; i < sizeClassCount; i++)
+                    pools[i] = new ArrayDeque<>();
+                return pools;
+            }
+        };
+        this.sharedPools = (Queue<ByteBuffer>[]) new Queue[sizeClassCount];
+        this.sharedPoolSizes = new AtomicInteger[sizeClassCount];
+        for (int i = 0; i < sizeClassCount; i++) {
+            sharedPools[i] = new ConcurrentLinkedQueue<>();
+            sharedPoolSizes[i] = new AtomicInteger();
+        }
+    }
+
+    @Override
+    public ByteBuffer allocate(int capacity) {
+        ByteBuffer buffer;
+
+        if (capacity > maxCapacity) {
+            missCount.incrementAndGet();
+            buffer = ByteBuffer.allocate(capacity);
+        } else {
+            int sizeClass = sizeClassOf(capacity);
+            buffer = pools.get()[sizeClass].pollLast();
+            if (buffer == null && (buffer = sharedPools[sizeClass].poll()) != null)
+                sharedPoolSizes[sizeClass].decrementAndGet();
+
+            if (buffer != null) {
+                hitCount.incrementAndGet();
+            } else {
+                missCount.incrementAndGet();
+                buffer = ByteBuffer.allocateDirect(1 << (minCapacityShift + sizeClass));
+            }
+            buffer.clear().limit(capacity);
+        }
+
+        if (leakDetection)
+            outstandingBuffers.put(buffer, new Throwable("A buffer with a capacity of " + capacity
+                    + " bytes was allocated here but was never released."));
+
+        return buffer;
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        if (leakDetection && outstandingBuffers.remove(buffer) == null)
+            throw new IllegalStateException("The buffer was already released or was not allocated here.");
+
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || capacity > maxCapacity || Integer.bitCount(capacity) != 1)
+            return;
+
+        int sizeClass = sizeClassOf(capacity);
+        if (capacity != 1 << (minCapacityShift + sizeClass))
+            return;
+
+        ArrayDeque<ByteBuffer> pool = pools.get()[sizeClass];
+        if (pool.size() < maxPooledPerSizeClass) {
+            pool.addLast(buffer);
+        } else if (sharedPoolSizes[sizeClass].incrementAndGet() <= maxSharedPerSizeClass) {
+            sharedPools[sizeClass].add(buffer);
+        } else {
+            sharedPoolSizes[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * @return The number of allocations served from a pool.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return The number of allocations which needed a new buffer.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public boolean isLeakDetectionEnabled() {
+        return leakDetection;
+    }
+
+    /**
+     * Only available when leak detection is on.
+     * @return Where each of the buffers which have not been released yet was allocated.
+     */
+    public List<Throwable> getOutstandingAllocations() {
+        if (!leakDetection)
+            throw new IllegalStateException("Leak detection is not enabled.");
+
+        synchronized (outstandingBuffers) {
+            return new ArrayList<>(outstandingBuffers.values());
+        }
+    }
+
+    /**
+     * Prints the allocation site of each buffer which has not been released yet. Does
+     * nothing when leak detection is off.
+     */
+    public void printOutstandingAllocations() {
+        if (!leakDetection) return;
+
+        for (Throwable allocation : getOutstandingAllocations())
+            allocation.printStackTrace();
+    }
+
+    private int sizeClassOf(int capacity) {
+        return capacity <= (1 << minCapacityShift) ? 0 : ceilLog2(capacity) - minCapacityShift;
+    }
+
+    private static int ceilLog2(int value) {
+        return value <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(value - 1);
+    }
+}
@@ -10,29 +10,67 @@ import java.util.List;
 public abstract class SelectionKeyProcessor {
     private final List<byte[]> completeDataList;
     private final int bufferSize;
+    private final BufferAllocator bufferAllocator;
 
     public SelectionKeyProcessor() {
         this(512);
     }
 
     public SelectionKeyProcessor(int bufferSize) {
+        this(bufferSize, PooledBufferAllocator.DEFAULT);
+    }
+
+    public SelectionKeyProcessor(int bufferSize, BufferAllocator bufferAllocator) {
         this.bufferSize = bufferSize;
+        this.bufferAllocator = bufferAllocator;
         this.completeDataList = new ArrayList<>();
     }
 
     /**
      * @return The marker that signifies the end of the data.
+     * @deprecated Only used by the default {@link #getFrameDecoder(SelectionKey)}. Use a
+     * {@link MarkerFrameCodec} with the marker instead.
      */
+    @Deprecated
     public byte getMarkerByte() {
-        return (byte) 0x00;
+        return MarkerFrameCodec.DEFAULT_MARKER_BYTE;
     }
 
     /**
      * Retriever of the pending reads for the passed key.
      * @param key The basis selection key.
      * @return The pending data list for the key.
+     * @deprecated Only used by the default {@link #getFrameDecoder(SelectionKey)}. Override
+     * that instead and keep a decoder per key.
+     */
+    @Deprecated
+    public List<byte[]> getPendingReadList(SelectionKey key) {
+        return null;
+    }
+
+    /**
+     * Retriever of the frame decoder for the passed key. By default the messages end with
+     * {@link #getMarkerByte()}, and the partial frame of the key is kept in
+     * {@link #getPendingReadList(SelectionKey)}.
+     * @param key The basis selection key.
+     * @return The decoder which holds the partial frame of the key.
      */
-    public abstract List<byte[]> getPendingReadList(SelectionKey key);
+    public FrameCodec.Decoder getFrameDecoder(SelectionKey key) {
+        List<byte[]> pendingReadList = getPendingReadList(key);
+        if (pendingReadList == null)
+            return null;
+        return new PendingReadListDecoder(getMarkerByte(), pendingReadList);
+    }
+
+    /**
+     * Retriever of the listener which streams the messages of the passed key.
+     * @param key The basis selection key.
+     * @return The listener which receives the messages of the key in chunks, or null when
+     * they are passed whole to {@link #processCompleteData(SelectionKey, byte[])}.
+     */
+    public FrameCodec.ChunkListener getChunkListener(SelectionKey key) {
+        return null;
+    }
 
     /**
      * Process the complete data from the passed key.
@@ -54,12 +92,34 @@ public abstract class SelectionKeyProcessor {
     public abstract void onDisconnect(SelectionKey key);
 
     /**
-     * Read the data from the key.
+     * For when bytes are read from the key, before they are decoded.
+     * @param key The key which was read.
+     * @param byteCount The number of bytes read.
+     */
+    public void onBytesRead(SelectionKey key, int byteCount) {
+    }
+
+    /**
+     * Read the data from the key. The frames are taken apart by the key's decoder.
      * @param key The key which will be read.
      */
     public final void read(SelectionKey key) {
         SocketChannel socketChannel = (SocketChannel) key.channel();
-        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+
+        FrameCodec.Decoder frameDecoder = getFrameDecoder(key);
+        if (frameDecoder == null) {
+            throw new IllegalArgumentException("The frameDecoder cannot be null.");
+        }
+
+        if (getChunkListener(key) == null) {
+            ByteBuffer readBuffer = frameDecoder.getReadBuffer(bufferSize);
+            if (readBuffer != null) {
+                readInto(key, socketChannel, readBuffer, frameDecoder);
+                return;
+            }
+        }
+
+        ByteBuffer buffer = bufferAllocator.allocate(bufferSize);
 
         try {
             int numOfReadBytes = socketChannel.read(buffer);
@@ -68,85 +128,111 @@ public abstract class SelectionKeyProcessor {
             if (numOfReadBytes == -1) {
                 onDisconnect(key);
             } else {
-                boolean isNullByteFound = false;
-                boolean hasCompleteMessage = false;
-                ByteBuffer remainingDataBuffer = null;
+                onBytesRead(key, numOfReadBytes);
 
-                List<byte[]> pendingDataList = getPendingReadList(key);
-                if (pendingDataList == null) {
-                    throw new IllegalArgumentException("The pendingDataList cannot be null.");
-                }
+                FrameCodec.ChunkListener chunkListener = getChunkListener(key);
+                if (chunkListener != null) {
+                    frameDecoder.decode(buffer, chunkListener);
+                } else {
+                    frameDecoder.decode(buffer, completeDataList);
 
-                while (buffer.hasRemaining() && !isNullByteFound) {
-                    isNullByteFound = hasCompleteMessage = buffer.get() == getMarkerByte();
-                    if (isNullByteFound) {
-                        // CASE 1: Data is complete.
-                        // The end of the data is on the same buffer.
-
-                        remainingDataBuffer = buffer.slice();
-                        buffer.reset().flip();
-
-                        byte[] newData = Utils.extractBytesFrom(buffer);
-                        if (pendingDataList.size() > 0) {
-                            pendingDataList.add(newData);
-                            newData = Utils.concatenate(pendingDataList);
-                            pendingDataList.clear();
-                        }
-
-                        completeDataList.add(newData);
-                    } else {
-                        buffer.mark();
+                    for (byte[] data : completeDataList) {
+                        processCompleteData(key, data);
                     }
                 }
+            }
+        } catch (IOException e) {
+            onConnectionFailure(key);
+        } finally {
+            completeDataList.clear();
+            bufferAllocator.release(buffer);
+        }
+    }
 
-                if (hasCompleteMessage) {
-                    // Loop on the buffer of the remaining data to check whether
-                    // there are more complete data.
-
-                    while (remainingDataBuffer != null && remainingDataBuffer.hasRemaining()) {
-                        boolean isRemNullByteFound = false;
-                        while (remainingDataBuffer.hasRemaining()) {
-                            isRemNullByteFound = remainingDataBuffer.get() == getMarkerByte();
-                            if (isRemNullByteFound) {
-                                // CASE 3: Extra data was found.
-                                // The end of the pending data or the first data was already
-                                // found but another complete data was found.
-
-                                ByteBuffer temp = remainingDataBuffer.slice();
-                                remainingDataBuffer.reset().flip();
-
-                                completeDataList.add(Utils.extractBytesFrom(remainingDataBuffer));
-
-                                remainingDataBuffer = temp;
-                            } else {
-                                remainingDataBuffer.mark();
-                            }
-                        }
-
-                        if (!isRemNullByteFound) {
-                            // CASE 4: Extra data is incomplete
-                            // The end of the extra data is not on the buffer but the end
-                            // of the first data was already found.
-
-                            remainingDataBuffer.flip();
-                            pendingDataList.add(Utils.extractBytesFrom(remainingDataBuffer));
-                        }
-                    }
+    /**
+     * Reads straight into the buffer lent by the decoder, after the partial frame it holds.
+     */
+    private void readInto(SelectionKey key, SocketChannel socketChannel, ByteBuffer readBuffer,
+                          FrameCodec.Decoder frameDecoder) {
+        try {
+            int numOfReadBytes = socketChannel.read(readBuffer);
 
-                    for (byte[] data : completeDataList) {
-                        processCompleteData(key, data);
-                    }
-                    completeDataList.clear();
-                } else {
-                    // CASE 2: Data is incomplete.
-                    // The end of the data is on a different key.
+            if (numOfReadBytes == -1) {
+                onDisconnect(key);
+            } else {
+                onBytesRead(key, numOfReadBytes);
+                frameDecoder.decodeReadBuffer(readBuffer, completeDataList);
 
-                    buffer.flip();
-                    pendingDataList.add(Utils.extractBytesFrom(buffer));
+                for (byte[] data : completeDataList) {
+                    processCompleteData(key, data);
                 }
             }
         } catch (IOException e) {
             onConnectionFailure(key);
+        } finally {
+            completeDataList.clear();
+        }
+    }
+
+    /**
+     * Ends each message with the marker and keeps the pieces of the partial frame in a list
+     * which the subclass holds for the key, like the processor did before the framing was
+     * pluggable.
+     */
+    private static class PendingReadListDecoder extends FrameCodec.Decoder {
+        private final byte markerByte;
+        private final List<byte[]> pendingReadList;
+
+        PendingReadListDecoder(byte markerByte, List<byte[]> pendingReadList) {
+            this.markerByte = markerByte;
+            this.pendingReadList = pendingReadList;
+        }
+
+        @Override
+        public void decode(ByteBuffer buffer, List<byte[]> messages) throws IOException {
+            long pendingLength = 0;
+            for (byte[] piece : pendingReadList)
+                pendingLength += piece.length;
+
+            int limit = buffer.limit();
+            int start = buffer.position();
+            int end;
+
+            while ((end = FrameScanner.indexOf(buffer, start, limit, markerByte)) != -1) {
+                checkFrameSize(pendingLength + end - start);
+
+                byte[] message = Utils.extractBytesFrom(buffer, start, end - start);
+                if (pendingReadList.size() > 0) {
+                    pendingReadList.add(message);
+                    message = Utils.concatenate(pendingReadList);
+                    pendingReadList.clear();
+                    pendingLength = 0;
+                }
+                messages.add(message);
+                start = end + 1;
+            }
+
+            if (start < limit) {
+                checkFrameSize(pendingLength + limit - start);
+                pendingReadList.add(Utils.extractBytesFrom(buffer, start, limit - start));
+            }
+            buffer.position(limit);
+        }
+
+        /**
+         * Hands each message over in a single chunk once it is complete.
+         */
+        @Override
+        public void decode(ByteBuffer buffer, FrameCodec.ChunkListener chunkListener) throws IOException {
+            List<byte[]> messages = new ArrayList<>();
+            decode(buffer, messages);
+
+            for (byte[] message : messages) {
+                chunkListener.onMessageStart(message.length);
+                if (message.length > 0)
+                    chunkListener.onChunk(ByteBuffer.wrap(message));
+                chunkListener.onMessageEnd();
+            }
         }
     }
 }
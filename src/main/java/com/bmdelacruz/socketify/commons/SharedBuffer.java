@@ -0,0 +1,45 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A buffer shared by several readers, each of which reads through its own view. The
+ * buffer goes back to its allocator once the last reference is released.
+ */
+public class SharedBuffer {
+    private final ByteBuffer buffer;
+    private final BufferAllocator bufferAllocator;
+    private final AtomicInteger referenceCount;
+
+    /**
+     * @param buffer The buffer to share. Its content is between its position and limit.
+     * @param bufferAllocator The allocator to which the buffer will be released.
+     */
+    public SharedBuffer(ByteBuffer buffer, BufferAllocator bufferAllocator) {
+        this.buffer = buffer;
+        this.bufferAllocator = bufferAllocator;
+        this.referenceCount = new AtomicInteger(1);
+    }
+
+    /**
+     * @return A new read-only view of the content with its own position and limit.
+     */
+    public ByteBuffer view() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public SharedBuffer retain() {
+        if (referenceCount.getAndIncrement() <= 0)
+            throw new IllegalStateException("The buffer was already released.");
+        return this;
+    }
+
+    public void release() {
+        int count = referenceCount.decrementAndGet();
+        if (count == 0)
+            bufferAllocator.release(buffer);
+        else if (count < 0)
+            throw new IllegalStateException("The buffer was released too many times.");
+    }
+}
@@ -0,0 +1,190 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel, which runs tasks once their delay has passed. The time is split
+ * into ticks, and each tick has a bucket on the wheel, so a task is scheduled by linking
+ * it into the bucket of the tick it is due in, and cancelled by unlinking it. Both take
+ * constant time however many tasks there are. A task which is due more than a turn of the
+ * wheel away waits in its bucket for that many more turns. A task never runs before its
+ * delay has passed, and runs up to two ticks after it.
+ * <p>
+ * The wheel is not thread-safe. It is meant to be owned by a selector loop, which calls
+ * {@link #advance(long)} on each iteration and schedules from its own thread.
+ */
+public class TimingWheel {
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    public static final int DEFAULT_BUCKET_COUNT = 512;
+
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long startTime;
+    private final ArrayList<Timeout> dueTimeouts;
+
+    private long currentTick;
+    private long currentTime;
+
+    public TimingWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_BUCKET_COUNT);
+    }
+
+    /**
+     * @param tickMillis The length of a tick in milliseconds.
+     * @param bucketCount The number of buckets, which is rounded up to a power of two.
+     */
+    public TimingWheel(long tickMillis, int bucketCount) {
+        if (tickMillis <= 0)
+            throw new IllegalArgumentException("The tickMillis must be positive.");
+        if (bucketCount <= 0)
+            throw new IllegalArgumentException("The bucketCount must be positive.");
+
+        int size = 1;
+        while (size < bucketCount)
+            size *= 2;
+
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        buckets = new Timeout[size];
+        mask = size - 1;
+        startTime = System.nanoTime();
+        currentTime = startTime;
+        dueTimeouts = new ArrayList<>();
+    }
+
+    /**
+     * @return The time given to the last {@link #advance(long)}, as given by
+     * {@link System#nanoTime()}.
+     */
+    public long getCurrentTime() {
+        return currentTime;
+    }
+
+    /**
+     * Schedules the task to run once the delay has passed, counted from the time given to
+     * the last {@link #advance(long)}.
+     * @param task The task to run.
+     * @param delayNanos The delay in nanoseconds.
+     * @return The handle through which the task can be cancelled.
+     */
+    public Timeout schedule(Runnable task, long delayNanos) {
+        if (task == null)
+            throw new IllegalArgumentException("The task cannot be null.");
+
+        // The current time may be anywhere within the running tick, whose bucket was
+        // already visited, so the delay is counted from the end of that tick and rounded
+        // up to whole ticks.
+        long ticks = 1 + (Math.max(0, delayNanos) + tickNanos - 1) / tickNanos;
+        Timeout timeout = new Timeout(this, task, (ticks - 1) / buckets.length);
+        link(timeout, (int) ((currentTick + ticks) & mask));
+        return timeout;
+    }
+
+    /**
+     * Runs the tasks which are due by the given time.
+     * @param now The time, as given by {@link System#nanoTime()}.
+     */
+    public void advance(long now) {
+        currentTime = now;
+
+        long targetTick = (now - startTime) / tickNanos;
+        while (currentTick < targetTick) {
+            currentTick++;
+            collectDue((int) (currentTick & mask));
+
+            // The tasks run after their bucket is walked, so that they may schedule and
+            // cancel freely.
+            for (int i = 0; i < dueTimeouts.size(); i++)
+                dueTimeouts.get(i).expire();
+            dueTimeouts.clear();
+        }
+    }
+
+    private void collectDue(int bucket) {
+        Timeout timeout = buckets[bucket];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds == 0) {
+                unlink(timeout);
+                timeout.state = Timeout.DUE;
+                dueTimeouts.add(timeout);
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private void link(Timeout timeout, int bucket) {
+        timeout.bucket = bucket;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null)
+            timeout.next.previous = timeout;
+        buckets[bucket] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null)
+            timeout.previous.next = timeout.next;
+        else
+            buckets[timeout.bucket] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.previous = timeout.previous;
+
+        timeout.previous = null;
+        timeout.next = null;
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public static class Timeout {
+        private static final int WAITING = 0;
+        private static final int DUE = 1;
+        private static final int EXPIRED = 2;
+        private static final int CANCELLED = 3;
+
+        private final TimingWheel timingWheel;
+        private final Runnable task;
+        private long remainingRounds;
+        private int state;
+
+        private int bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(TimingWheel timingWheel, Runnable task, long remainingRounds) {
+            this.timingWheel = timingWheel;
+            this.task = task;
+            this.remainingRounds = remainingRounds;
+        }
+
+        /**
+         * Keeps the task from running. Does nothing once the task has run. Must be called
+         * by the owner of the wheel.
+         */
+        public void cancel() {
+            if (state == WAITING)
+                timingWheel.unlink(this);
+            if (state == WAITING || state == DUE)
+                state = CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        private void expire() {
+            if (state != DUE)
+                return;
+
+            state = EXPIRED;
+            task.run();
+        }
+    }
+}
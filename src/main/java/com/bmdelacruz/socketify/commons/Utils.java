@@ -42,6 +42,37 @@ public class Utils {
         return newData;
     }
 
+    /**
+     * Copies a range of the ByteBuffer object into a new byte array. Moves the position
+     * of the buffer to the end of the range.
+     * @param byteBuffer The buffer from which the data will be retrieved from.
+     * @param offset The absolute index of the first byte to copy.
+     * @param length The number of bytes to copy.
+     * @return A new byte array which contains the bytes in the range.
+     */
+    public static byte[] extractBytesFrom(ByteBuffer byteBuffer, int offset, int length) {
+        byte[] newData = new byte[length];
+        byteBuffer.position(offset);
+        byteBuffer.get(newData);
+
+        return newData;
+    }
+
+    /**
+     * Creates a view of a range of the ByteBuffer object. The view shares the bytes of the
+     * buffer while the buffer's own position and limit are left alone.
+     * @param byteBuffer The buffer to view.
+     * @param offset The absolute index of the first byte of the range.
+     * @param length The number of bytes in the range.
+     * @return A buffer whose remaining bytes are the range.
+     */
+    public static ByteBuffer sliceOf(ByteBuffer byteBuffer, int offset, int length) {
+        ByteBuffer slice = byteBuffer.duplicate();
+        slice.limit(offset + length).position(offset);
+
+        return slice;
+    }
+
     /**
      * Get the local network address of the device. This may return an address of a
      * network interface which is either an ethernet or a wifi device. For the address
@@ -0,0 +1,66 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Puts the length of each message before it as an unsigned varint: seven bits per byte,
+ * least significant group first, with the high bit set on every byte but the last. Small
+ * messages only need a single byte of prefix.
+ */
+public class VarintLengthPrefixFrameCodec extends LengthPrefixFrameCodec {
+    private static final int MAX_PREFIX_LENGTH = 5;
+
+    @Override
+    public int getHeaderLength(int payloadLength) {
+        int length = 1;
+        while ((payloadLength >>>= 7) != 0)
+            length++;
+        return length;
+    }
+
+    @Override
+    public void writeHeader(ByteBuffer destination, int payloadLength) {
+        while ((payloadLength & ~0x7F) != 0) {
+            destination.put((byte) ((payloadLength & 0x7F) | 0x80));
+            payloadLength >>>= 7;
+        }
+        destination.put((byte) payloadLength);
+    }
+
+    @Override
+    public Decoder newDecoder() {
+        return new VarintLengthPrefixDecoder(getMaxFrameSize(), getMaxStreamedFrameSize());
+    }
+
+    private static class VarintLengthPrefixDecoder extends LengthPrefixDecoder {
+        private int length;
+        private int prefixBytesRead;
+
+        VarintLengthPrefixDecoder(int maxFrameSize, long maxStreamedFrameSize) {
+            super(maxFrameSize, maxStreamedFrameSize);
+        }
+
+        @Override
+        protected int readLength(ByteBuffer buffer) throws ProtocolException {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                length |= (b & 0x7F) << (7 * prefixBytesRead);
+                prefixBytesRead++;
+
+                if ((b & 0x80) == 0) {
+                    int result = length;
+                    length = 0;
+                    prefixBytesRead = 0;
+
+                    if (result < 0)
+                        throw new ProtocolException("The length prefix " + (result & 0xFFFFFFFFL) + " is too large.");
+                    return result;
+                }
+                if (prefixBytesRead == MAX_PREFIX_LENGTH)
+                    throw new ProtocolException("The length prefix is longer than " + MAX_PREFIX_LENGTH + " bytes.");
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.bmdelacruz.socketify.commons;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a send. It completes once the whole frame has been written to the socket,
+ * or fails once the frame has been dropped. Listeners run on the thread which completes
+ * the future, which is usually the selector thread, so they should be quick.
+ */
+public class WriteFuture implements Future<Void> {
+    private final CountDownLatch doneLatch;
+    private List<Listener> listeners;
+
+    private volatile boolean isDone;
+    private volatile Throwable failure;
+
+    public interface Listener {
+        void onComplete(WriteFuture future);
+    }
+
+    public WriteFuture() {
+        doneLatch = new CountDownLatch(1);
+        listeners = new ArrayList<>(1);
+    }
+
+    /**
+     * @return A future which has already failed.
+     */
+    public static WriteFuture failed(Throwable failure) {
+        WriteFuture future = new WriteFuture();
+        future.fail(failure);
+        return future;
+    }
+
+    /**
+     * Runs the listener once this future is done, or right away if it already is.
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (!isDone) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    public boolean complete() {
+        return finish(null);
+    }
+
+    public boolean fail(Throwable failure) {
+        if (failure == null)
+            throw new IllegalArgumentException("The failure cannot be null.");
+        return finish(failure);
+    }
+
+    private boolean finish(Throwable failure) {
+        List<Listener> listeners;
+        synchronized (this) {
+            if (isDone)
+                return false;
+
+            this.failure = failure;
+            this.isDone = true;
+
+            listeners = this.listeners;
+            this.listeners = null;
+        }
+        doneLatch.countDown();
+
+        for (Listener listener : listeners)
+            listener.onComplete(this);
+        return true;
+    }
+
+    public boolean isSuccess() {
+        return isDone && failure == null;
+    }
+
+    /**
+     * @return Why the send failed, or null if it did not fail (yet).
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Writes cannot be cancelled once queued.
+     * @return Always <code>false</code>.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return isDone;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        doneLatch.await();
+        return result();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!doneLatch.await(timeout, unit))
+            throw new TimeoutException();
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return null;
+    }
+}
@@ -0,0 +1,47 @@
+package com.bmdelacruz.socketify.data;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A data processor which works on buffers instead of arrays, so that a chain of them does
+ * not need a new array for every stage. The chain hands each stage the previous stage's
+ * output and a scratch buffer to write to, and alternates between two scratch buffers
+ * along the chain. A stage which can transform the bytes where they are may do so
+ * instead, which spares even that copy.
+ */
+public abstract class BufferDataProcessor extends DataProcessor {
+    /**
+     * @param inputLength The number of bytes to process.
+     * @return The most bytes {@link #process(ByteBuffer, ByteBuffer)} may write for them.
+     */
+    public abstract int getMaxOutputLength(int inputLength);
+
+    /**
+     * Processes the remaining bytes of the input, writing the result to the output from
+     * its position on.
+     * @param input The bytes to process. It is drained.
+     * @param output The buffer to write to. It has at least {@link #getMaxOutputLength(int)}
+     *               bytes remaining.
+     */
+    public abstract void process(ByteBuffer input, ByteBuffer output);
+
+    /**
+     * Processes the remaining bytes of the buffer where they are, if this processor can.
+     * The chain only calls this with its own scratch buffers.
+     * @param data The bytes to process. Its position and limit must enclose the result
+     *             afterwards.
+     * @return <code>false</code> if nothing was done, in which case the chain calls
+     * {@link #process(ByteBuffer, ByteBuffer)} instead.
+     */
+    public boolean processInPlace(ByteBuffer data) {
+        return false;
+    }
+
+    @Override
+    public byte[] process(byte[] data) {
+        ByteBuffer output = ByteBuffer.allocate(getMaxOutputLength(data.length));
+        process(ByteBuffer.wrap(data), output);
+        return Arrays.copyOf(output.array(), output.position());
+    }
+}
@@ -0,0 +1,17 @@
+package com.bmdelacruz.socketify.data;
+
+/**
+ * Thrown by a data processor when the data it was given makes no sense to it, for example
+ * because it was corrupted. The connection which received the data is dropped as failed.
+ */
+public class DataProcessingException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public DataProcessingException(String message) {
+        super(message);
+    }
+
+    public DataProcessingException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
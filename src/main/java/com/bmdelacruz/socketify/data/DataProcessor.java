@@ -5,6 +5,13 @@ public abstract class DataProcessor {
 
     public abstract byte[] process(byte[] data);
 
+    /**
+     * Frees what a processor created for a single connection holds, once the connection
+     * ended. Shared processors are never released.
+     */
+    public void release() {
+    }
+
     public final DataProcessor getNext() {
         return next;
     }
@@ -1,25 +1,215 @@
 package com.bmdelacruz.socketify.data;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the data through its processors, one after the other. When any of them is a
+ * {@link BufferDataProcessor}, the data moves between two scratch buffers of the calling
+ * thread instead of new arrays, and the array processors are handed arrays of the bytes
+ * they need.
+ *
+ * A stage may be added as a factory instead, when its processor keeps state for a single
+ * connection. Such a chain is only a template: each connection runs its own chain from
+ * {@link #newConnectionChain()}, which shares the other processors.
+ */
 public class DataProcessorChain {
-    private DataProcessor first;
+    /**
+     * The largest scratch buffer a thread keeps. Data which needs more gets a buffer of its
+     * own, so that every thread which once ran a large message does not hold on to that
+     * much for good.
+     */
+    private static final int MAX_SCRATCH_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer[]> scratchBuffers = new ThreadLocal<ByteBuffer[]>() {
+        @Override
+        protected ByteBuffer[] initialValue() {
+            return new ByteBuffer[2];
+        }
+    };
+
+    private final ArrayList<DataProcessor> dataProcessors;
+    private final ArrayList<DataProcessorFactory> dataProcessorFactories;
     private DataProcessor last;
+    private boolean hasBufferDataProcessors;
+    private boolean hasDataProcessorFactories;
+    private boolean isConnectionChain;
+    private boolean isReleased;
+
+    public DataProcessorChain() {
+        dataProcessors = new ArrayList<>();
+        dataProcessorFactories = new ArrayList<>();
+    }
 
     public final void addDataProcessor(DataProcessor dataProcessor) {
         if (dataProcessor == null)
             throw new IllegalArgumentException("The dataProcessor cannot be null.");
-        if (first == null)
-            first = dataProcessor;
         if (last != null)
             last.setNext(dataProcessor);
         last = dataProcessor;
+
+        add(dataProcessor, null);
+    }
+
+    /**
+     * Adds a stage whose processor is created for each connection.
+     * @param dataProcessorFactory The factory of the stage's processors.
+     */
+    public final void addDataProcessorFactory(DataProcessorFactory dataProcessorFactory) {
+        if (dataProcessorFactory == null)
+            throw new IllegalArgumentException("The dataProcessorFactory cannot be null.");
+
+        add(null, dataProcessorFactory);
+        hasDataProcessorFactories = true;
+    }
+
+    private void add(DataProcessor dataProcessor, DataProcessorFactory dataProcessorFactory) {
+        dataProcessors.add(dataProcessor);
+        dataProcessorFactories.add(dataProcessorFactory);
+
+        if (dataProcessor instanceof BufferDataProcessor)
+            hasBufferDataProcessors = true;
+    }
+
+    public boolean hasDataProcessorFactories() {
+        return hasDataProcessorFactories;
+    }
+
+    /**
+     * @return The chain of a new connection, with a new processor from each factory. This
+     * chain itself is returned when it has no factories.
+     */
+    public DataProcessorChain newConnectionChain() {
+        if (!hasDataProcessorFactories)
+            return this;
+
+        DataProcessorChain connectionChain = new DataProcessorChain();
+        for (int i = 0; i < dataProcessors.size(); i++) {
+            DataProcessorFactory dataProcessorFactory = dataProcessorFactories.get(i);
+            connectionChain.add(dataProcessorFactory != null
+                    ? dataProcessorFactory.newDataProcessor() : dataProcessors.get(i), null);
+        }
+        connectionChain.isConnectionChain = true;
+        return connectionChain;
+    }
+
+    /**
+     * Releases the processors created for the connection of this chain, once it ended.
+     * Their owner must not run the chain anymore, which it can tell by
+     * {@link #isReleased()} while holding the chain's lock.
+     */
+    public synchronized void release() {
+        if (!isConnectionChain || isReleased)
+            return;
+
+        isReleased = true;
+        for (DataProcessor dataProcessor : dataProcessors)
+            dataProcessor.release();
+    }
+
+    public synchronized boolean isReleased() {
+        return isReleased;
+    }
+
+    /**
+     * @return The processors of this chain, in order, for running them one stage at a
+     * time. Template chains have none to give.
+     */
+    List<DataProcessor> getDataProcessors() {
+        checkProcessable();
+        return dataProcessors;
     }
 
     public byte[] process(byte[] data) {
-        DataProcessor temp = first;
-        while (temp != null) {
-            data = temp.process(data);
-            temp = temp.getNext();
+        checkProcessable();
+
+        if (!hasBufferDataProcessors) {
+            for (DataProcessor dataProcessor : dataProcessors)
+                data = dataProcessor.process(data);
+            return data;
+        }
+
+        ByteBuffer result = process(ByteBuffer.wrap(data));
+        return toArray(result, isScratchBuffer(result));
+    }
+
+    /**
+     * Runs the remaining bytes of the input through the processors.
+     * @param input The data to process. Its content is left alone.
+     * @return The processed data as the remaining bytes of a buffer. This may be the input
+     * itself when there is nothing to do, or one of the calling thread's scratch buffers,
+     * which is only valid until the thread runs a chain again, or a buffer of its own when
+     * the data is too large for them.
+     */
+    public ByteBuffer process(ByteBuffer input) {
+        checkProcessable();
+
+        ByteBuffer[] scratch = scratchBuffers.get();
+        ByteBuffer data = input;
+        int scratchIndex = -1;
+
+        for (DataProcessor dataProcessor : dataProcessors) {
+            if (!(dataProcessor instanceof BufferDataProcessor)) {
+                data = ByteBuffer.wrap(dataProcessor.process(toArray(data, scratchIndex != -1)));
+                scratchIndex = -1;
+                continue;
+            }
+
+            BufferDataProcessor bufferDataProcessor = (BufferDataProcessor) dataProcessor;
+            if (scratchIndex != -1 && bufferDataProcessor.processInPlace(data))
+                continue;
+
+            int outputIndex = scratchIndex == 0 ? 1 : 0;
+            ByteBuffer output = scratchBuffer(scratch, outputIndex,
+                    bufferDataProcessor.getMaxOutputLength(data.remaining()));
+            bufferDataProcessor.process(data.duplicate(), output);
+            output.flip();
+
+            data = output;
+            scratchIndex = outputIndex;
         }
         return data;
     }
+
+    private static ByteBuffer scratchBuffer(ByteBuffer[] scratch, int index, int minCapacity) {
+        if (minCapacity > MAX_SCRATCH_CAPACITY)
+            return ByteBuffer.allocate(minCapacity);
+
+        ByteBuffer buffer = scratch[index];
+        if (buffer == null || buffer.capacity() < minCapacity) {
+            int capacity = buffer == null ? 256 : buffer.capacity();
+            while (capacity < minCapacity)
+                capacity *= 2;
+            buffer = ByteBuffer.allocate(Math.min(capacity, MAX_SCRATCH_CAPACITY));
+            scratch[index] = buffer;
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    private void checkProcessable() {
+        if (hasDataProcessorFactories)
+            throw new IllegalStateException("A chain with processor factories only runs through newConnectionChain().");
+    }
+
+    private static boolean isScratchBuffer(ByteBuffer buffer) {
+        ByteBuffer[] scratch = scratchBuffers.get();
+        return buffer == scratch[0] || buffer == scratch[1];
+    }
+
+    /**
+     * @return The remaining bytes of the buffer, which is the buffer's own array when it
+     * wraps a whole one and is not a scratch buffer, or else a copy.
+     */
+    private static byte[] toArray(ByteBuffer buffer, boolean isScratchBuffer) {
+        if (!isScratchBuffer && buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length)
+            return buffer.array();
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
 }
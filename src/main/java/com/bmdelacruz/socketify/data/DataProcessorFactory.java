@@ -0,0 +1,12 @@
+package com.bmdelacruz.socketify.data;
+
+/**
+ * Creates the data processors of a stage which keeps state for a single connection, such
+ * as a compression window, so that every connection gets its own instance.
+ */
+public interface DataProcessorFactory {
+    /**
+     * @return A new processor for a connection which was just established.
+     */
+    DataProcessor newDataProcessor();
+}
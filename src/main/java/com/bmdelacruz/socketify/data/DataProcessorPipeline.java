@@ -0,0 +1,224 @@
+package com.bmdelacruz.socketify.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the processors of a chain on an executor, each processor as a stage of its own.
+ * A stage handles one message at a time and in the order the messages were submitted,
+ * but different stages run at once, so one message may be compressed while the one
+ * before it is encrypted. The processed messages reach the output one at a time and in
+ * the order they were submitted.
+ *
+ * Since each stage is serial, processors which keep state for a single connection work
+ * as they do in the chain. A pipeline serves a single connection; the stages of different
+ * pipelines run in parallel.
+ */
+public class DataProcessorPipeline {
+    /**
+     * The number of messages a stage handles before the executor's thread is given back,
+     * so that a busy pipeline cannot hog it.
+     */
+    private static final int MAX_MESSAGES_PER_RUN = 64;
+
+    private final DataProcessorChain chain;
+    private final Executor executor;
+    private final int maxInFlightMessages;
+    private final Output output;
+    private final List<Stage> stages;
+
+    private int inFlightMessages;
+    private volatile boolean isClosed;
+
+    public interface Output {
+        /**
+         * Receives a processed message, on one of the executor's threads.
+         */
+        void onProcessed(byte[] data);
+
+        /**
+         * Receives what a processor threw for a message, in place of the message.
+         */
+        void onFailure(RuntimeException exception);
+    }
+
+    /**
+     * @param chain The chain whose processors to run. It must not be a template chain, and
+     *              nothing else may run it while the pipeline is open.
+     * @param executor The executor which runs the stages.
+     * @param maxInFlightMessages How many submitted messages may be waiting for or running
+     *                            in the stages before submitting waits.
+     * @param output The receiver of the processed messages.
+     */
+    public DataProcessorPipeline(DataProcessorChain chain, Executor executor, int maxInFlightMessages,
+                                 Output output) {
+        if (chain == null)
+            throw new IllegalArgumentException("The chain cannot be null.");
+        if (executor == null)
+            throw new IllegalArgumentException("The executor cannot be null.");
+        if (maxInFlightMessages <= 0)
+            throw new IllegalArgumentException("The maxInFlightMessages must be positive.");
+        if (output == null)
+            throw new IllegalArgumentException("The output cannot be null.");
+
+        this.chain = chain;
+        this.executor = executor;
+        this.maxInFlightMessages = maxInFlightMessages;
+        this.output = output;
+
+        stages = new ArrayList<>();
+        for (DataProcessor dataProcessor : chain.getDataProcessors())
+            stages.add(new Stage(dataProcessor, stages.size()));
+        stages.add(new Stage(null, stages.size()));
+    }
+
+    /**
+     * Queues the data to be processed.
+     * @param data The data to process.
+     * @param mayWait Whether to wait while the pipeline is full. A caller which must not
+     *                block, such as a selector loop, passes <code>false</code> and may take
+     *                the pipeline past its limit.
+     * @throws InterruptedException Thrown when the thread was interrupted while waiting.
+     */
+    public void submit(byte[] data, boolean mayWait) throws InterruptedException {
+        submit(new Message(data, false), mayWait);
+    }
+
+    /**
+     * Queues data which is processed already, so that it reaches the output in order with
+     * the other messages. It passes through the stages untouched.
+     */
+    public void submitProcessed(byte[] data, boolean mayWait) throws InterruptedException {
+        submit(new Message(data, true), mayWait);
+    }
+
+    private void submit(Message message, boolean mayWait) throws InterruptedException {
+        synchronized (this) {
+            while (mayWait && inFlightMessages >= maxInFlightMessages && !isClosed)
+                wait();
+            if (isClosed)
+                return;
+            inFlightMessages++;
+        }
+        stages.get(0).dispatch(message);
+    }
+
+    /**
+     * @return The number of submitted messages which did not reach the output yet.
+     */
+    public synchronized int getInFlightMessages() {
+        return inFlightMessages;
+    }
+
+    /**
+     * Drops the messages which did not reach the output yet and releases the chain, once no
+     * stage is running its processor anymore. Waiting submitters are let go.
+     */
+    public void close() {
+        isClosed = true;
+        for (Stage stage : stages) {
+            synchronized (stage) {
+                stage.messages.clear();
+            }
+        }
+        chain.release();
+
+        synchronized (this) {
+            inFlightMessages = 0;
+            notifyAll();
+        }
+    }
+
+    private synchronized void onMessageDone() {
+        if (inFlightMessages > 0 && inFlightMessages-- == maxInFlightMessages)
+            notifyAll();
+    }
+
+    private static class Message {
+        private byte[] data;
+        private RuntimeException failure;
+        private final boolean isProcessed;
+
+        public Message(byte[] data, boolean isProcessed) {
+            this.data = data;
+            this.isProcessed = isProcessed;
+        }
+    }
+
+    /**
+     * Runs the messages through one processor on the executor, or hands them to the output
+     * when it has none. The processor only runs while the stage is held, which lets
+     * {@link #close()} wait for it before releasing the chain.
+     */
+    private class Stage implements Runnable {
+        private final DataProcessor dataProcessor;
+        private final int index;
+        private final Queue<Message> messages;
+        private final AtomicBoolean isScheduled;
+
+        public Stage(DataProcessor dataProcessor, int index) {
+            this.dataProcessor = dataProcessor;
+            this.index = index;
+            this.messages = new ConcurrentLinkedQueue<>();
+            this.isScheduled = new AtomicBoolean();
+        }
+
+        public void dispatch(Message message) {
+            messages.add(message);
+            schedule();
+        }
+
+        private void schedule() {
+            if (isScheduled.compareAndSet(false, true))
+                executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            Message message;
+            int messageCount = 0;
+            while (messageCount++ < MAX_MESSAGES_PER_RUN && !isClosed && (message = messages.poll()) != null) {
+                if (dataProcessor == null) {
+                    deliver(message);
+                    continue;
+                }
+
+                if (!message.isProcessed && message.failure == null) {
+                    synchronized (this) {
+                        if (isClosed)
+                            return;
+                        try {
+                            message.data = dataProcessor.process(message.data);
+                        } catch (RuntimeException e) {
+                            message.failure = e;
+                        }
+                    }
+                }
+                stages.get(index + 1).dispatch(message);
+            }
+
+            isScheduled.set(false);
+
+            // Messages dispatched while the flag was still set are picked up here.
+            if (!messages.isEmpty() && !isClosed)
+                schedule();
+        }
+
+        private void deliver(Message message) {
+            try {
+                if (message.failure != null)
+                    output.onFailure(message.failure);
+                else
+                    output.onProcessed(message.data);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                onMessageDone();
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.bmdelacruz.socketify.data;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the messages of one connection as a single deflate stream, flushing it after
+ * each message, so that a message can refer back to the ones sent before it. Small,
+ * repetitive messages shrink much more than when each is compressed on its own. The
+ * empty block which ends each flush is left out, like permessage-deflate does, and
+ * {@link InflateDataProcessor} puts it back.
+ *
+ * Each connection needs its own instance, so add it through {@link #factory(int, byte[])}.
+ */
+public class DeflateDataProcessor extends BufferDataProcessor {
+    private final Deflater deflater;
+
+    private byte[] inputBytes;
+
+    /**
+     * @param level The compression level, from {@link Deflater#BEST_SPEED} to
+     *              {@link Deflater#BEST_COMPRESSION}, or {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param dictionary Bytes which are likely to occur in the messages, or null. The
+     *                   inflating side must use the same dictionary.
+     */
+    public DeflateDataProcessor(int level, byte[] dictionary) {
+        deflater = new Deflater(level, true);
+        if (dictionary != null)
+            deflater.setDictionary(dictionary);
+        inputBytes = new byte[0];
+    }
+
+    /**
+     * @return A factory of processors with the given level and dictionary.
+     */
+    public static DataProcessorFactory factory(final int level, final byte[] dictionary) {
+        return new DataProcessorFactory() {
+            @Override
+            public DataProcessor newDataProcessor() {
+                return new DeflateDataProcessor(level, dictionary);
+            }
+        };
+    }
+
+    @Override
+    public int getMaxOutputLength(int inputLength) {
+        // The worst case of zlib's deflateBound, plus the empty block of the flush.
+        return inputLength + (inputLength >> 12) + (inputLength >> 14) + (inputLength >> 25) + 32;
+    }
+
+    @Override
+    public void process(ByteBuffer input, ByteBuffer output) {
+        int inputLength = input.remaining();
+        if (input.hasArray()) {
+            deflater.setInput(input.array(), input.arrayOffset() + input.position(), inputLength);
+        } else {
+            if (inputBytes.length < inputLength)
+                inputBytes = new byte[inputLength];
+            input.duplicate().get(inputBytes, 0, inputLength);
+            deflater.setInput(inputBytes, 0, inputLength);
+        }
+        input.position(input.limit());
+
+        int room = output.remaining();
+        int written = deflater.deflate(output.array(), output.arrayOffset() + output.position(), room,
+                Deflater.SYNC_FLUSH);
+        if (written == room)
+            throw new IllegalStateException("The deflated message did not fit in " + room + " bytes.");
+
+        // Drops the 00 00 FF FF of the empty block which ends the flush. With nothing to
+        // flush, as for an empty message after an earlier one, the deflater writes no
+        // block at all, so the message is the header byte of the empty block which the
+        // inflating side completes.
+        if (written == 0)
+            output.put((byte) 0x00);
+        else
+            output.position(output.position() + written - 4);
+    }
+
+    @Override
+    public void release() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,95 @@
+package com.bmdelacruz.socketify.data;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses the messages of one connection which were compressed by a
+ * {@link DeflateDataProcessor}, keeping the window of the stream across messages.
+ *
+ * Each connection needs its own instance, so add it through {@link #factory(byte[], int)}.
+ */
+public class InflateDataProcessor extends DataProcessor {
+    private static final byte[] FLUSH_TRAILER = { 0x00, 0x00, (byte) 0xFF, (byte) 0xFF };
+
+    private final Inflater inflater;
+    private final int maxMessageLength;
+
+    private byte[] output;
+
+    public InflateDataProcessor(byte[] dictionary) {
+        this(dictionary, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param dictionary The dictionary the deflating side uses, or null.
+     * @param maxMessageLength The longest message this processor inflates. Longer ones
+     *                         fail the connection, so that a small message cannot take
+     *                         up the whole heap.
+     */
+    public InflateDataProcessor(byte[] dictionary, int maxMessageLength) {
+        if (maxMessageLength <= 0)
+            throw new IllegalArgumentException("The maxMessageLength must be positive.");
+
+        this.maxMessageLength = maxMessageLength;
+
+        inflater = new Inflater(true);
+        if (dictionary != null)
+            inflater.setDictionary(dictionary);
+        output = new byte[1024];
+    }
+
+    /**
+     * @return A factory of processors with the given dictionary and message limit.
+     */
+    public static DataProcessorFactory factory(final byte[] dictionary, final int maxMessageLength) {
+        return new DataProcessorFactory() {
+            @Override
+            public DataProcessor newDataProcessor() {
+                return new InflateDataProcessor(dictionary, maxMessageLength);
+            }
+        };
+    }
+
+    @Override
+    public byte[] process(byte[] data) {
+        inflater.setInput(data);
+        int length = inflate(0);
+        inflater.setInput(FLUSH_TRAILER);
+        length = inflate(length);
+
+        return Arrays.copyOf(output, length);
+    }
+
+    /**
+     * Inflates the whole input after the given number of bytes of the output.
+     * @return The number of bytes in the output.
+     */
+    private int inflate(int length) {
+        try {
+            while (true) {
+                if (length > maxMessageLength)
+                    throw new DataProcessingException("The inflated message is longer than "
+                            + maxMessageLength + " bytes.");
+
+                // One byte past the limit is enough to tell that a message is too long.
+                if (length == output.length)
+                    output = Arrays.copyOf(output, (int) Math.min(Math.min((long) length * 2,
+                            (long) maxMessageLength + 1), Integer.MAX_VALUE - 8));
+
+                int inflatedBytes = inflater.inflate(output, length, output.length - length);
+                if (inflatedBytes == 0)
+                    return length;
+                length += inflatedBytes;
+            }
+        } catch (DataFormatException e) {
+            throw new DataProcessingException("The message is not part of a deflate stream.", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        inflater.end();
+    }
+}
@@ -1,6 +1,8 @@
 package com.bmdelacruz.socketify.finder;
 
+import com.bmdelacruz.socketify.commons.BufferAllocator;
 import com.bmdelacruz.socketify.commons.PendingData;
+import com.bmdelacruz.socketify.metrics.Counter;
 import com.bmdelacruz.socketify.server.Server;
 
 import java.io.IOException;
@@ -21,6 +23,8 @@ public class FindableServer extends Server {
 
     private final InetSocketAddress findableAddress;
     private final int datagramBufferSize;
+    private final Counter discoveryRequests;
+    private final Counter discoveryReplies;
 
     private Thread findableServerThread;
     private Selector selector;
@@ -42,6 +46,8 @@ public class FindableServer extends Server {
         this.datagramBufferSize = datagramBufferSize;
 
         findableAddress = new InetSocketAddress(discoverablePort);
+        discoveryRequests = getMetrics().counter("discovery.requests");
+        discoveryReplies = getMetrics().counter("discovery.replies");
     }
 
     public void setListener(Listener listener) {
@@ -102,8 +108,17 @@ public class FindableServer extends Server {
         DatagramPendingData pendingWrite = (DatagramPendingData) pendingWrites.get(datagramChannel);
         List<byte[]> pendingData = pendingWrite.getPendingData();
 
-        for (byte[] data : pendingData)
-            datagramChannel.send(ByteBuffer.wrap(data), pendingWrite.getSocketAddress());
+        BufferAllocator bufferAllocator = getBufferAllocator();
+        for (byte[] data : pendingData) {
+            ByteBuffer buffer = bufferAllocator.allocate(data.length);
+            try {
+                buffer.put(data).flip();
+                if (datagramChannel.send(buffer, pendingWrite.getSocketAddress()) > 0)
+                    discoveryReplies.increment();
+            } finally {
+                bufferAllocator.release(buffer);
+            }
+        }
 
         pendingData.clear();
 
@@ -112,13 +127,23 @@ public class FindableServer extends Server {
 
     private void readDatagram(SelectionKey key) throws IOException {
         DatagramChannel datagramChannel = ((DatagramChannel) key.channel());
-        ByteBuffer buffer = ByteBuffer.allocate(datagramBufferSize);
-
-        SocketAddress socketAddress = datagramChannel.receive(buffer);
-        buffer.flip();
+        BufferAllocator bufferAllocator = getBufferAllocator();
+        ByteBuffer buffer = bufferAllocator.allocate(datagramBufferSize);
+
+        SocketAddress socketAddress;
+        byte[] receivedData;
+        try {
+            socketAddress = datagramChannel.receive(buffer);
+            buffer.flip();
+
+            receivedData = new byte[buffer.limit()];
+            buffer.get(receivedData);
+        } finally {
+            bufferAllocator.release(buffer);
+        }
 
-        byte[] receivedData = new byte[buffer.limit()];
-        buffer.get(receivedData);
+        if (socketAddress != null)
+            discoveryRequests.increment();
 
         if (getReplyCondition(receivedData)) {
             byte[] replyData = createReplyData(receivedData);
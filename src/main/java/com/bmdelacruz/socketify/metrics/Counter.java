@@ -0,0 +1,45 @@
+package com.bmdelacruz.socketify.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count which many threads add to at once. Each thread adds to one of several cells,
+ * picked by its ID and a cache line apart from the others, so that threads such as the
+ * selector loops rarely touch the same line. Reading the count sums the cells.
+ */
+public class Counter {
+    /**
+     * The number of longs from one cell to the next, which keeps each cell on a cache
+     * line of its own.
+     */
+    private static final int CELL_SPACING = 8;
+    private static final int MAX_CELLS = 64;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public Counter() {
+        int cellCount = 1;
+        while (cellCount < Runtime.getRuntime().availableProcessors() && cellCount < MAX_CELLS)
+            cellCount *= 2;
+
+        cells = new AtomicLongArray((cellCount + 1) * CELL_SPACING);
+        mask = cellCount - 1;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long value) {
+        // The first cell starts a line in, away from whatever sits before the array.
+        cells.getAndAdd(((int) Thread.currentThread().getId() & mask) * CELL_SPACING + CELL_SPACING, value);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = CELL_SPACING; i < cells.length(); i += CELL_SPACING)
+            sum += cells.get(i);
+        return sum;
+    }
+}
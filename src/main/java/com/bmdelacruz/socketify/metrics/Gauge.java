@@ -0,0 +1,8 @@
+package com.bmdelacruz.socketify.metrics;
+
+/**
+ * A value which is worked out when it is read, such as the number of open connections.
+ */
+public interface Gauge {
+    long getValue();
+}
@@ -0,0 +1,124 @@
+package com.bmdelacruz.socketify.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts non-negative values, such as durations in nanoseconds, in buckets whose width
+ * grows with the value, the way HdrHistogram does. Values below 64 get a bucket each, and
+ * every doubling above that is split into 32 buckets, so a percentile is off by at most
+ * about 3% of its value. Recording costs one atomic increment, and the histogram takes
+ * about 15 KB whatever range the values span.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final Counter sum;
+    private final AtomicLong max;
+
+    public Histogram() {
+        counts = new AtomicLongArray(BUCKET_COUNT);
+        sum = new Counter();
+        max = new AtomicLong();
+    }
+
+    /**
+     * @param value The value to count. Negative values are counted as 0.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+
+        counts.incrementAndGet(indexOf(value));
+        sum.add(value);
+
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value))
+            currentMax = max.get();
+    }
+
+    /**
+     * @return A copy of the counts, whose values are consistent enough for reporting even
+     * while values are being recorded.
+     */
+    public Snapshot snapshot() {
+        long[] snapshotCounts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshotCounts[i] = counts.get(i);
+            count += snapshotCounts[i];
+        }
+        return new Snapshot(snapshotCounts, count, sum.get(), max.get());
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_BUCKETS)
+            return (int) value;
+
+        // The value is shifted down to its top SUB_BUCKET_BITS + 1 bits, which lands it
+        // among the 32 buckets of its doubling.
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return The largest value which falls into the bucket.
+     */
+    private static long highestValueOf(int index) {
+        if (index < LINEAR_BUCKETS)
+            return index;
+
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * @param percentile The percentile to get, from 0 to 100.
+         * @return The value which at least that percentage of the values do not exceed, as
+         * the top of its bucket, or 0 when nothing was recorded.
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0)
+                return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100) / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(highestValueOf(i), max);
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.bmdelacruz.socketify.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanConstructorInfo;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Shows the values of a registry as read-only attributes, named as in
+ * {@link MetricsRegistry#snapshot()}. The attributes follow the metrics as they are added.
+ */
+class MetricsMBean implements DynamicMBean {
+    private final MetricsRegistry metricsRegistry;
+
+    MetricsMBean(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = metricsRegistry.snapshot().get(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException("There is no metric named " + attribute + ".");
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Long> values = metricsRegistry.snapshot();
+        AttributeList attributeList = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = values.get(attribute);
+            if (value != null)
+                attributeList.add(new Attribute(attribute, value));
+        }
+        return attributeList;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("The metrics are read-only.");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("The metrics have no operations.");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributeInfos = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : metricsRegistry.snapshot().entrySet())
+            attributeInfos.add(new MBeanAttributeInfo(entry.getKey(), "long", entry.getKey(), true, false, false));
+
+        return new MBeanInfo(MetricsRegistry.class.getName(), "Socketify metrics",
+                attributeInfos.toArray(new MBeanAttributeInfo[attributeInfos.size()]),
+                new MBeanConstructorInfo[0], new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+    }
+}
@@ -0,0 +1,117 @@
+package com.bmdelacruz.socketify.metrics;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The named counters, histograms and gauges of a server or client. The values can be
+ * pulled all at once through {@link #snapshot()}, or watched through JMX once the registry
+ * is registered as an MBean. A histogram shows up as its count, mean, max and a few
+ * percentiles, each under the histogram's name with a suffix such as <code>.p99</code>.
+ */
+public class MetricsRegistry {
+    private static final String[] PERCENTILE_SUFFIXES = { ".p50", ".p90", ".p99", ".p999" };
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private final ConcurrentHashMap<String, Object> metrics;
+
+    public MetricsRegistry() {
+        metrics = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return The counter of the name, which is created if there is none yet.
+     */
+    public Counter counter(String name) {
+        return (Counter) register(name, new Counter(), Counter.class);
+    }
+
+    /**
+     * @return The histogram of the name, which is created if there is none yet.
+     */
+    public Histogram histogram(String name) {
+        return (Histogram) register(name, new Histogram(), Histogram.class);
+    }
+
+    /**
+     * Adds a gauge under the name, unless the name is taken already.
+     */
+    public void gauge(String name, Gauge gauge) {
+        if (gauge == null)
+            throw new IllegalArgumentException("The gauge cannot be null.");
+        register(name, gauge, Gauge.class);
+    }
+
+    private Object register(String name, Object metric, Class<?> type) {
+        if (name == null)
+            throw new IllegalArgumentException("The name cannot be null.");
+
+        Object existing = metrics.putIfAbsent(name, metric);
+        if (existing == null)
+            return metric;
+        if (!type.isInstance(existing))
+            throw new IllegalArgumentException("The name " + name + " is taken by another kind of metric.");
+        return existing;
+    }
+
+    /**
+     * @return The current value of every metric, by name.
+     */
+    public SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            String name = entry.getKey();
+            Object metric = entry.getValue();
+
+            if (metric instanceof Counter) {
+                values.put(name, ((Counter) metric).get());
+            } else if (metric instanceof Gauge) {
+                values.put(name, ((Gauge) metric).getValue());
+            } else {
+                Histogram.Snapshot snapshot = ((Histogram) metric).snapshot();
+                values.put(name + ".count", snapshot.getCount());
+                values.put(name + ".mean", snapshot.getMean());
+                values.put(name + ".max", snapshot.getMax());
+                for (int i = 0; i < PERCENTILES.length; i++)
+                    values.put(name + PERCENTILE_SUFFIXES[i], snapshot.getPercentile(PERCENTILES[i]));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Makes the metrics visible to JMX clients under the given name, for example
+     * <code>com.bmdelacruz.socketify:type=Server,port=8080</code>.
+     * @param objectName The name of the MBean.
+     * @throws IllegalArgumentException Thrown when the name is malformed or taken.
+     */
+    public void registerMBean(String objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), new ObjectName(objectName));
+        } catch (MalformedObjectNameException | InstanceAlreadyExistsException | MBeanRegistrationException
+                | NotCompliantMBeanException e) {
+            throw new IllegalArgumentException("The MBean cannot be registered as " + objectName + ".", e);
+        }
+    }
+
+    /**
+     * Removes the MBean registered through {@link #registerMBean(String)}, if any.
+     */
+    public void unregisterMBean(String objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(objectName));
+        } catch (InstanceNotFoundException ignored) {
+        } catch (MalformedObjectNameException | MBeanRegistrationException e) {
+            throw new IllegalArgumentException("The MBean " + objectName + " cannot be unregistered.", e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.bmdelacruz.socketify.server;
+
+import com.bmdelacruz.socketify.metrics.Counter;
+import com.bmdelacruz.socketify.metrics.MetricsRegistry;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether an accepted socket may become a connection, by the number of
+ * connections the server has, how fast they are being accepted and how many come from
+ * the same address. Sockets are only admitted by the acceptor's thread, while admitted
+ * connections are released by whichever selector loop owned them.
+ */
+class AdmissionControl {
+    private int maxConnections;
+    private int maxAcceptRate;
+    private int maxConnectionsPerAddress;
+
+    private final AtomicInteger admittedConnections;
+    private final ConcurrentHashMap<InetAddress, Integer> addressConnections;
+    private double acceptPermits;
+    private long lastPermitTime;
+
+    private final Counter connectionLimitRefusals;
+    private final Counter acceptRateRefusals;
+    private final Counter addressLimitRefusals;
+
+    AdmissionControl(MetricsRegistry metrics) {
+        maxConnections = Integer.MAX_VALUE;
+        maxAcceptRate = Integer.MAX_VALUE;
+        maxConnectionsPerAddress = Integer.MAX_VALUE;
+        admittedConnections = new AtomicInteger();
+        addressConnections = new ConcurrentHashMap<>();
+
+        connectionLimitRefusals = metrics.counter("connections.refused.limit");
+        acceptRateRefusals = metrics.counter("connections.refused.rate");
+        addressLimitRefusals = metrics.counter("connections.refused.address");
+    }
+
+    void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    void setMaxAcceptRate(int maxAcceptRate) {
+        this.maxAcceptRate = maxAcceptRate;
+        this.acceptPermits = maxAcceptRate;
+        this.lastPermitTime = System.nanoTime();
+    }
+
+    void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    /**
+     * @return <code>true</code> if the connection is admitted, in which case it must be
+     * released with {@link #release(InetAddress)} once it ends.
+     */
+    boolean admit(InetAddress address, long now) {
+        // Only the acceptor's thread adds connections, so the count cannot grow between
+        // the check and the increment.
+        if (admittedConnections.get() >= maxConnections) {
+            connectionLimitRefusals.increment();
+            return false;
+        }
+        // The address is checked before a permit is taken, so that an address at its
+        // limit cannot use up the permits of the others.
+        if (maxConnectionsPerAddress != Integer.MAX_VALUE && !addAddressConnection(address)) {
+            addressLimitRefusals.increment();
+            return false;
+        }
+        if (maxAcceptRate != Integer.MAX_VALUE && !takeAcceptPermit(now)) {
+            if (maxConnectionsPerAddress != Integer.MAX_VALUE)
+                removeAddressConnection(address);
+            acceptRateRefusals.increment();
+            return false;
+        }
+
+        admittedConnections.incrementAndGet();
+        return true;
+    }
+
+    void release(InetAddress address) {
+        admittedConnections.decrementAndGet();
+        if (maxConnectionsPerAddress != Integer.MAX_VALUE)
+            removeAddressConnection(address);
+    }
+
+    /**
+     * A token bucket which fills at the accept rate and holds up to a second's worth of
+     * permits, so that a burst of that size is still accepted at once.
+     */
+    private boolean takeAcceptPermit(long now) {
+        double refill = (double) (now - lastPermitTime) * maxAcceptRate / TimeUnit.SECONDS.toNanos(1);
+        acceptPermits = Math.min(maxAcceptRate, acceptPermits + refill);
+        lastPermitTime = now;
+
+        if (acceptPermits < 1)
+            return false;
+        acceptPermits--;
+        return true;
+    }
+
+    private boolean addAddressConnection(InetAddress address) {
+        while (true) {
+            Integer count = addressConnections.get(address);
+            if (count == null) {
+                if (addressConnections.putIfAbsent(address, 1) == null)
+                    return true;
+            } else if (count >= maxConnectionsPerAddress) {
+                return false;
+            } else if (addressConnections.replace(address, count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void removeAddressConnection(InetAddress address) {
+        while (true) {
+            Integer count = addressConnections.get(address);
+            if (count == null)
+                return;
+            if (count == 1 ? addressConnections.remove(address, count)
+                    : addressConnections.replace(address, count, count - 1))
+                return;
+        }
+    }
+}
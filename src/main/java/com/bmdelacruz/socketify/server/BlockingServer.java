@@ -0,0 +1,441 @@
+package com.bmdelacruz.socketify.server;
+
+import com.bmdelacruz.socketify.commons.BufferAllocator;
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.commons.MarkerFrameCodec;
+import com.bmdelacruz.socketify.commons.PooledBufferAllocator;
+import com.bmdelacruz.socketify.data.DataProcessor;
+import com.bmdelacruz.socketify.data.DataProcessingException;
+import com.bmdelacruz.socketify.data.DataProcessorChain;
+import com.bmdelacruz.socketify.data.DataProcessorFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A server which serves each client on its own thread with blocking reads and writes,
+ * instead of multiplexing them on selector loops like {@link Server} does. It keeps the
+ * same listener, messenger and data processor contracts, so handlers which mostly block
+ * can be moved between the two.
+ *
+ * On runtimes with virtual threads, the connections are served by virtual threads unless
+ * another thread factory is set. Otherwise, each connection gets a platform thread. The
+ * server never blocks while holding a monitor, which would pin a virtual thread to its
+ * carrier, so a few slow clients cannot take the carriers from the others.
+ */
+public class BlockingServer {
+    private final InetSocketAddress serverAddress;
+    private final int bufferSize;
+
+    private Server.Listener listener;
+    private BufferAllocator bufferAllocator;
+    private FrameCodec frameCodec;
+    private ThreadFactory threadFactory;
+
+    private Thread serverThread;
+    private ServerSocketChannel serverSocketChannel;
+
+    private Set<ClientConnection> clientConnections;
+
+    private DataProcessorChain readDataProcessorChain;
+    private DataProcessorChain writeDataProcessorChain;
+
+    public BlockingServer(int port) {
+        this(port, Server.DEFAULT_BUFFER_SIZE);
+    }
+
+    public BlockingServer(int port, int bufferSize) {
+        this.bufferSize = bufferSize;
+
+        serverAddress = new InetSocketAddress(port);
+        readDataProcessorChain = new DataProcessorChain();
+        writeDataProcessorChain = new DataProcessorChain();
+        bufferAllocator = PooledBufferAllocator.DEFAULT;
+        frameCodec = new MarkerFrameCodec();
+        threadFactory = defaultThreadFactory();
+    }
+
+    public void addReadDataProcessor(DataProcessor dataProcessor) {
+        readDataProcessorChain.addDataProcessor(dataProcessor);
+    }
+
+    public void addWriteDataProcessor(DataProcessor dataProcessor) {
+        writeDataProcessorChain.addDataProcessor(dataProcessor);
+    }
+
+    /**
+     * Adds a read stage whose processor keeps state for a single connection. Data which a
+     * processor rejects with a {@link DataProcessingException} fails the connection.
+     */
+    public void addReadDataProcessor(DataProcessorFactory dataProcessorFactory) {
+        readDataProcessorChain.addDataProcessorFactory(dataProcessorFactory);
+    }
+
+    /**
+     * Adds a write stage whose processor keeps state for a single connection. With such a
+     * stage, multicasts and broadcasts are processed once per recipient.
+     */
+    public void addWriteDataProcessor(DataProcessorFactory dataProcessorFactory) {
+        writeDataProcessorChain.addDataProcessorFactory(dataProcessorFactory);
+    }
+
+    /**
+     * Builds a ClientConnection instance.
+     * @param socketChannel The SocketChannel to be associated with the ClientConnection instance.
+     * @return The newly created ClientConnection instance.
+     */
+    public ClientConnection createClientConnection(SocketChannel socketChannel) {
+        return new ClientConnection(socketChannel);
+    }
+
+    public void setListener(Server.Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the allocator of the buffers used for reading from and writing to the clients.
+     * Must be called before {@link #start()}.
+     * @param bufferAllocator The allocator to use.
+     */
+    public void setBufferAllocator(BufferAllocator bufferAllocator) {
+        if (bufferAllocator == null)
+            throw new IllegalArgumentException("The bufferAllocator cannot be null.");
+        this.bufferAllocator = bufferAllocator;
+    }
+
+    public BufferAllocator getBufferAllocator() {
+        return bufferAllocator;
+    }
+
+    /**
+     * Sets how the messages are framed on the stream. The clients must use the same kind
+     * of codec. Must be called before {@link #start()}.
+     * @param frameCodec The codec to use.
+     */
+    public void setFrameCodec(FrameCodec frameCodec) {
+        if (frameCodec == null)
+            throw new IllegalArgumentException("The frameCodec cannot be null.");
+        this.frameCodec = frameCodec;
+    }
+
+    public FrameCodec getFrameCodec() {
+        return frameCodec;
+    }
+
+    /**
+     * Sets the factory of the threads which serve the connections, one thread each.
+     * Must be called before {@link #start()}.
+     * @param threadFactory The factory to use.
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        if (threadFactory == null)
+            throw new IllegalArgumentException("The threadFactory cannot be null.");
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Start listening for client connections.
+     * @throws IOException Thrown when something went wrong while setting up the server.
+     */
+    public void start() throws IOException {
+        clientConnections = Collections.newSetFromMap(new ConcurrentHashMap<ClientConnection, Boolean>());
+
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.socket().bind(serverAddress);
+
+        serverThread = new Thread(new AcceptorRunnable());
+        serverThread.start();
+    }
+
+    /**
+     * Stop serving clients.
+     */
+    public void stop() {
+        serverThread.interrupt();
+        try {
+            serverSocketChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        for (ClientConnection clientConnection : clientConnections)
+            end(clientConnection);
+    }
+
+    /**
+     * @return A live, unmodifiable view of the connected clients.
+     */
+    public Collection<ClientConnection> getClientConnections() {
+        return Collections.unmodifiableSet(clientConnections);
+    }
+
+    /**
+     * Sends the data to the specified ClientConnection, blocking until it is written.
+     * @param clientConnection The client which will receive the data.
+     * @param data The data to be transferred to the client.
+     */
+    public void sendTo(ClientConnection clientConnection, byte[] data) {
+        DataProcessorChain chain = clientConnection.getWriteDataProcessorChain();
+        if (chain == writeDataProcessorChain) {
+            write(clientConnection, chain, data);
+            return;
+        }
+
+        // The chain keeps state for the connection, so its frames must be written in the
+        // order it made them.
+        ReentrantLock writeLock = clientConnection.getWriteLock();
+        writeLock.lock();
+        try {
+            if (!chain.isReleased())
+                write(clientConnection, chain, data);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void write(ClientConnection clientConnection, DataProcessorChain chain, byte[] data) {
+        ByteBuffer frame = encode(chain.process(ByteBuffer.wrap(data)));
+        try {
+            write(clientConnection, frame);
+        } finally {
+            bufferAllocator.release(frame);
+        }
+    }
+
+    /**
+     * Sends the data to the clients which meet the condition, one after the other. The
+     * data is processed and framed only once, unless the write chain has processors made
+     * for each connection. Each write blocks until the client's socket takes the frame,
+     * so a client which stops reading holds up the caller and the clients after it. Use
+     * {@link Server} when one slow client must not delay the others.
+     */
+    public void multicast(byte[] data, Server.MulticastCondition multicastCondition) {
+        if (writeDataProcessorChain.hasDataProcessorFactories()) {
+            for (ClientConnection clientConnection : clientConnections) {
+                if (multicastCondition.isIncludedInMulticast(clientConnection)) {
+                    sendTo(clientConnection, data);
+                }
+            }
+            return;
+        }
+
+        ByteBuffer frame = encode(writeDataProcessorChain.process(ByteBuffer.wrap(data)));
+        try {
+            for (ClientConnection clientConnection : clientConnections) {
+                if (multicastCondition.isIncludedInMulticast(clientConnection)) {
+                    write(clientConnection, frame.duplicate());
+                }
+            }
+        } finally {
+            bufferAllocator.release(frame);
+        }
+    }
+
+    /**
+     * Sends the data to all the clients, one after the other. The data is processed and
+     * framed only once, unless the write chain has processors made for each connection.
+     * Like {@link #multicast(byte[], Server.MulticastCondition)}, a client which stops
+     * reading holds up the caller and the clients after it.
+     */
+    public void broadcast(byte[] data) {
+        if (writeDataProcessorChain.hasDataProcessorFactories()) {
+            for (ClientConnection clientConnection : clientConnections) {
+                sendTo(clientConnection, data);
+            }
+            return;
+        }
+
+        ByteBuffer frame = encode(writeDataProcessorChain.process(ByteBuffer.wrap(data)));
+        try {
+            for (ClientConnection clientConnection : clientConnections) {
+                write(clientConnection, frame.duplicate());
+            }
+        } finally {
+            bufferAllocator.release(frame);
+        }
+    }
+
+    private ByteBuffer encode(ByteBuffer payload) {
+        ByteBuffer frame = bufferAllocator.allocate(frameCodec.getEncodedLength(payload.remaining()));
+        frameCodec.encode(payload, frame);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Writes the whole frame to the client. Writers of the same client take turns on its
+     * write lock, so that their frames never interleave. When the write fails, the
+     * connection is closed, which its own thread then reports as a failure.
+     */
+    private void write(ClientConnection clientConnection, ByteBuffer frame) {
+        SocketChannel socketChannel = clientConnection.getSocketChannel();
+        ReentrantLock writeLock = clientConnection.getWriteLock();
+        writeLock.lock();
+        try {
+            while (frame.hasRemaining())
+                socketChannel.write(frame);
+        } catch (IOException e) {
+            try {
+                socketChannel.close();
+            } catch (IOException ignored) {
+            }
+
+            if (listener != null)
+                listener.onClientMessageFailed(clientConnection, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the connection and forgets it.
+     * @return <code>false</code> if the connection had already ended.
+     */
+    private boolean end(ClientConnection clientConnection) {
+        if (!clientConnections.remove(clientConnection))
+            return false;
+
+        try {
+            clientConnection.getSocketChannel().close();
+        } catch (IOException ignored) {
+        }
+        // Closing the channel first lets a writer holding the chain give it up.
+        clientConnection.getWriteDataProcessorChain().release();
+        return true;
+    }
+
+    /**
+     * @return A factory of virtual threads when the runtime has them, or else a factory
+     * of platform threads.
+     */
+    private static ThreadFactory defaultThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (Exception | LinkageError e) {
+            return Executors.defaultThreadFactory();
+        }
+    }
+
+    private class AcceptorRunnable implements Runnable {
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                SocketChannel socketChannel;
+                try {
+                    socketChannel = serverSocketChannel.accept();
+                } catch (IOException e) {
+                    if (serverSocketChannel.isOpen())
+                        e.printStackTrace();
+                    break;
+                }
+
+                ClientConnection clientConnection = createClientConnection(socketChannel);
+                clientConnection.setReadDataProcessorChain(readDataProcessorChain.newConnectionChain());
+                clientConnection.setWriteDataProcessorChain(writeDataProcessorChain.newConnectionChain());
+                clientConnection.setWriteLock(new ReentrantLock());
+                clientConnections.add(clientConnection);
+
+                if (listener != null)
+                    listener.onClientConnect(clientConnection);
+
+                threadFactory.newThread(new ConnectionRunnable(clientConnection)).start();
+            }
+        }
+    }
+
+    /**
+     * Reads the client's messages until it disconnects, handing each one to the
+     * connection's listeners on this same thread.
+     */
+    private class ConnectionRunnable implements Runnable {
+        private final ClientConnection clientConnection;
+
+        public ConnectionRunnable(ClientConnection clientConnection) {
+            this.clientConnection = clientConnection;
+        }
+
+        @Override
+        public void run() {
+            SocketChannel socketChannel = clientConnection.getSocketChannel();
+            DataProcessorChain readChain = clientConnection.getReadDataProcessorChain();
+            FrameCodec.Decoder frameDecoder = frameCodec.newDecoder(bufferAllocator);
+            List<byte[]> completeDataList = new ArrayList<>();
+            ClientConnection.Messenger messenger = new BlockingMessenger(clientConnection);
+
+            // Anything but the client closing its end counts as a failure, including a
+            // listener which throws, and the connection is ended whichever way it goes.
+            boolean isFailed = true;
+            ByteBuffer buffer = bufferAllocator.allocate(bufferSize);
+            try {
+                while (socketChannel.read(buffer) != -1) {
+                    buffer.flip();
+
+                    FrameCodec.ChunkListener chunkListener = clientConnection.getChunkListener(messenger);
+                    if (chunkListener != null) {
+                        frameDecoder.decode(buffer, chunkListener);
+                    } else {
+                        frameDecoder.decode(buffer, completeDataList);
+
+                        for (byte[] data : completeDataList)
+                            clientConnection.onDataReceived(readChain.process(data), messenger);
+
+                        completeDataList.clear();
+                    }
+                    buffer.clear();
+                }
+                isFailed = false;
+            } catch (IOException | DataProcessingException ignored) {
+            } finally {
+                bufferAllocator.release(buffer);
+                frameDecoder.release();
+                readChain.release();
+
+                if (end(clientConnection)) {
+                    if (isFailed)
+                        clientConnection.onFailure();
+                    else
+                        clientConnection.onDisconnected();
+                }
+            }
+        }
+    }
+
+    private class BlockingMessenger implements ClientConnection.Messenger {
+        private final ClientConnection clientConnection;
+
+        public BlockingMessenger(ClientConnection clientConnection) {
+            this.clientConnection = clientConnection;
+        }
+
+        @Override
+        public void reply(byte[] data) {
+            if (data != null)
+                sendTo(clientConnection, data);
+        }
+
+        @Override
+        public void multicast(byte[] data, Server.MulticastCondition multicastCondition) {
+            if (data != null)
+                BlockingServer.this.multicast(data, multicastCondition);
+        }
+
+        @Override
+        public void broadcast(byte[] data) {
+            if (data != null)
+                BlockingServer.this.broadcast(data);
+        }
+    }
+}
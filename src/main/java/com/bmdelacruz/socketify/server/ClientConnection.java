@@ -1,11 +1,45 @@
 package com.bmdelacruz.socketify.server;
 
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.commons.IdleMonitor;
+import com.bmdelacruz.socketify.commons.OutboundQueue;
+import com.bmdelacruz.socketify.data.DataProcessorChain;
+import com.bmdelacruz.socketify.data.DataProcessorPipeline;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ClientConnection {
     private SocketChannel socketChannel;
     private ArrayList<Listener> listeners;
+    private StreamListener streamListener;
+    private FrameCodec.ChunkListener chunkListener;
+
+    private volatile SelectionKey selectionKey;
+    private FrameCodec.Decoder frameDecoder;
+    private DataProcessorChain readDataProcessorChain;
+    private volatile DataProcessorChain writeDataProcessorChain;
+    private volatile DataProcessorPipeline writePipeline;
+    private final OutboundQueue outboundQueue;
+    private final AtomicBoolean isFlushScheduled;
+    private IdleMonitor idleMonitor;
+    private InetAddress remoteAddress;
+
+    private SerialDispatcher dispatcher;
+    private ReentrantLock writeLock;
+    private final AtomicInteger inFlightMessages;
+    private volatile boolean isReadPaused;
+    private volatile String sessionId;
+
+    private final AtomicLong receivedBytes;
+    private final AtomicLong receivedMessages;
 
     public interface Listener {
         void onDataReceived(ClientConnection clientConnection, byte[] data, Messenger messenger);
@@ -13,6 +47,24 @@ public class ClientConnection {
         void onFailure(ClientConnection clientConnection);
     }
 
+    /**
+     * Receives the messages of the client in chunks as they arrive, so that a large message
+     * never has to be held whole.
+     */
+    public interface StreamListener {
+        /**
+         * @param length The length of the message, or -1 when the codec only learns it at its end.
+         */
+        void onMessageStart(ClientConnection clientConnection, int length);
+
+        /**
+         * @param chunk The next bytes of the message. The buffer is only valid during the call.
+         */
+        void onChunk(ClientConnection clientConnection, ByteBuffer chunk);
+
+        void onMessageEnd(ClientConnection clientConnection, Messenger messenger);
+    }
+
     public interface Messenger {
         void reply(byte[] data);
         void multicast(byte[] data, Server.MulticastCondition multicastCondition);
@@ -22,12 +74,278 @@ public class ClientConnection {
     public ClientConnection(SocketChannel socketChannel) {
         this.socketChannel = socketChannel;
         this.listeners = new ArrayList<>();
+        this.outboundQueue = new OutboundQueue();
+        this.isFlushScheduled = new AtomicBoolean();
+        this.inFlightMessages = new AtomicInteger();
+        this.receivedBytes = new AtomicLong();
+        this.receivedMessages = new AtomicLong();
     }
 
     public SocketChannel getSocketChannel() {
         return socketChannel;
     }
 
+    /**
+     * @return The key of this connection on the selector which owns it, or null
+     * when the connection is not yet registered.
+     */
+    SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    FrameCodec.Decoder getFrameDecoder() {
+        return frameDecoder;
+    }
+
+    void setFrameDecoder(FrameCodec.Decoder frameDecoder) {
+        this.frameDecoder = frameDecoder;
+    }
+
+    /**
+     * @return The read chain of this connection, which is the server's own chain unless
+     * it has processors made for each connection.
+     */
+    DataProcessorChain getReadDataProcessorChain() {
+        return readDataProcessorChain;
+    }
+
+    void setReadDataProcessorChain(DataProcessorChain readDataProcessorChain) {
+        this.readDataProcessorChain = readDataProcessorChain;
+    }
+
+    DataProcessorChain getWriteDataProcessorChain() {
+        return writeDataProcessorChain;
+    }
+
+    void setWriteDataProcessorChain(DataProcessorChain writeDataProcessorChain) {
+        this.writeDataProcessorChain = writeDataProcessorChain;
+    }
+
+    /**
+     * @return The pipeline which runs the write chain of this connection off the sending
+     * thread, or null when the chain runs on the sending thread.
+     */
+    DataProcessorPipeline getWritePipeline() {
+        return writePipeline;
+    }
+
+    void setWritePipeline(DataProcessorPipeline writePipeline) {
+        this.writePipeline = writePipeline;
+    }
+
+    /**
+     * @return The number of bytes queued for this client which are not yet written.
+     */
+    public long getQueuedBytes() {
+        return outboundQueue.getQueuedBytes();
+    }
+
+    /**
+     * @return The number of messages queued for this client which are not yet fully written.
+     */
+    public int getQueuedMessages() {
+        return outboundQueue.getQueuedFrames();
+    }
+
+    /**
+     * @return The ID of the session this connection resumed, or null.
+     */
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * @return <code>false</code> if the connection already belongs to a session.
+     */
+    synchronized boolean bindSession(String sessionId) {
+        if (this.sessionId != null)
+            return false;
+        this.sessionId = sessionId;
+        return true;
+    }
+
+    OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * @return The monitor which watches this connection for idleness, or null when no
+     * idle timeout is set. Only used by the selector loop which owns the connection.
+     */
+    IdleMonitor getIdleMonitor() {
+        return idleMonitor;
+    }
+
+    void setIdleMonitor(IdleMonitor idleMonitor) {
+        this.idleMonitor = idleMonitor;
+    }
+
+    /**
+     * @return The address the connection was admitted from, kept so that it is still
+     * known once the socket is closed.
+     */
+    InetAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    void setRemoteAddress(InetAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * @return <code>true</code> if no flush was scheduled yet, in which case the caller
+     * must submit one.
+     */
+    boolean scheduleFlush() {
+        return isFlushScheduled.compareAndSet(false, true);
+    }
+
+    void clearFlushScheduled() {
+        isFlushScheduled.set(false);
+    }
+
+    /**
+     * @return The dispatcher which runs this connection's listeners off the selector loop,
+     * or null when they run on the loop.
+     */
+    SerialDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    void setDispatcher(SerialDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * @return The lock which the writers of this connection take turns on, or null when
+     * the connection is not served by a {@link BlockingServer}.
+     */
+    ReentrantLock getWriteLock() {
+        return writeLock;
+    }
+
+    void setWriteLock(ReentrantLock writeLock) {
+        this.writeLock = writeLock;
+    }
+
+    /**
+     * @return The number of received messages which were dispatched to the listeners but
+     * not yet handled by them.
+     */
+    public int getInFlightMessages() {
+        return inFlightMessages.get();
+    }
+
+    int incrementInFlightMessages() {
+        return inFlightMessages.incrementAndGet();
+    }
+
+    int decrementInFlightMessages() {
+        return inFlightMessages.decrementAndGet();
+    }
+
+    /**
+     * @return The number of bytes read from the client so far.
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * @return The number of whole messages received from the client so far. Messages
+     * which arrive through the stream listener are only counted in the bytes.
+     */
+    public long getReceivedMessages() {
+        return receivedMessages.get();
+    }
+
+    /**
+     * @return The number of bytes written to the client so far, frame headers included.
+     */
+    public long getSentBytes() {
+        return outboundQueue.getSentBytes();
+    }
+
+    /**
+     * @return The number of messages fully written to the client so far.
+     */
+    public long getSentMessages() {
+        return outboundQueue.getSentFrames();
+    }
+
+    /**
+     * Only the thread which reads the connection counts, so the counts are stored without
+     * the cost of an atomic add.
+     */
+    void addReceivedBytes(int byteCount) {
+        receivedBytes.lazySet(receivedBytes.get() + byteCount);
+    }
+
+    long incrementReceivedMessages() {
+        long count = receivedMessages.get() + 1;
+        receivedMessages.lazySet(count);
+        return count;
+    }
+
+    boolean isReadPaused() {
+        return isReadPaused;
+    }
+
+    void setReadPaused(boolean isReadPaused) {
+        this.isReadPaused = isReadPaused;
+    }
+
+    /**
+     * Makes the messages of this client arrive in chunks through the stream listener instead
+     * of whole through the listeners. The stream listener always runs on the thread which
+     * reads the connection, even when a listener executor is set, and the read data
+     * processors are not applied to the chunks. The messages are limited by the frame
+     * codec's maximum streamed frame size instead of its maximum frame size. Must be set in
+     * onClientConnect, before any data arrives.
+     * @param streamListener The listener to use, or null to receive whole messages.
+     */
+    public void setStreamListener(StreamListener streamListener) {
+        this.streamListener = streamListener;
+        this.chunkListener = null;
+    }
+
+    public StreamListener getStreamListener() {
+        return streamListener;
+    }
+
+    /**
+     * @return The listener which passes the chunks on to the stream listener, or null when
+     * there is no stream listener.
+     */
+    FrameCodec.ChunkListener getChunkListener(final Messenger messenger) {
+        if (streamListener == null)
+            return null;
+
+        if (chunkListener == null) {
+            chunkListener = new FrameCodec.ChunkListener() {
+                @Override
+                public void onMessageStart(int length) {
+                    streamListener.onMessageStart(ClientConnection.this, length);
+                }
+
+                @Override
+                public void onChunk(ByteBuffer chunk) {
+                    streamListener.onChunk(ClientConnection.this, chunk);
+                }
+
+                @Override
+                public void onMessageEnd() {
+                    streamListener.onMessageEnd(ClientConnection.this, messenger);
+                }
+            };
+        }
+        return chunkListener;
+    }
+
     public void addListener(Listener listener) {
         this.listeners.add(listener);
     }
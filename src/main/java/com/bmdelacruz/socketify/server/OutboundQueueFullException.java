@@ -0,0 +1,13 @@
+package com.bmdelacruz.socketify.server;
+
+/**
+ * Thrown when data is sent to a connection whose outbound queue is full and the
+ * server's backpressure policy is {@link Server.BackpressurePolicy#FAIL}.
+ */
+public class OutboundQueueFullException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    public OutboundQueueFullException(String message) {
+        super(message);
+    }
+}
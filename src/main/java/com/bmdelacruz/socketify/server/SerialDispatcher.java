@@ -0,0 +1,58 @@
+package com.bmdelacruz.socketify.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the callbacks of one connection on an executor, one at a time and in the order
+ * they were dispatched. Callbacks of different connections run in parallel since each
+ * connection has its own dispatcher.
+ */
+class SerialDispatcher implements Runnable {
+    /**
+     * The number of callbacks run before the executor's thread is given back, so that
+     * a busy connection cannot hog it.
+     */
+    private static final int MAX_CALLBACKS_PER_RUN = 64;
+
+    private final Executor executor;
+    private final Queue<Runnable> callbacks;
+    private final AtomicBoolean isScheduled;
+
+    SerialDispatcher(Executor executor) {
+        this.executor = executor;
+        this.callbacks = new ConcurrentLinkedQueue<>();
+        this.isScheduled = new AtomicBoolean();
+    }
+
+    void dispatch(Runnable callback) {
+        callbacks.add(callback);
+        schedule();
+    }
+
+    private void schedule() {
+        if (isScheduled.compareAndSet(false, true))
+            executor.execute(this);
+    }
+
+    @Override
+    public void run() {
+        Runnable callback;
+        int callbackCount = 0;
+        while (callbackCount++ < MAX_CALLBACKS_PER_RUN && (callback = callbacks.poll()) != null) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        isScheduled.set(false);
+
+        // Callbacks dispatched while the flag was still set are picked up here.
+        if (!callbacks.isEmpty())
+            schedule();
+    }
+}
@@ -1,40 +1,119 @@
 package com.bmdelacruz.socketify.server;
 
-import com.bmdelacruz.socketify.commons.PendingData;
+import com.bmdelacruz.socketify.commons.BufferAllocator;
+import com.bmdelacruz.socketify.commons.FileRegionFrame;
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.commons.IdleMonitor;
+import com.bmdelacruz.socketify.commons.IdleTimeouts;
+import com.bmdelacruz.socketify.commons.MarkerFrameCodec;
+import com.bmdelacruz.socketify.commons.OutboundFrame;
+import com.bmdelacruz.socketify.commons.OutboundQueue;
+import com.bmdelacruz.socketify.commons.OutboundSpool;
+import com.bmdelacruz.socketify.commons.PooledBufferAllocator;
 import com.bmdelacruz.socketify.commons.SelectionKeyProcessor;
+import com.bmdelacruz.socketify.commons.SharedBuffer;
+import com.bmdelacruz.socketify.commons.TimingWheel;
+import com.bmdelacruz.socketify.commons.WriteFuture;
 import com.bmdelacruz.socketify.data.DataProcessor;
+import com.bmdelacruz.socketify.data.DataProcessingException;
 import com.bmdelacruz.socketify.data.DataProcessorChain;
+import com.bmdelacruz.socketify.data.DataProcessorFactory;
+import com.bmdelacruz.socketify.data.DataProcessorPipeline;
+import com.bmdelacruz.socketify.metrics.Counter;
+import com.bmdelacruz.socketify.metrics.Gauge;
+import com.bmdelacruz.socketify.metrics.Histogram;
+import com.bmdelacruz.socketify.metrics.MetricsRegistry;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server {
     public static final int DEFAULT_BUFFER_SIZE = 1024;
+    public static final long DEFAULT_SPOOL_WATERMARK = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_PIPELINED_MESSAGES = 1024;
+    public static final int DEFAULT_BACKLOG = 1024;
+
+    /**
+     * The most connections accepted each time the server socket is ready, so that a storm
+     * of connections cannot keep the acceptor from its other work.
+     */
+    public static final int MAX_ACCEPTS_PER_SELECT = 64;
+
+    /**
+     * One in this many received messages has its listener callbacks timed.
+     */
+    private static final int CALLBACK_SAMPLING_MASK = 16 - 1;
 
     private final InetSocketAddress serverAddress;
     private final int bufferSize;
 
     private Listener listener;
+    private BufferAllocator bufferAllocator;
+    private FrameCodec frameCodec;
+
+    private int selectorLoopCount;
+    private LoadBalancing loadBalancing;
+
+    private long outboundQueueLimit;
+    private BackpressurePolicy backpressurePolicy;
+
+    private Executor listenerExecutor;
+    private int maxInFlightMessages;
+
+    private Executor writeProcessingExecutor;
+    private int maxPipelinedMessages;
+    private File spoolDirectory;
+    private long spoolWatermark;
+    private ConcurrentHashMap<String, OutboundSpool> retainedSessions;
+    private volatile boolean isStopping;
+
+    private IdleTimeouts idleTimeouts;
+    private byte[] heartbeatData;
+
+    private int backlog;
+    private final AdmissionControl admissionControl;
 
     private Thread serverThread;
-    private Selector selector;
     private ServerSocketChannel serverSocketChannel;
+    private SelectorLoop acceptorLoop;
+    private SelectorLoop[] selectorLoops;
+    private AtomicInteger nextSelectorLoopIndex;
 
-    private HashMap<SocketChannel, ClientConnection> clientConnections;
-    private HashMap<SocketChannel, PendingData> pendingWrites;
-    private HashMap<SocketChannel, PendingData> pendingReads;
+    private Set<ClientConnection> clientConnections;
 
     private DataProcessorChain readDataProcessorChain;
     private DataProcessorChain writeDataProcessorChain;
 
+    private final MetricsRegistry metrics;
+    private final Counter acceptedConnections;
+    private final Counter receivedBytes;
+    private final Counter receivedMessages;
+    private final Counter sentBytes;
+    private final Counter sentMessages;
+    private final Histogram loopIterationNanos;
+    private final Histogram listenerCallbackNanos;
+
     public interface Listener {
         void onClientConnect(ClientConnection clientConnection);
         void onClientMessageFailed(ClientConnection clientConnection, Exception e);
@@ -44,6 +123,41 @@ public class Server {
         boolean isIncludedInMulticast(ClientConnection clientConnection);
     }
 
+    /**
+     * The strategy used by the acceptor when picking the selector loop which will
+     * own a newly accepted connection.
+     */
+    public enum LoadBalancing {
+        ROUND_ROBIN,
+        LEAST_CONNECTIONS
+    }
+
+    /**
+     * What happens when data is sent to a client whose outbound queue is already at its
+     * limit.
+     */
+    public enum BackpressurePolicy {
+        /**
+         * The sender waits until the queue has room. Senders running on a selector loop
+         * never wait, since that would stall the loop, and queue the data anyway.
+         */
+        BLOCK,
+        /**
+         * The data is refused with an {@link OutboundQueueFullException}. When
+         * broadcasting or multicasting, the listener's onClientMessageFailed is called
+         * instead and the other clients still get the data.
+         */
+        FAIL,
+        /**
+         * The oldest messages which have not started being written are dropped to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * The slow client is disconnected and its onFailure is called.
+         */
+        DISCONNECT
+    }
+
     public Server(int port) {
         this(port, DEFAULT_BUFFER_SIZE);
     }
@@ -54,6 +168,53 @@ public class Server {
         serverAddress = new InetSocketAddress(port);
         readDataProcessorChain = new DataProcessorChain();
         writeDataProcessorChain = new DataProcessorChain();
+        loadBalancing = LoadBalancing.ROUND_ROBIN;
+        outboundQueueLimit = Long.MAX_VALUE;
+        backpressurePolicy = BackpressurePolicy.BLOCK;
+        maxInFlightMessages = Integer.MAX_VALUE;
+        spoolWatermark = DEFAULT_SPOOL_WATERMARK;
+        maxPipelinedMessages = DEFAULT_MAX_PIPELINED_MESSAGES;
+        retainedSessions = new ConcurrentHashMap<>();
+        idleTimeouts = new IdleTimeouts();
+        backlog = DEFAULT_BACKLOG;
+        bufferAllocator = PooledBufferAllocator.DEFAULT;
+        frameCodec = new MarkerFrameCodec();
+
+        metrics = new MetricsRegistry();
+        acceptedConnections = metrics.counter("connections.accepted");
+        admissionControl = new AdmissionControl(metrics);
+        receivedBytes = metrics.counter("bytes.received");
+        receivedMessages = metrics.counter("messages.received");
+        sentBytes = metrics.counter("bytes.sent");
+        sentMessages = metrics.counter("messages.sent");
+        loopIterationNanos = metrics.histogram("loop.iteration.nanos");
+        listenerCallbackNanos = metrics.histogram("listener.callback.nanos");
+        metrics.gauge("connections.active", new Gauge() {
+            @Override
+            public long getValue() {
+                return clientConnections == null ? 0 : clientConnections.size();
+            }
+        });
+        metrics.gauge("queue.bytes", new Gauge() {
+            @Override
+            public long getValue() {
+                long queuedBytes = 0;
+                if (clientConnections != null)
+                    for (ClientConnection clientConnection : clientConnections)
+                        queuedBytes += clientConnection.getOutboundQueue().getQueuedBytes();
+                return queuedBytes;
+            }
+        });
+        metrics.gauge("queue.messages", new Gauge() {
+            @Override
+            public long getValue() {
+                long queuedFrames = 0;
+                if (clientConnections != null)
+                    for (ClientConnection clientConnection : clientConnections)
+                        queuedFrames += clientConnection.getOutboundQueue().getQueuedFrames();
+                return queuedFrames;
+            }
+        });
     }
 
     public void addReadDataProcessor(DataProcessor dataProcessor) {
@@ -64,6 +225,26 @@ public class Server {
         writeDataProcessorChain.addDataProcessor(dataProcessor);
     }
 
+    /**
+     * Adds a read stage whose processor keeps state for a single connection, such as an
+     * {@link com.bmdelacruz.socketify.data.InflateDataProcessor}. Each connection gets its
+     * own processor from the factory, which is released once the connection ends. Data
+     * which a processor rejects with a {@link DataProcessingException} fails the connection.
+     */
+    public void addReadDataProcessor(DataProcessorFactory dataProcessorFactory) {
+        readDataProcessorChain.addDataProcessorFactory(dataProcessorFactory);
+    }
+
+    /**
+     * Adds a write stage whose processor keeps state for a single connection, such as a
+     * {@link com.bmdelacruz.socketify.data.DeflateDataProcessor}. Each connection gets its
+     * own processor from the factory, which is released once the connection ends. With
+     * such a stage, multicasts and broadcasts are processed once per recipient.
+     */
+    public void addWriteDataProcessor(DataProcessorFactory dataProcessorFactory) {
+        writeDataProcessorChain.addDataProcessorFactory(dataProcessorFactory);
+    }
+
     /**
      * Builds a ClientConnection instance.
      * @param socketChannel The SocketChannel to be associated with the ClientConnection instance.
@@ -77,30 +258,382 @@ public class Server {
         this.listener = listener;
     }
 
+    /**
+     * Sets the number of selector loops which will serve the accepted connections. When
+     * this is zero (the default), the thread which accepts the connections also serves
+     * them. Otherwise, the acceptor hands each accepted connection to one of the loops,
+     * which then owns all of its reads, writes and pending data. Must be called before
+     * {@link #start()}.
+     * @param selectorLoopCount The number of selector loops.
+     */
+    public void setSelectorLoopCount(int selectorLoopCount) {
+        if (selectorLoopCount < 0)
+            throw new IllegalArgumentException("The selectorLoopCount cannot be negative.");
+        this.selectorLoopCount = selectorLoopCount;
+    }
+
+    /**
+     * Sets how the acceptor distributes the accepted connections among the selector loops.
+     * @param loadBalancing The strategy to use.
+     */
+    public void setLoadBalancing(LoadBalancing loadBalancing) {
+        if (loadBalancing == null)
+            throw new IllegalArgumentException("The loadBalancing cannot be null.");
+        this.loadBalancing = loadBalancing;
+    }
+
+    /**
+     * Sets the number of bytes which may be queued for a single client before the
+     * backpressure policy kicks in. The limit is approximate, since threads which send
+     * to the same client at once may each find room, so it can be passed by about a
+     * message per such thread. Unlimited by default.
+     * @param outboundQueueLimit The limit in bytes.
+     */
+    public void setOutboundQueueLimit(long outboundQueueLimit) {
+        if (outboundQueueLimit <= 0)
+            throw new IllegalArgumentException("The outboundQueueLimit must be positive.");
+        this.outboundQueueLimit = outboundQueueLimit;
+    }
+
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        if (backpressurePolicy == null)
+            throw new IllegalArgumentException("The backpressurePolicy cannot be null.");
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    /**
+     * Sets the executor which runs the listeners of the connections, so that a slow listener
+     * does not hold up every other connection on its selector loop. The callbacks of a
+     * connection still run one at a time and in the order the messages arrived, while
+     * different connections are served in parallel. When this is null (the default), the
+     * listeners run on the selector loop. Must be called before {@link #start()}.
+     * @param listenerExecutor The executor to use, or null.
+     */
+    public void setListenerExecutor(Executor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
+    }
+
+    /**
+     * Sets how many messages of a single client may be waiting for or running in the
+     * listeners when a listener executor is used. Once a client reaches the limit, the
+     * server stops reading from it until its listeners catch up. The limit is checked after
+     * each read, so the messages of a single read may take a client a little past it.
+     * Unlimited by default.
+     * @param maxInFlightMessages The limit in messages.
+     */
+    public void setMaxInFlightMessages(int maxInFlightMessages) {
+        if (maxInFlightMessages <= 0)
+            throw new IllegalArgumentException("The maxInFlightMessages must be positive.");
+        this.maxInFlightMessages = maxInFlightMessages;
+    }
+
+    /**
+     * Sets the executor which runs the write data processors, so that an expensive chain
+     * does not run on the sending thread, which for replies is a selector loop. Each
+     * connection gets a {@link DataProcessorPipeline} which runs every processor as a stage
+     * of its own, so the messages of a connection are processed in several stages at once
+     * and still queued in the order they were sent. Multicasts and broadcasts are processed
+     * once on the calling thread, unless the chain has processors made for each
+     * connection, and wait their turn in each pipeline. When this is null (the default),
+     * the chain runs on the sending thread. The pipelines read the sent arrays after the
+     * send returns, so they must not be changed afterwards. Must be called before
+     * {@link #start()}.
+     * @param writeProcessingExecutor The executor to use, or null.
+     */
+    public void setWriteProcessingExecutor(Executor writeProcessingExecutor) {
+        this.writeProcessingExecutor = writeProcessingExecutor;
+    }
+
+    /**
+     * Sets how many messages of a single client may be waiting for or running in its write
+     * pipeline. Once a client reaches the limit, senders wait until the pipeline catches
+     * up, except for the selector loops, which never wait. Defaults to
+     * {@link #DEFAULT_MAX_PIPELINED_MESSAGES}.
+     * @param maxPipelinedMessages The limit in messages.
+     */
+    public void setMaxPipelinedMessages(int maxPipelinedMessages) {
+        if (maxPipelinedMessages <= 0)
+            throw new IllegalArgumentException("The maxPipelinedMessages must be positive.");
+        this.maxPipelinedMessages = maxPipelinedMessages;
+    }
+
+    /**
+     * Sets the directory of the memory-mapped files which hold the frames of a client once
+     * more than the spool watermark is queued for it in memory, so that a slow client does
+     * not fill the heap. The frames go from the files to the socket without passing through
+     * the heap. The spool also keeps the frames of a session while its client is away, see
+     * {@link #resumeSession(ClientConnection, String)}. When this is null (the default),
+     * every queued frame stays in memory. Must be called before {@link #start()}.
+     * @param spoolDirectory The directory to use, or null.
+     */
+    public void setSpoolDirectory(File spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    /**
+     * Sets the number of bytes which may be queued in memory for a single client before the
+     * frames go to the spool. The outbound queue limit still counts the spooled frames.
+     * @param spoolWatermark The watermark in bytes.
+     */
+    public void setSpoolWatermark(long spoolWatermark) {
+        if (spoolWatermark < 0)
+            throw new IllegalArgumentException("The spoolWatermark cannot be negative.");
+        this.spoolWatermark = spoolWatermark;
+    }
+
+    /**
+     * Sets the allocator of the buffers used for reading from and writing to the clients.
+     * Must be called before {@link #start()}.
+     * @param bufferAllocator The allocator to use.
+     */
+    public void setBufferAllocator(BufferAllocator bufferAllocator) {
+        if (bufferAllocator == null)
+            throw new IllegalArgumentException("The bufferAllocator cannot be null.");
+        this.bufferAllocator = bufferAllocator;
+    }
+
+    public BufferAllocator getBufferAllocator() {
+        return bufferAllocator;
+    }
+
+    /**
+     * Sets how the messages are framed on the stream. The clients must use the same kind
+     * of codec. Must be called before {@link #start()}.
+     * @param frameCodec The codec to use.
+     */
+    public void setFrameCodec(FrameCodec frameCodec) {
+        if (frameCodec == null)
+            throw new IllegalArgumentException("The frameCodec cannot be null.");
+        this.frameCodec = frameCodec;
+    }
+
+    public FrameCodec getFrameCodec() {
+        return frameCodec;
+    }
+
+    /**
+     * Watches every connection for a kind of idleness, so that peers which died without
+     * closing their end are dropped, or so that quiet connections are kept alive with
+     * heartbeats. The timeouts are kept on a timing wheel of each selector loop, which
+     * ticks every {@link TimingWheel#DEFAULT_TICK_MILLIS} milliseconds. A connection which
+     * is dropped has its onFailure called. Must be called before {@link #start()}.
+     * @param state The kind of idleness to watch.
+     * @param timeoutMillis How long a connection must be idle for, or 0 to stop watching.
+     * @param action What is done once it is. A heartbeat needs {@link #setHeartbeatData(byte[])}.
+     */
+    public void setIdleTimeout(IdleTimeouts.State state, long timeoutMillis, IdleTimeouts.Action action) {
+        idleTimeouts.set(state, timeoutMillis, action);
+    }
+
+    /**
+     * Sets the message which is sent as a heartbeat, such as an empty one. It is framed
+     * but not processed by the write data processors. Received messages which equal it
+     * are taken as the client's heartbeats and are not passed to the read data processors
+     * or the listeners, whether or not this server sends heartbeats itself. Messages
+     * received through a stream listener are not checked.
+     * @param heartbeatData The heartbeat message, or null for none.
+     */
+    public void setHeartbeatData(byte[] heartbeatData) {
+        this.heartbeatData = heartbeatData;
+    }
+
+    /**
+     * Sets how many connections the operating system may hold for the server before it
+     * accepts them, which is what absorbs a burst of clients reconnecting at once. The
+     * operating system may cap it, such as at <code>net.core.somaxconn</code> on Linux.
+     * {@link #DEFAULT_BACKLOG} by default. Must be called before {@link #start()}.
+     * @param backlog The length of the accept queue.
+     */
+    public void setBacklog(int backlog) {
+        if (backlog <= 0)
+            throw new IllegalArgumentException("The backlog must be positive.");
+        this.backlog = backlog;
+    }
+
+    /**
+     * Sets how many clients may be connected at once. Clients which connect past the
+     * limit are closed right away, before any connection is set up for them. Unlimited
+     * by default. Must be called before {@link #start()}.
+     * @param maxConnections The limit in connections.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0)
+            throw new IllegalArgumentException("The maxConnections must be positive.");
+        admissionControl.setMaxConnections(maxConnections);
+    }
+
+    /**
+     * Sets how many clients may be accepted per second, so that a reconnect storm reaches
+     * the listeners at a pace they can keep up with. Up to a second's worth of clients
+     * are still accepted at once. Clients which connect too fast are closed right away.
+     * Unlimited by default. Must be called before {@link #start()}.
+     * @param maxAcceptRate The limit in connections per second.
+     */
+    public void setMaxAcceptRate(int maxAcceptRate) {
+        if (maxAcceptRate <= 0)
+            throw new IllegalArgumentException("The maxAcceptRate must be positive.");
+        admissionControl.setMaxAcceptRate(maxAcceptRate);
+    }
+
+    /**
+     * Sets how many clients from the same IP address may be connected at once. Clients
+     * which connect past the limit are closed right away. Unlimited by default. Must be
+     * called before {@link #start()}.
+     * @param maxConnectionsPerAddress The limit in connections.
+     */
+    public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+        if (maxConnectionsPerAddress <= 0)
+            throw new IllegalArgumentException("The maxConnectionsPerAddress must be positive.");
+        admissionControl.setMaxConnectionsPerAddress(maxConnectionsPerAddress);
+    }
+
+    /**
+     * The server's metrics, which are kept whether or not anyone reads them:
+     * <ul>
+     *     <li><code>connections.accepted</code> and <code>connections.active</code></li>
+     *     <li><code>connections.refused.limit</code>, <code>connections.refused.rate</code>
+     *     and <code>connections.refused.address</code>, the clients closed by the limits on
+     *     connections, on the accept rate and on connections per address</li>
+     *     <li><code>bytes.received</code>, <code>bytes.sent</code>,
+     *     <code>messages.received</code> and <code>messages.sent</code></li>
+     *     <li><code>queue.bytes</code> and <code>queue.messages</code>, the data waiting in
+     *     the outbound queues of all clients</li>
+     *     <li><code>loop.iteration.nanos</code>, the time a selector loop spends between two
+     *     selects</li>
+     *     <li><code>listener.callback.nanos</code>, the time the listeners take for a
+     *     received message, sampled from one message in 16</li>
+     * </ul>
+     * Register it as an MBean to watch it through JMX.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
     /**
      * Start listening for client connections.
      * @throws IOException Thrown when something went wrong while setting up the server.
      */
     public void start() throws IOException {
-        clientConnections = new HashMap<>();
-        pendingWrites = new HashMap<>();
-        pendingReads = new HashMap<>();
-        selector = Selector.open();
+        if (idleTimeouts.hasHeartbeat() && heartbeatData == null)
+            throw new IllegalStateException("Sending heartbeats needs heartbeat data.");
+
+        clientConnections = Collections.newSetFromMap(new ConcurrentHashMap<ClientConnection, Boolean>());
+        isStopping = false;
+        nextSelectorLoopIndex = new AtomicInteger();
+        acceptorLoop = new SelectorLoop();
 
         serverSocketChannel = ServerSocketChannel.open();
         serverSocketChannel.configureBlocking(false);
-        serverSocketChannel.socket().bind(serverAddress);
-        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        serverSocketChannel.socket().bind(serverAddress, backlog);
+        serverSocketChannel.register(acceptorLoop.selector, SelectionKey.OP_ACCEPT);
+
+        if (selectorLoopCount > 0) {
+            selectorLoops = new SelectorLoop[selectorLoopCount];
+            for (int i = 0; i < selectorLoopCount; i++) {
+                selectorLoops[i] = new SelectorLoop();
+                selectorLoops[i].start();
+            }
+        } else {
+            selectorLoops = new SelectorLoop[] { acceptorLoop };
+        }
 
-        serverThread = new Thread(new ServerRunnable());
-        serverThread.start();
+        serverThread = acceptorLoop.start();
     }
 
     /**
-     * Stop serving clients.
+     * Stop serving clients. The frames kept for sessions are deleted, including those of
+     * the connections which the selector loops end while shutting down.
      */
     public void stop() {
+        // The loops end their connections after this returns, so they are told not to
+        // keep the frames of their sessions.
+        isStopping = true;
         this.serverThread.interrupt();
+        for (SelectorLoop selectorLoop : selectorLoops)
+            selectorLoop.stop();
+
+        for (String sessionId : retainedSessions.keySet())
+            discardSession(sessionId);
+    }
+
+    /**
+     * Ties the connection to a session, so that whatever is still queued for the
+     * connection when it ends is kept in the spool and sent once another connection
+     * resumes the same session. If the session has frames kept from an earlier connection,
+     * they are sent to this one before the frames which are queued for it later. How a
+     * client presents its session ID is up to the application, for example in its first
+     * message. Needs a spool directory.
+     * @param clientConnection The connection of the client.
+     * @param sessionId The ID of the client's session.
+     */
+    public void resumeSession(final ClientConnection clientConnection, final String sessionId) {
+        if (sessionId == null)
+            throw new IllegalArgumentException("The sessionId cannot be null.");
+        if (spoolDirectory == null)
+            throw new IllegalStateException("Sessions need a spool directory.");
+        if (!clientConnection.bindSession(sessionId))
+            throw new IllegalStateException("The connection already belongs to a session.");
+
+        final SelectionKey key = clientConnection.getSelectionKey();
+        if (key == null)
+            return;
+
+        selectorLoopOf(key).execute(new Runnable() {
+            @Override
+            public void run() {
+                OutboundSpool retainedSpool = retainedSessions.remove(sessionId);
+                if (retainedSpool == null)
+                    return;
+
+                if (key.isValid()) {
+                    clientConnection.getOutboundQueue().replay(retainedSpool);
+                    selectorLoopOf(key).flush(key);
+                } else {
+                    // The connection ended meanwhile and may have kept frames of its own,
+                    // which go after the older ones.
+                    OutboundSpool newerSpool = retainedSessions.remove(sessionId);
+                    if (newerSpool != null)
+                        appendRetained(retainedSpool, newerSpool);
+                    retainSession(sessionId, retainedSpool);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the frames kept for a session whose client did not come back.
+     * @param sessionId The ID of the session.
+     */
+    public void discardSession(String sessionId) {
+        OutboundSpool retainedSpool = retainedSessions.remove(sessionId);
+        if (retainedSpool != null)
+            retainedSpool.discard(new ClosedChannelException());
+    }
+
+    private void retainSession(String sessionId, OutboundSpool retainedSpool) {
+        OutboundSpool previousSpool = retainedSessions.putIfAbsent(sessionId, retainedSpool);
+        if (previousSpool != null)
+            appendRetained(previousSpool, retainedSpool);
+
+        // Either stop() sees the session or this sees that the server is stopping.
+        if (isStopping)
+            discardSession(sessionId);
+    }
+
+    private void appendRetained(OutboundSpool olderSpool, OutboundSpool newerSpool) {
+        try {
+            olderSpool.appendUnread(newerSpool);
+        } catch (IOException e) {
+            newerSpool.discard(e);
+        }
+    }
+
+    /**
+     * @return A live, unmodifiable view of the connected clients. Iterating over it
+     * is safe even while clients connect and disconnect.
+     */
+    public Collection<ClientConnection> getClientConnections() {
+        return Collections.unmodifiableSet(clientConnections);
     }
 
     /**
@@ -108,166 +641,575 @@ public class Server {
      * @param clientConnection The client which will receive the data.
      * @param data The data to be transferred to the client.
      * @throws InterruptedException Thrown when the server was stopped while trying to send the data.
+     * @throws OutboundQueueFullException Thrown when the client's queue is full and the
+     * backpressure policy is {@link BackpressurePolicy#FAIL}.
      */
     public void sendTo(ClientConnection clientConnection, byte[] data) throws InterruptedException {
-        SelectionKey key = getKeyFor(clientConnection.getSocketChannel());
-        if (key != null) {
-            data = writeDataProcessorChain.process(data);
+        SelectionKey key = clientConnection.getSelectionKey();
+        if (key != null)
             sendTo(key, data);
-        } else {
-        }
     }
 
+    /**
+     * Sends a region of a file to the specified ClientConnection as one message, in order
+     * with the messages sent through {@link #sendTo(ClientConnection, byte[])}. The region
+     * goes from the file to the socket without being copied into the heap, so the write
+     * data processors are not applied to it. The frame codec must be length-prefixed.
+     * @param clientConnection The client which will receive the region.
+     * @param fileChannel The file to send from. It must stay open until the returned
+     *                    future completes.
+     * @param position The position of the region in the file.
+     * @param count The length of the region.
+     * @return A future which completes once the whole region is written to the socket,
+     * or fails if the connection ends first.
+     * @throws InterruptedException Thrown when the server was stopped while trying to send the region.
+     * @throws OutboundQueueFullException Thrown when the client's queue is full and the
+     * backpressure policy is {@link BackpressurePolicy#FAIL}.
+     */
+    public WriteFuture sendFile(ClientConnection clientConnection, FileChannel fileChannel,
+                                long position, long count) throws InterruptedException {
+        WriteFuture future = new WriteFuture();
+        enqueue(clientConnection.getSelectionKey(),
+                FileRegionFrame.encode(frameCodec, bufferAllocator, fileChannel, position, count, future));
+        return future;
+    }
+
+    /**
+     * Sends the data to the clients which meet the condition. The data is processed and
+     * framed only once, and all the recipients write from the same buffer, unless the
+     * write chain has processors made for each connection.
+     */
     public void multicast(byte[] data, MulticastCondition multicastCondition) throws InterruptedException {
-        data = writeDataProcessorChain.process(data);
-        for (ClientConnection clientConnection : clientConnections.values()) {
-            if (multicastCondition.isIncludedInMulticast(clientConnection)) {
-                sendTo(clientConnection, data);
+        if (writeDataProcessorChain.hasDataProcessorFactories()) {
+            for (ClientConnection clientConnection : clientConnections) {
+                if (multicastCondition.isIncludedInMulticast(clientConnection)) {
+                    sendToForAll(clientConnection, data);
+                }
             }
+            return;
+        }
+
+        if (writeProcessingExecutor != null) {
+            byte[] processed = writeDataProcessorChain.process(data);
+            for (ClientConnection clientConnection : clientConnections) {
+                if (multicastCondition.isIncludedInMulticast(clientConnection)) {
+                    submitProcessed(clientConnection, processed);
+                }
+            }
+            return;
+        }
+
+        SharedBuffer frame = encode(writeDataProcessorChain.process(ByteBuffer.wrap(data)));
+        try {
+            for (ClientConnection clientConnection : clientConnections) {
+                if (multicastCondition.isIncludedInMulticast(clientConnection)) {
+                    enqueueForAll(clientConnection, frame);
+                }
+            }
+        } finally {
+            frame.release();
         }
     }
 
+    /**
+     * Sends the data to all the clients. The data is processed and framed only once, and
+     * all the recipients write from the same buffer, unless the write chain has processors
+     * made for each connection.
+     */
     public void broadcast(byte[] data) throws InterruptedException {
-        data = writeDataProcessorChain.process(data);
-        for (ClientConnection clientConnection : clientConnections.values()) {
-            sendTo(clientConnection, data);
+        if (writeDataProcessorChain.hasDataProcessorFactories()) {
+            for (ClientConnection clientConnection : clientConnections) {
+                sendToForAll(clientConnection, data);
+            }
+            return;
+        }
+
+        if (writeProcessingExecutor != null) {
+            byte[] processed = writeDataProcessorChain.process(data);
+            for (ClientConnection clientConnection : clientConnections) {
+                submitProcessed(clientConnection, processed);
+            }
+            return;
+        }
+
+        SharedBuffer frame = encode(writeDataProcessorChain.process(ByteBuffer.wrap(data)));
+        try {
+            for (ClientConnection clientConnection : clientConnections) {
+                enqueueForAll(clientConnection, frame);
+            }
+        } finally {
+            frame.release();
         }
     }
 
-    private void accept(SelectionKey key) throws IOException {
-        ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-        SocketChannel socketChannel = serverSocketChannel.accept();
+    /**
+     * Processes the data with the connection's write chain and queues it. A chain which
+     * keeps state for the connection must queue its frames in the order it made them, so
+     * it is held until the frame is queued. Room is made before taking it, since waiting
+     * for room while holding it would stall a selector loop replying on the connection.
+     */
+    private void sendTo(SelectionKey key, byte[] data) throws InterruptedException {
+        if (!key.isValid())
+            return;
 
-        if (socketChannel != null) {
-            socketChannel.configureBlocking(false);
-            socketChannel.register(selector, SelectionKey.OP_READ);
+        ClientConnection clientConnection = (ClientConnection) key.attachment();
+        DataProcessorPipeline pipeline = clientConnection.getWritePipeline();
+        if (pipeline != null) {
+            pipeline.submit(data, !isSelectorLoopThread());
+            return;
+        }
 
-            ClientConnection clientConnection = createClientConnection(socketChannel);
-            clientConnections.put(socketChannel, clientConnection);
+        DataProcessorChain chain = clientConnection.getWriteDataProcessorChain();
+        if (chain == writeDataProcessorChain) {
+            sendTo(key, chain.process(ByteBuffer.wrap(data)));
+            return;
+        }
 
+        if (!makeRoom(key, frameCodec.getEncodedLength(data.length)))
+            return;
+
+        synchronized (chain) {
+            if (chain.isReleased())
+                return;
+
+            add(key, new OutboundFrame(encode(chain.process(ByteBuffer.wrap(data)))));
+        }
+    }
+
+    private void submitProcessed(ClientConnection clientConnection, byte[] processed) throws InterruptedException {
+        DataProcessorPipeline pipeline = clientConnection.getWritePipeline();
+        if (pipeline != null)
+            pipeline.submitProcessed(processed, !isSelectorLoopThread());
+    }
+
+    private void sendToForAll(ClientConnection clientConnection, byte[] data) throws InterruptedException {
+        SelectionKey key = clientConnection.getSelectionKey();
+        if (key == null)
+            return;
+
+        try {
+            sendTo(key, data);
+        } catch (OutboundQueueFullException e) {
             if (listener != null)
-                listener.onClientConnect(clientConnection);
+                listener.onClientMessageFailed(clientConnection, e);
         }
     }
 
-    private void read(SelectionKey key) {
-        SelectionKeyProcessor skp = new SelectionKeyProcessor(bufferSize) {
-            @Override
-            public List<byte[]> getPendingReadList(SelectionKey key) {
-                SocketChannel socketChannel = (SocketChannel) key.channel();
+    private void sendTo(SelectionKey key, ByteBuffer payload) throws InterruptedException {
+        if (!key.isValid())
+            return;
 
-                if (!pendingReads.containsKey(socketChannel))
-                    pendingReads.put(socketChannel, new PendingData());
+        SharedBuffer frame = encode(payload);
+        try {
+            enqueue(key, frame);
+        } finally {
+            frame.release();
+        }
+    }
 
-                PendingData pendingData = pendingReads.get(socketChannel);
-                return pendingData.getPendingData();
-            }
+    private SharedBuffer encode(ByteBuffer payload) {
+        ByteBuffer frameBuffer = bufferAllocator.allocate(frameCodec.getEncodedLength(payload.remaining()));
+        frameCodec.encode(payload, frameBuffer);
+        frameBuffer.flip();
 
-            @Override
-            public void processCompleteData(SelectionKey key, byte[] data) {
-                SocketChannel socketChannel = (SocketChannel) key.channel();
-                ClientConnection clientConnection = clientConnections.get(socketChannel);
+        return new SharedBuffer(frameBuffer, bufferAllocator);
+    }
+
+    private void enqueueForAll(ClientConnection clientConnection, SharedBuffer frame) throws InterruptedException {
+        try {
+            enqueue(clientConnection.getSelectionKey(), frame);
+        } catch (OutboundQueueFullException e) {
+            if (listener != null)
+                listener.onClientMessageFailed(clientConnection, e);
+        }
+    }
 
-                data = readDataProcessorChain.process(data);
-                clientConnection.onDataReceived(data, new ServerMessenger(key));
+    /**
+     * Queues the frame for the connection of the key, applying the backpressure policy
+     * when its queue is full. The queue takes its own reference to the frame.
+     */
+    private void enqueue(SelectionKey key, SharedBuffer frame) throws InterruptedException {
+        if (key == null || !key.isValid())
+            return;
+
+        enqueue(key, new OutboundFrame(frame.retain()));
+    }
+
+    private void enqueue(SelectionKey key, OutboundFrame outboundFrame) throws InterruptedException {
+        if (key == null || !key.isValid()) {
+            outboundFrame.fail(new ClosedChannelException());
+            return;
+        }
+
+        try {
+            if (!makeRoom(key, outboundFrame.getLength())) {
+                outboundFrame.fail(new ClosedChannelException());
+                return;
             }
+        } catch (InterruptedException | OutboundQueueFullException e) {
+            outboundFrame.fail(e);
+            throw e;
+        }
 
-            @Override
-            public void onDisconnect(SelectionKey key) {
-                ClientConnection clientConnection = endAndReturnConnection(key);
-                if (clientConnection != null) {
-                    clientConnection.onDisconnected();
+        add(key, outboundFrame);
+    }
+
+    /**
+     * Applies the backpressure policy when the connection's queue has no room for a frame
+     * of the given length.
+     * @return <code>false</code> if the connection was dropped instead.
+     */
+    private boolean makeRoom(SelectionKey key, long length) throws InterruptedException {
+        OutboundQueue outboundQueue = ((ClientConnection) key.attachment()).getOutboundQueue();
+        if (!outboundQueue.isFull(length, outboundQueueLimit))
+            return true;
+
+        switch (backpressurePolicy) {
+            case BLOCK:
+                if (!isSelectorLoopThread())
+                    outboundQueue.awaitCapacity(length, outboundQueueLimit, key);
+                return true;
+            case FAIL:
+                throw new OutboundQueueFullException(
+                        "The outbound queue of the client already holds "
+                                + outboundQueue.getQueuedBytes() + " bytes.");
+            case DROP_OLDEST:
+                outboundQueue.dropOldest(length, outboundQueueLimit);
+                return true;
+            case DISCONNECT:
+                selectorLoopOf(key).disconnect(key);
+                return false;
+        }
+        return true;
+    }
+
+    private void add(SelectionKey key, OutboundFrame outboundFrame) {
+        OutboundQueue outboundQueue = ((ClientConnection) key.attachment()).getOutboundQueue();
+        outboundQueue.add(outboundFrame);
+        selectorLoopOf(key).flush(key);
+
+        // The owning loop may have dropped the connection before the frame was added.
+        if (!key.isValid())
+            outboundQueue.discardPending(new ClosedChannelException());
+    }
+
+    private boolean isSelectorLoopThread() {
+        Thread currentThread = Thread.currentThread();
+        for (SelectorLoop selectorLoop : selectorLoops)
+            if (selectorLoop.thread == currentThread)
+                return true;
+        return false;
+    }
+
+    private SelectorLoop selectorLoopOf(SelectionKey key) {
+        for (SelectorLoop selectorLoop : selectorLoops)
+            if (selectorLoop.selector == key.selector())
+                return selectorLoop;
+        throw new IllegalArgumentException("The key does not belong to any of the selector loops.");
+    }
+
+    private SelectorLoop nextSelectorLoop() {
+        if (selectorLoops.length == 1)
+            return selectorLoops[0];
+
+        switch (loadBalancing) {
+            case LEAST_CONNECTIONS:
+                SelectorLoop leastLoaded = selectorLoops[0];
+                for (SelectorLoop selectorLoop : selectorLoops)
+                    if (selectorLoop.connectionCount.get() < leastLoaded.connectionCount.get())
+                        leastLoaded = selectorLoop;
+                return leastLoaded;
+            case ROUND_ROBIN:
+            default:
+                int index = (nextSelectorLoopIndex.getAndIncrement() & Integer.MAX_VALUE) % selectorLoops.length;
+                return selectorLoops[index];
+        }
+    }
+
+    /**
+     * A thread with its own selector. The acceptor loop owns the server socket while the
+     * rest own the connections handed to them. Only the loop which owns a connection
+     * reads from and writes to it.
+     */
+    private class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> handedOffChannels;
+        private final Queue<Runnable> tasks;
+        private final Queue<SelectionKey> flushRequests;
+        private final AtomicBoolean isWakeupPending;
+        private final AtomicInteger connectionCount;
+        private final ByteBuffer[] gatheredBuffers;
+        private final TimingWheel timingWheel;
+        private final SelectionKeyProcessor selectionKeyProcessor;
+
+        private Thread thread;
+
+        public SelectorLoop() throws IOException {
+            selector = Selector.open();
+            handedOffChannels = new ConcurrentLinkedQueue<>();
+            tasks = new ConcurrentLinkedQueue<>();
+            flushRequests = new ConcurrentLinkedQueue<>();
+            isWakeupPending = new AtomicBoolean();
+            connectionCount = new AtomicInteger();
+            gatheredBuffers = new ByteBuffer[OutboundQueue.MAX_GATHERED_BUFFERS];
+            timingWheel = new TimingWheel();
+            selectionKeyProcessor = new SelectionKeyProcessor(bufferSize, bufferAllocator) {
+                @Override
+                public FrameCodec.Decoder getFrameDecoder(SelectionKey key) {
+                    return ((ClientConnection) key.attachment()).getFrameDecoder();
                 }
-            }
 
-            @Override
-            public void onConnectionFailure(SelectionKey key) {
-                ClientConnection clientConnection = endAndReturnConnection(key);
-                if (clientConnection != null) {
-                    clientConnection.onFailure();
+                @Override
+                public FrameCodec.ChunkListener getChunkListener(SelectionKey key) {
+                    ClientConnection clientConnection = (ClientConnection) key.attachment();
+                    if (clientConnection.getStreamListener() == null)
+                        return null;
+
+                    return clientConnection.getChunkListener(new ServerMessenger(key));
                 }
-            }
 
-            private ClientConnection endAndReturnConnection(SelectionKey key) {
-                try {
-                    key.cancel();
-                    key.channel().close();
+                @Override
+                public void onBytesRead(SelectionKey key, int byteCount) {
+                    ClientConnection clientConnection = (ClientConnection) key.attachment();
+                    clientConnection.addReceivedBytes(byteCount);
+                    receivedBytes.add(byteCount);
 
-                    SocketChannel socketChannel = (SocketChannel) key.channel();
-                    return clientConnections.remove(socketChannel);
-                } catch (IOException ignored) {
-                    return null;
+                    if (clientConnection.getIdleMonitor() != null)
+                        clientConnection.getIdleMonitor().onRead();
                 }
+
+                @Override
+                public void processCompleteData(SelectionKey key, byte[] data) {
+                    ClientConnection clientConnection = (ClientConnection) key.attachment();
+
+                    // The chain is released once the connection ends, which may happen
+                    // while the rest of a read is still being dispatched.
+                    DataProcessorChain chain = clientConnection.getReadDataProcessorChain();
+                    if (chain.isReleased())
+                        return;
+                    if (heartbeatData != null && Arrays.equals(data, heartbeatData))
+                        return;
+
+                    long count = clientConnection.incrementReceivedMessages();
+                    receivedMessages.increment();
+
+                    try {
+                        data = chain.process(data);
+                    } catch (DataProcessingException e) {
+                        onConnectionFailure(key);
+                        return;
+                    }
+                    dispatchDataReceived(key, clientConnection, data, (count & CALLBACK_SAMPLING_MASK) == 0);
+                }
+
+                @Override
+                public void onDisconnect(SelectionKey key) {
+                    ClientConnection clientConnection = endAndReturnConnection(key);
+                    if (clientConnection != null) {
+                        dispatchDisconnected(clientConnection);
+                    }
+                }
+
+                @Override
+                public void onConnectionFailure(SelectionKey key) {
+                    ClientConnection clientConnection = endAndReturnConnection(key);
+                    if (clientConnection != null) {
+                        dispatchFailure(clientConnection);
+                    }
+                }
+            };
+        }
+
+        public Thread start() {
+            thread = new Thread(this);
+            thread.start();
+            return thread;
+        }
+
+        public void stop() {
+            thread.interrupt();
+        }
+
+        /**
+         * Hands an accepted connection to this loop. The connection gets registered
+         * on the loop's own thread.
+         */
+        public void handOff(SocketChannel socketChannel) {
+            handedOffChannels.add(socketChannel);
+            wakeup();
+        }
+
+        /**
+         * Writes the queued frames of the key's connection as soon as possible. On this
+         * loop's thread the write is attempted right away. From any other thread a flush
+         * request is submitted instead, at most once per connection until the loop gets
+         * to it, and the loop is woken up.
+         */
+        public void flush(SelectionKey key) {
+            if (Thread.currentThread() == thread) {
+                write(key);
+            } else if (((ClientConnection) key.attachment()).scheduleFlush()) {
+                flushRequests.add(key);
+                wakeup();
             }
-        };
-        skp.read(key);
-    }
+        }
 
-    private void write(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        ClientConnection clientConnection = clientConnections.get(socketChannel);
+        /**
+         * Wakes the selector up unless a wakeup is already on its way, so that a burst
+         * of submissions costs a single wakeup.
+         */
+        private void wakeup() {
+            if (isWakeupPending.compareAndSet(false, true))
+                selector.wakeup();
+        }
 
-        PendingData pendingData = pendingWrites.get(socketChannel);
-        synchronized (pendingWrites.get(socketChannel)) {
-            pendingData.setHasPendingData(true);
+        /**
+         * Runs the task on this loop's thread.
+         */
+        public void execute(Runnable task) {
+            tasks.add(task);
+            wakeup();
+        }
 
-            List<byte[]> pending = pendingData.getPendingData();
-            while (pending.size() > 0) {
-                try {
-                    byte[] data = pending.remove(0);
-                    ByteBuffer dataBuffer = (ByteBuffer) ByteBuffer.allocate(data.length + 1)
-                            .put(data).put((byte) 0x00).flip();
-                    socketChannel.write(dataBuffer);
-                } catch (IOException e) {
-                    key.cancel();
-                    socketChannel.close();
-                    clientConnections.remove(socketChannel);
+        /**
+         * Drops the connection of the key on this loop's thread, then notifies its listeners
+         * of the failure.
+         */
+        public void disconnect(final SelectionKey key) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    ClientConnection clientConnection = endAndReturnConnection(key);
+                    if (clientConnection != null) {
+                        dispatchFailure(clientConnection);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Hands the message to the connection's listeners, either right away or through its
+         * dispatcher. Reading pauses while too many of its messages are in flight.
+         */
+        private void dispatchDataReceived(final SelectionKey key, final ClientConnection clientConnection,
+                                          final byte[] data, final boolean isTimed) {
+            final ServerMessenger messenger = new ServerMessenger(key);
+
+            SerialDispatcher dispatcher = clientConnection.getDispatcher();
+            if (dispatcher == null) {
+                deliverDataReceived(clientConnection, data, messenger, isTimed);
+                return;
+            }
+
+            if (clientConnection.incrementInFlightMessages() >= maxInFlightMessages)
+                pauseReading(key);
 
-                    if (listener != null)
-                        listener.onClientMessageFailed(clientConnection, e);
+            dispatcher.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        deliverDataReceived(clientConnection, data, messenger, isTimed);
+                    } finally {
+                        if (clientConnection.decrementInFlightMessages() < maxInFlightMessages
+                                && clientConnection.isReadPaused()) {
+                            execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    resumeReading(key);
+                                }
+                            });
+                        }
+                    }
                 }
+            });
+        }
+
+        private void deliverDataReceived(ClientConnection clientConnection, byte[] data,
+                                         ServerMessenger messenger, boolean isTimed) {
+            if (!isTimed) {
+                clientConnection.onDataReceived(data, messenger);
+                return;
             }
 
-            pendingData.setHasPendingData(false);
-            pendingData.notifyAll();
+            long startTime = System.nanoTime();
+            try {
+                clientConnection.onDataReceived(data, messenger);
+            } finally {
+                listenerCallbackNanos.record(System.nanoTime() - startTime);
+            }
         }
 
-        if (key.isValid())
-            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-    }
+        private void pauseReading(SelectionKey key) {
+            ClientConnection clientConnection = (ClientConnection) key.attachment();
+            clientConnection.setReadPaused(true);
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
 
-    private void sendTo(SelectionKey key, byte[] data) throws InterruptedException {
-        if (!key.isValid())
-            return;
+            // The listeners may have caught up before they could see the pause.
+            resumeReading(key);
+        }
 
-        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        private void resumeReading(SelectionKey key) {
+            ClientConnection clientConnection = (ClientConnection) key.attachment();
+            if (!key.isValid() || !clientConnection.isReadPaused()
+                    || clientConnection.getInFlightMessages() >= maxInFlightMessages)
+                return;
 
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        if (!pendingWrites.containsKey(socketChannel))
-            pendingWrites.put(socketChannel, new PendingData());
+            clientConnection.setReadPaused(false);
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
 
-        PendingData pendingData = pendingWrites.get(socketChannel);
-        synchronized (pendingWrites.get(socketChannel)) {
-            while (pendingData.hasPendingData())
-                pendingData.wait();
+        private void dispatchDisconnected(final ClientConnection clientConnection) {
+            SerialDispatcher dispatcher = clientConnection.getDispatcher();
+            if (dispatcher == null) {
+                clientConnection.onDisconnected();
+                return;
+            }
 
-            pendingData.getPendingData().add(data);
+            dispatcher.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    clientConnection.onDisconnected();
+                }
+            });
         }
-    }
 
-    private SelectionKey getKeyFor(SocketChannel socketChannel) {
-        for (SelectionKey key : selector.keys())
-            if (key.channel() == socketChannel)
-                return key;
-        return null;
-    }
+        private void dispatchFailure(final ClientConnection clientConnection) {
+            SerialDispatcher dispatcher = clientConnection.getDispatcher();
+            if (dispatcher == null) {
+                clientConnection.onFailure();
+                return;
+            }
+
+            dispatcher.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    clientConnection.onFailure();
+                }
+            });
+        }
 
-    private class ServerRunnable implements Runnable {
         @Override
         public void run() {
             while (!Thread.currentThread().isInterrupted()) {
                 try {
                     selector.select(100);
+                    isWakeupPending.set(false);
+                    long iterationStartTime = System.nanoTime();
+                    timingWheel.advance(iterationStartTime);
+
+                    SocketChannel handedOffChannel;
+                    while ((handedOffChannel = handedOffChannels.poll()) != null)
+                        register(handedOffChannel);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+
+                    SelectionKey flushKey;
+                    while ((flushKey = flushRequests.poll()) != null) {
+                        ((ClientConnection) flushKey.attachment()).clearFlushScheduled();
+                        if (flushKey.isValid()) write(flushKey);
+                    }
 
                     Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
                     while (keys.hasNext()) {
@@ -278,6 +1220,8 @@ public class Server {
                         if (key.isValid() && key.isAcceptable()) accept(key);
                         if (key.isValid() && key.isReadable()) read(key);
                     }
+
+                    loopIterationNanos.record(System.nanoTime() - iterationStartTime);
                 } catch (IOException e) {
                     e.printStackTrace();
                     break;
@@ -285,16 +1229,257 @@ public class Server {
             }
 
             try {
-                for (SocketChannel sc : clientConnections.keySet()) sc.close();
-                clientConnections.clear();
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                    if (key.attachment() instanceof ClientConnection)
+                        forget(key);
+                }
+                SocketChannel handedOffChannel;
+                while ((handedOffChannel = handedOffChannels.poll()) != null)
+                    abandon(handedOffChannel, handedOffChannel.socket().getInetAddress());
 
-                serverSocketChannel.socket().close();
-                serverSocketChannel.close();
+                if (this == acceptorLoop) {
+                    serverSocketChannel.socket().close();
+                    serverSocketChannel.close();
+                }
                 selector.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+
+        /**
+         * Accepts the connections which are waiting, up to {@link #MAX_ACCEPTS_PER_SELECT}.
+         * Whatever is left keeps the key ready for the next select.
+         */
+        private void accept(SelectionKey key) {
+            ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+            long now = timingWheel.getCurrentTime();
+
+            for (int i = 0; i < MAX_ACCEPTS_PER_SELECT; i++) {
+                SocketChannel socketChannel;
+                try {
+                    socketChannel = serverSocketChannel.accept();
+                } catch (IOException e) {
+                    // Running out of file descriptors, for one. The connection stays in
+                    // the backlog and is tried again on the next select.
+                    e.printStackTrace();
+                    return;
+                }
+                if (socketChannel == null)
+                    return;
+
+                if (!admissionControl.admit(socketChannel.socket().getInetAddress(), now)) {
+                    refuse(socketChannel);
+                    continue;
+                }
+
+                // The connection is counted on its loop right away, so that the rest of
+                // the batch sees it when the loops are balanced by their connections.
+                SelectorLoop selectorLoop = nextSelectorLoop();
+                selectorLoop.connectionCount.incrementAndGet();
+                if (selectorLoop == this) {
+                    register(socketChannel);
+                } else {
+                    selectorLoop.handOff(socketChannel);
+                }
+            }
+        }
+
+        /**
+         * Closes a socket which was not admitted. The close resets the connection instead
+         * of going through the usual handshake, so the server is left with no state for it,
+         * not even a socket in TIME_WAIT.
+         */
+        private void refuse(SocketChannel socketChannel) {
+            try {
+                socketChannel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            } catch (IOException ignored) {
+            }
+            try {
+                socketChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * Closes an admitted socket which was handed to this loop but could not become a
+         * connection, and gives its admission and its place in the loop's count back.
+         */
+        private void abandon(SocketChannel socketChannel, InetAddress address) {
+            connectionCount.decrementAndGet();
+            admissionControl.release(address);
+            try {
+                socketChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void register(SocketChannel socketChannel) {
+            InetAddress address = socketChannel.socket().getInetAddress();
+            SelectionKey key;
+            try {
+                socketChannel.configureBlocking(false);
+                key = socketChannel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                abandon(socketChannel, address);
+                return;
+            }
+
+            ClientConnection clientConnection = createClientConnection(socketChannel);
+            clientConnection.setRemoteAddress(address);
+            clientConnection.setFrameDecoder(frameCodec.newDecoder(bufferAllocator));
+            clientConnection.setReadDataProcessorChain(readDataProcessorChain.newConnectionChain());
+            clientConnection.setWriteDataProcessorChain(writeDataProcessorChain.newConnectionChain());
+            if (spoolDirectory != null)
+                clientConnection.getOutboundQueue().setSpool(new OutboundSpool(spoolDirectory), spoolWatermark);
+            if (listenerExecutor != null)
+                clientConnection.setDispatcher(new SerialDispatcher(listenerExecutor));
+            key.attach(clientConnection);
+            clientConnection.setSelectionKey(key);
+            if (writeProcessingExecutor != null)
+                clientConnection.setWritePipeline(new DataProcessorPipeline(clientConnection.getWriteDataProcessorChain(),
+                        writeProcessingExecutor, maxPipelinedMessages, new PipelineOutput(clientConnection)));
+            if (idleTimeouts.isEnabled()) {
+                clientConnection.setIdleMonitor(new ConnectionIdleMonitor(clientConnection.getSelectionKey()));
+                clientConnection.getIdleMonitor().start();
+            }
+
+            clientConnections.add(clientConnection);
+            acceptedConnections.increment();
+
+            if (listener != null)
+                listener.onClientConnect(clientConnection);
+        }
+
+        private void read(SelectionKey key) {
+            selectionKeyProcessor.read(key);
+        }
+
+        private ClientConnection endAndReturnConnection(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+            }
+
+            return forget(key);
+        }
+
+        private ClientConnection forget(SelectionKey key) {
+            ClientConnection clientConnection = (ClientConnection) key.attachment();
+            if (!clientConnections.remove(clientConnection))
+                return null;
+
+            String sessionId = clientConnection.getSessionId();
+            if (sessionId != null && !isStopping) {
+                OutboundSpool retainedSpool = new OutboundSpool(spoolDirectory);
+                clientConnection.getOutboundQueue().moveTo(retainedSpool, new ClosedChannelException());
+                if (!retainedSpool.isEmpty())
+                    retainSession(sessionId, retainedSpool);
+            } else {
+                clientConnection.getOutboundQueue().discardAll(new ClosedChannelException());
+            }
+            if (clientConnection.getIdleMonitor() != null)
+                clientConnection.getIdleMonitor().stop();
+            clientConnection.getFrameDecoder().release();
+            clientConnection.getReadDataProcessorChain().release();
+            if (clientConnection.getWritePipeline() != null)
+                clientConnection.getWritePipeline().close();
+            clientConnection.getWriteDataProcessorChain().release();
+
+            connectionCount.decrementAndGet();
+            admissionControl.release(clientConnection.getRemoteAddress());
+            return clientConnection;
+        }
+
+        /**
+         * Writes as much of the connection's outbound data as the socket will take, using
+         * gathering writes. Whatever is left stays queued and OP_WRITE is set until the
+         * socket takes the rest. Frames queued later arrive through flush requests.
+         */
+        private void write(SelectionKey key) {
+            if (!key.isValid())
+                return;
+
+            ClientConnection clientConnection = (ClientConnection) key.attachment();
+            OutboundQueue outboundQueue = clientConnection.getOutboundQueue();
+            long previousSentBytes = outboundQueue.getSentBytes();
+            long previousSentFrames = outboundQueue.getSentFrames();
+            try {
+                boolean isDrained = outboundQueue.writeTo((SocketChannel) key.channel(), gatheredBuffers);
+
+                if (isDrained)
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                else
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                endAndReturnConnection(key);
+
+                if (listener != null)
+                    listener.onClientMessageFailed(clientConnection, e);
+            } finally {
+                long writtenBytes = outboundQueue.getSentBytes() - previousSentBytes;
+                sentBytes.add(writtenBytes);
+                sentMessages.add(outboundQueue.getSentFrames() - previousSentFrames);
+
+                if (writtenBytes > 0 && clientConnection.getIdleMonitor() != null)
+                    clientConnection.getIdleMonitor().onWrite();
+            }
+        }
+
+        /**
+         * Drops the connection or sends it a heartbeat once it is idle.
+         */
+        private class ConnectionIdleMonitor extends IdleMonitor {
+            private final SelectionKey key;
+
+            public ConnectionIdleMonitor(SelectionKey key) {
+                super(idleTimeouts, timingWheel);
+                this.key = key;
+            }
+
+            @Override
+            protected void onIdle(IdleTimeouts.State state, IdleTimeouts.Action action) {
+                if (action == IdleTimeouts.Action.DISCONNECT) {
+                    ClientConnection clientConnection = endAndReturnConnection(key);
+                    if (clientConnection != null) {
+                        dispatchFailure(clientConnection);
+                    }
+                } else {
+                    add(key, new OutboundFrame(encode(ByteBuffer.wrap(heartbeatData))));
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the messages which come out of a connection's write pipeline.
+     */
+    private class PipelineOutput implements DataProcessorPipeline.Output {
+        private final ClientConnection clientConnection;
+
+        public PipelineOutput(ClientConnection clientConnection) {
+            this.clientConnection = clientConnection;
+        }
+
+        @Override
+        public void onProcessed(byte[] data) {
+            SelectionKey key = clientConnection.getSelectionKey();
+            try {
+                sendTo(key, ByteBuffer.wrap(data));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (OutboundQueueFullException e) {
+                onFailure(e);
+            }
+        }
+
+        @Override
+        public void onFailure(RuntimeException exception) {
+            if (listener != null)
+                listener.onClientMessageFailed(clientConnection, exception);
+        }
     }
 
     private class ServerMessenger implements ClientConnection.Messenger {
@@ -0,0 +1,162 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.server.ClientConnection;
+import com.bmdelacruz.socketify.server.Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.bmdelacruz.socketify.Checks.check;
+import static com.bmdelacruz.socketify.Checks.checkEquals;
+
+/**
+ * Checks that the server admits no more connections than its limits allow, closes the
+ * ones it refuses, and takes new ones again once admitted connections end.
+ */
+class AdmissionTest {
+    private static final int FIRST_PORT = 10867;
+
+    public static void main(String[] args) throws Exception {
+        checkConnectionLimit();
+        checkAddressLimit();
+        checkAcceptRate();
+        System.out.println("AdmissionTest passed.");
+    }
+
+    private static void checkConnectionLimit() throws Exception {
+        Server server = startServer(FIRST_PORT + 0);
+        server.setMaxConnections(3);
+
+        List<SocketChannel> clients = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            clients.add(connect(FIRST_PORT + 0, "127.0.0.1"));
+        waitForAccepts(server, 5);
+        checkEquals(3, server.getClientConnections().size(), "The connections at the limit");
+        checkEquals(2L, metric(server, "connections.refused.limit"), "The connections refused by the limit");
+        checkEquals(3, countOpen(clients), "The clients left open");
+
+        // Ending a connection makes room for another.
+        for (SocketChannel client : clients)
+            client.close();
+        waitForConnections(server, 0);
+        clients.clear();
+        for (int i = 0; i < 3; i++)
+            clients.add(connect(FIRST_PORT + 0, "127.0.0.1"));
+        waitForAccepts(server, 8);
+        checkEquals(3, server.getClientConnections().size(), "The connections after the others ended");
+
+        for (SocketChannel client : clients)
+            client.close();
+        server.stop();
+    }
+
+    private static void checkAddressLimit() throws Exception {
+        Server server = startServer(FIRST_PORT + 1);
+        server.setMaxConnectionsPerAddress(1);
+        server.setMaxAcceptRate(2);
+
+        // The refused second connection from the first address must not use up the permit
+        // which the other address needs.
+        List<SocketChannel> clients = new ArrayList<>();
+        clients.add(connect(FIRST_PORT + 1, "127.0.0.1"));
+        clients.add(connect(FIRST_PORT + 1, "127.0.0.1"));
+        clients.add(connect(FIRST_PORT + 1, "127.0.0.2"));
+        waitForAccepts(server, 3);
+        checkEquals(2, server.getClientConnections().size(), "The connections of two addresses");
+        checkEquals(1L, metric(server, "connections.refused.address"), "The connections refused by address");
+        checkEquals(0L, metric(server, "connections.refused.rate"), "The connections refused by rate");
+
+        for (SocketChannel client : clients)
+            client.close();
+        server.stop();
+    }
+
+    private static void checkAcceptRate() throws Exception {
+        Server server = startServer(FIRST_PORT + 2);
+        server.setMaxAcceptRate(5);
+
+        List<SocketChannel> clients = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            clients.add(connect(FIRST_PORT + 2, "127.0.0.1"));
+        waitForAccepts(server, 20);
+        // A second's worth of permits is taken at once, and a few more may have come in
+        // while the clients connected.
+        int admitted = server.getClientConnections().size();
+        check(admitted >= 5 && admitted <= 7, "The rate let " + admitted + " of 20 connections in.");
+        checkEquals(20L - admitted, metric(server, "connections.refused.rate"), "The connections refused by rate");
+
+        for (SocketChannel client : clients)
+            client.close();
+        server.stop();
+    }
+
+    private static Server startServer(int port) throws IOException {
+        Server server = new Server(port);
+        server.setListener(new Server.Listener() {
+            @Override
+            public void onClientConnect(ClientConnection clientConnection) {
+            }
+
+            @Override
+            public void onClientMessageFailed(ClientConnection clientConnection, Exception e) {
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static SocketChannel connect(int port, String localAddress) throws IOException {
+        SocketChannel client = SocketChannel.open();
+        client.bind(new InetSocketAddress(localAddress, 0));
+        client.connect(new InetSocketAddress("127.0.0.1", port));
+        return client;
+    }
+
+    /**
+     * Waits until the server has either admitted or refused the given number of sockets.
+     */
+    private static void waitForAccepts(Server server, long count) throws InterruptedException {
+        for (int i = 0; i < 500 && acceptsOf(server) < count; i++)
+            Thread.sleep(10);
+        checkEquals(count, acceptsOf(server), "The sockets the server decided on");
+    }
+
+    private static long acceptsOf(Server server) {
+        return metric(server, "connections.accepted") + metric(server, "connections.refused.limit")
+                + metric(server, "connections.refused.rate") + metric(server, "connections.refused.address");
+    }
+
+    private static void waitForConnections(Server server, int count) throws InterruptedException {
+        for (int i = 0; i < 500 && server.getClientConnections().size() != count; i++)
+            Thread.sleep(10);
+        checkEquals(count, server.getClientConnections().size(), "The connections left");
+    }
+
+    private static long metric(Server server, String name) {
+        Long value = server.getMetrics().snapshot().get(name);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * A refused client reads the end of the stream, or a reset, while an admitted one
+     * reads nothing for a while.
+     */
+    private static int countOpen(List<SocketChannel> clients) throws IOException {
+        int open = 0;
+        for (SocketChannel client : clients) {
+            client.socket().setSoTimeout(200);
+            try {
+                if (client.socket().getInputStream().read() != -1)
+                    throw new AssertionError("The server sent something to a new client.");
+            } catch (SocketTimeoutException e) {
+                open++;
+            } catch (IOException ignored) {
+            }
+        }
+        return open;
+    }
+}
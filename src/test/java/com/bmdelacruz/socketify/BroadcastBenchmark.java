@@ -0,0 +1,100 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.server.Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Broadcasts to many connections and reports how long it takes to queue each
+ * broadcast and to deliver all of them.
+ * Usage: BroadcastBenchmark [connections] [broadcasts] [selector loops]
+ */
+class BroadcastBenchmark {
+    private static final int PORT = 10852;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int selectorLoops = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+        Server server = new Server(PORT);
+        server.setSelectorLoopCount(selectorLoops);
+        server.start();
+
+        final Selector clientSelector = Selector.open();
+        final AtomicLong receivedBytes = new AtomicLong();
+        List<SocketChannel> channels = new ArrayList<>();
+
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+            channel.configureBlocking(false);
+            channels.add(channel);
+        }
+        for (SocketChannel channel : channels)
+            channel.register(clientSelector, SelectionKey.OP_READ);
+
+        Thread drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        clientSelector.select(100);
+
+                        Iterator<SelectionKey> keys = clientSelector.selectedKeys().iterator();
+                        while (keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+
+                            int read;
+                            while ((read = ((SocketChannel) key.channel()).read(buffer)) > 0) {
+                                receivedBytes.addAndGet(read);
+                                buffer.clear();
+                            }
+                            if (read == -1) key.cancel();
+                        }
+                    } catch (IOException e) {
+                        break;
+                    }
+                }
+            }
+        });
+        drainThread.start();
+
+        while (server.getClientConnections().size() < connections)
+            Thread.sleep(10);
+        System.out.println("Connected " + connections + " clients.");
+
+        byte[] message = "The quick brown fox jumps over the lazy dog.".getBytes();
+        long expectedBytes = (long) connections * broadcasts * server.getFrameCodec().getEncodedLength(message.length);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < broadcasts; i++)
+            server.broadcast(message);
+        long queued = System.nanoTime();
+
+        long deadline = queued + 30000000000L;
+        while (receivedBytes.get() < expectedBytes && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        long delivered = System.nanoTime();
+
+        System.out.println("Queued " + broadcasts + " broadcasts in " + (queued - start) / 1000000 + " ms ("
+                + (queued - start) / broadcasts / 1000 + " us per broadcast).");
+        System.out.println("Delivered " + receivedBytes.get() + " of " + expectedBytes + " bytes in "
+                + (delivered - start) / 1000000 + " ms.");
+
+        drainThread.interrupt();
+        for (SocketChannel channel : channels) channel.close();
+        clientSelector.close();
+        server.stop();
+    }
+}
@@ -0,0 +1,92 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.commons.PooledBufferAllocator;
+import com.bmdelacruz.socketify.server.Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+
+import static com.bmdelacruz.socketify.Checks.check;
+
+/**
+ * Checks that buffers which are allocated on one thread and released on another are
+ * reused, first with two bare threads and then with frames which are broadcast from the
+ * main thread and written and released by the server's selector loop.
+ */
+class BufferPoolTest {
+    private static final int PORT = 10858;
+    private static final int ROUNDS = 2000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        checkCrossThreadRelease();
+        checkOffLoopSender();
+        System.out.println("BufferPoolTest passed.");
+    }
+
+    private static void checkCrossThreadRelease() throws InterruptedException {
+        final PooledBufferAllocator allocator = new PooledBufferAllocator();
+        final BlockingQueue<ByteBuffer> handOff = new SynchronousQueue<>();
+
+        Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < ROUNDS; i++)
+                        allocator.release(handOff.take());
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        releaser.start();
+        for (int i = 0; i < ROUNDS; i++)
+            handOff.put(allocator.allocate(512));
+        releaser.join();
+
+        System.out.println("Cross-thread: " + allocator.getHitCount() + " hits, "
+                + allocator.getMissCount() + " misses.");
+        check(allocator.getHitCount() >= ROUNDS * 9 / 10,
+                "Buffers released on another thread were not reused.");
+    }
+
+    private static void checkOffLoopSender() throws IOException, InterruptedException {
+        PooledBufferAllocator allocator = new PooledBufferAllocator();
+        Server server = new Server(PORT);
+        server.setBufferAllocator(allocator);
+        server.start();
+
+        final SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                try {
+                    while (socketChannel.read(buffer) != -1)
+                        buffer.clear();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        reader.start();
+        while (server.getClientConnections().isEmpty())
+            Thread.sleep(10);
+
+        byte[] message = new byte[200];
+        for (int i = 0; i < ROUNDS; i++) {
+            server.broadcast(message);
+            if (i % 50 == 0)
+                Thread.sleep(1);
+        }
+        Thread.sleep(200);
+
+        System.out.println("Off-loop sender: " + allocator.getHitCount() + " hits, "
+                + allocator.getMissCount() + " misses.");
+        check(allocator.getMissCount() < ROUNDS / 10, "The frames of an off-loop sender missed the pool.");
+
+        socketChannel.close();
+        server.stop();
+    }
+}
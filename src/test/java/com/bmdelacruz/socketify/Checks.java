@@ -0,0 +1,17 @@
+package com.bmdelacruz.socketify;
+
+/**
+ * The assertions of the main()-style checks. They fail with an AssertionError whether or
+ * not the JVM was started with assertions enabled.
+ */
+class Checks {
+    static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    static void checkEquals(Object expected, Object actual, String what) {
+        if (expected == null ? actual != null : !expected.equals(actual))
+            throw new AssertionError(what + ": expected " + expected + " but was " + actual + ".");
+    }
+}
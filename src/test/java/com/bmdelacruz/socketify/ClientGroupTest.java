@@ -0,0 +1,99 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.client.ClientGroup;
+import com.bmdelacruz.socketify.client.ServerConnection;
+import com.bmdelacruz.socketify.server.ClientConnection;
+import com.bmdelacruz.socketify.server.Server;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens many connections to an echo server through one ClientGroup, sends a message on
+ * each right away and reports how long it takes until every connection got its echo.
+ * Usage: ClientGroupTest [connections] [group selector loops] [server selector loops]
+ */
+class ClientGroupTest {
+    private static final int PORT = 10853;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int groupSelectorLoops = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int serverSelectorLoops = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+        Server server = new Server(PORT);
+        server.setSelectorLoopCount(serverSelectorLoops);
+        server.setListener(new Server.Listener() {
+            @Override
+            public void onClientConnect(ClientConnection clientConnection) {
+                clientConnection.addListener(new ClientConnection.Listener() {
+                    @Override
+                    public void onDataReceived(ClientConnection clientConnection, byte[] data,
+                                               ClientConnection.Messenger messenger) {
+                        messenger.reply(data);
+                    }
+
+                    @Override
+                    public void onDisconnected(ClientConnection clientConnection) {
+                    }
+
+                    @Override
+                    public void onFailure(ClientConnection clientConnection) {
+                    }
+                });
+            }
+
+            @Override
+            public void onClientMessageFailed(ClientConnection clientConnection, Exception e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+
+        final CountDownLatch echoes = new CountDownLatch(connections);
+        final AtomicInteger failures = new AtomicInteger();
+
+        ClientGroup clientGroup = new ClientGroup(groupSelectorLoops);
+        clientGroup.setConnectTimeout(5000);
+        clientGroup.start();
+
+        ServerConnection.Listener listener = new ServerConnection.Listener() {
+            @Override
+            public void onConnected(ServerConnection serverConnection) {
+            }
+
+            @Override
+            public void onConnectFailed(ServerConnection serverConnection, IOException e) {
+                failures.incrementAndGet();
+                echoes.countDown();
+            }
+
+            @Override
+            public void onDataReceived(ServerConnection serverConnection, byte[] data) {
+                echoes.countDown();
+            }
+
+            @Override
+            public void onDisconnected(ServerConnection serverConnection) {
+            }
+        };
+
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++)
+            clientGroup.connect(PORT, "localhost", listener).sendBytes(("hello " + i).getBytes());
+        long connectsStarted = System.nanoTime();
+
+        boolean isComplete = echoes.await(30, TimeUnit.SECONDS);
+        long end = System.nanoTime();
+
+        System.out.println("Started " + connections + " connects in "
+                + TimeUnit.NANOSECONDS.toMillis(connectsStarted - start) + " ms");
+        System.out.println((isComplete ? "All" : "Not all") + " connections answered after "
+                + TimeUnit.NANOSECONDS.toMillis(end - start) + " ms, " + failures.get() + " failed to connect");
+
+        clientGroup.stop();
+        server.stop();
+    }
+}
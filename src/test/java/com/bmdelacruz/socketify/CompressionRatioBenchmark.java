@@ -0,0 +1,79 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.data.DataProcessorChain;
+import com.bmdelacruz.socketify.data.DeflateDataProcessor;
+import com.bmdelacruz.socketify.data.InflateDataProcessor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compresses a stream of small, similar JSON messages and reports the bytes they take on
+ * the wire when every message is compressed on its own, when one deflater keeps its window
+ * across the messages of the connection, and when it also starts from a preset dictionary.
+ * Every message is inflated back and checked.
+ * Usage: CompressionRatioBenchmark [messages]
+ */
+class CompressionRatioBenchmark {
+    private static final byte[] DICTIONARY =
+            "{\"type\":\"quote\",\"symbol\":\"\",\"bid\":,\"ask\":,\"time\":}".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        byte[][] stream = new byte[messages][];
+        Random random = new Random(42);
+        long rawBytes = 0;
+        for (int i = 0; i < messages; i++) {
+            stream[i] = ("{\"type\":\"quote\",\"symbol\":\"SYM" + random.nextInt(20)
+                    + "\",\"bid\":" + random.nextInt(100000) + ",\"ask\":" + random.nextInt(100000)
+                    + ",\"time\":" + (1700000000000L + i) + "}").getBytes(StandardCharsets.UTF_8);
+            rawBytes += stream[i].length;
+        }
+
+        long perMessageBytes = 0;
+        for (byte[] message : stream)
+            perMessageBytes += run(new byte[][] { message }, null);
+
+        long streamingBytes = run(stream, null);
+        long dictionaryBytes = run(stream, DICTIONARY);
+
+        System.out.printf("%d messages, %d bytes raw (%.1f per message)%n",
+                messages, rawBytes, rawBytes / (double) messages);
+        System.out.printf("deflate per message: %d bytes (%.1f per message)%n",
+                perMessageBytes, perMessageBytes / (double) messages);
+        System.out.printf("streaming deflate: %d bytes (%.1f per message)%n",
+                streamingBytes, streamingBytes / (double) messages);
+        System.out.printf("streaming deflate with dictionary: %d bytes (%.1f per message)%n",
+                dictionaryBytes, dictionaryBytes / (double) messages);
+    }
+
+    /**
+     * Runs the messages through the chains of one connection.
+     * @return The number of compressed bytes.
+     */
+    private static long run(byte[][] messages, byte[] dictionary) {
+        DataProcessorChain writeChain = new DataProcessorChain();
+        writeChain.addDataProcessorFactory(DeflateDataProcessor.factory(6, dictionary));
+        DataProcessorChain readChain = new DataProcessorChain();
+        readChain.addDataProcessorFactory(InflateDataProcessor.factory(dictionary, 1024 * 1024));
+
+        DataProcessorChain deflater = writeChain.newConnectionChain();
+        DataProcessorChain inflater = readChain.newConnectionChain();
+        long compressedBytes = 0;
+        try {
+            for (byte[] message : messages) {
+                byte[] compressed = deflater.process(message);
+                compressedBytes += compressed.length;
+
+                if (!Arrays.equals(message, inflater.process(compressed)))
+                    throw new IllegalStateException("A message did not survive the round trip.");
+            }
+        } finally {
+            deflater.release();
+            inflater.release();
+        }
+        return compressedBytes;
+    }
+}
@@ -0,0 +1,59 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.data.DataProcessorChain;
+import com.bmdelacruz.socketify.data.DeflateDataProcessor;
+import com.bmdelacruz.socketify.data.InflateDataProcessor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.bmdelacruz.socketify.Checks.check;
+
+/**
+ * Checks that the messages of a connection survive the deflate and inflate chains in
+ * order, including empty ones at the start and between others, with and without a
+ * dictionary.
+ */
+class DeflateTest {
+    private static final byte[] DICTIONARY = "hello world".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) {
+        byte[] large = new byte[200 * 1024];
+        new Random(42).nextBytes(large);
+        byte[][] messages = {
+                new byte[0],
+                "hello".getBytes(StandardCharsets.UTF_8),
+                new byte[0],
+                new byte[0],
+                "hello world, hello world".getBytes(StandardCharsets.UTF_8),
+                large,
+                new byte[0],
+                "x".getBytes(StandardCharsets.UTF_8),
+        };
+
+        checkRoundTrip(messages, null);
+        checkRoundTrip(messages, DICTIONARY);
+        System.out.println("DeflateTest passed.");
+    }
+
+    private static void checkRoundTrip(byte[][] messages, byte[] dictionary) {
+        DataProcessorChain writeChain = new DataProcessorChain();
+        writeChain.addDataProcessorFactory(DeflateDataProcessor.factory(6, dictionary));
+        DataProcessorChain readChain = new DataProcessorChain();
+        readChain.addDataProcessorFactory(InflateDataProcessor.factory(dictionary, 1024 * 1024));
+
+        DataProcessorChain deflater = writeChain.newConnectionChain();
+        DataProcessorChain inflater = readChain.newConnectionChain();
+        try {
+            for (int i = 0; i < messages.length; i++) {
+                byte[] inflated = inflater.process(deflater.process(messages[i]));
+                check(Arrays.equals(messages[i], inflated), "Message " + i + " of " + messages[i].length
+                        + " bytes did not survive the round trip" + (dictionary != null ? " with a dictionary." : "."));
+            }
+        } finally {
+            deflater.release();
+            inflater.release();
+        }
+    }
+}
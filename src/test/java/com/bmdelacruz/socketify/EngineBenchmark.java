@@ -0,0 +1,123 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.client.ClientGroup;
+import com.bmdelacruz.socketify.client.ServerConnection;
+import com.bmdelacruz.socketify.server.BlockingServer;
+import com.bmdelacruz.socketify.server.ClientConnection;
+import com.bmdelacruz.socketify.server.Server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the selector loop Server with the thread-per-connection BlockingServer. Every
+ * connection plays ping-pong with an echo handler, all of them at once, and the time it
+ * takes until every connection is done is reported.
+ * Usage: EngineBenchmark [nio|blocking] [connections] [round trips] [selector loops]
+ */
+class EngineBenchmark {
+    private static final int PORT = 10854;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String engine = args.length > 0 ? args[0] : "nio";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        final int roundTrips = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int selectorLoops = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        Server.Listener echoListener = new Server.Listener() {
+            @Override
+            public void onClientConnect(ClientConnection clientConnection) {
+                clientConnection.addListener(new ClientConnection.Listener() {
+                    @Override
+                    public void onDataReceived(ClientConnection clientConnection, byte[] data,
+                                               ClientConnection.Messenger messenger) {
+                        messenger.reply(data);
+                    }
+
+                    @Override
+                    public void onDisconnected(ClientConnection clientConnection) {
+                    }
+
+                    @Override
+                    public void onFailure(ClientConnection clientConnection) {
+                    }
+                });
+            }
+
+            @Override
+            public void onClientMessageFailed(ClientConnection clientConnection, Exception e) {
+                e.printStackTrace();
+            }
+        };
+
+        Server server = null;
+        BlockingServer blockingServer = null;
+        if (engine.equals("blocking")) {
+            blockingServer = new BlockingServer(PORT);
+            blockingServer.setListener(echoListener);
+            blockingServer.start();
+        } else {
+            server = new Server(PORT);
+            server.setSelectorLoopCount(selectorLoops);
+            server.setListener(echoListener);
+            server.start();
+        }
+
+        final byte[] ping = "ping".getBytes();
+        final CountDownLatch doneConnections = new CountDownLatch(connections);
+        final AtomicInteger failedConnections = new AtomicInteger();
+        final Map<ServerConnection, AtomicInteger> remainingRoundTrips = new ConcurrentHashMap<>();
+
+        ClientGroup clientGroup = new ClientGroup(selectorLoops);
+        clientGroup.setConnectTimeout(30000);
+        clientGroup.start();
+
+        ServerConnection.Listener pingListener = new ServerConnection.Listener() {
+            @Override
+            public void onConnected(ServerConnection serverConnection) {
+            }
+
+            @Override
+            public void onConnectFailed(ServerConnection serverConnection, IOException e) {
+                failedConnections.incrementAndGet();
+                doneConnections.countDown();
+            }
+
+            @Override
+            public void onDataReceived(ServerConnection serverConnection, byte[] data) {
+                if (remainingRoundTrips.get(serverConnection).decrementAndGet() > 0)
+                    serverConnection.sendBytes(ping);
+                else
+                    doneConnections.countDown();
+            }
+
+            @Override
+            public void onDisconnected(ServerConnection serverConnection) {
+            }
+        };
+
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            ServerConnection serverConnection = clientGroup.connect(PORT, "localhost", pingListener);
+            remainingRoundTrips.put(serverConnection, new AtomicInteger(roundTrips));
+            serverConnection.sendBytes(ping);
+        }
+
+        boolean isComplete = doneConnections.await(5, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - start;
+
+        long messages = (long) connections * roundTrips;
+        System.out.println(engine + ": " + connections + " connections x " + roundTrips + " round trips "
+                + (isComplete ? "took " : "did not finish in ") + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, "
+                + (messages * 1000000000L / elapsed) + " round trips/s, " + failedConnections.get()
+                + " failed to connect, " + Thread.activeCount() + " live threads");
+
+        clientGroup.stop();
+        if (server != null) server.stop();
+        if (blockingServer != null) blockingServer.stop();
+    }
+}
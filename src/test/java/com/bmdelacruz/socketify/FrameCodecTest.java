@@ -0,0 +1,274 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.commons.FixedLengthPrefixFrameCodec;
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.commons.MarkerFrameCodec;
+import com.bmdelacruz.socketify.commons.PooledBufferAllocator;
+import com.bmdelacruz.socketify.commons.VarintLengthPrefixFrameCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.bmdelacruz.socketify.Checks.check;
+import static com.bmdelacruz.socketify.Checks.checkEquals;
+
+/**
+ * Checks that each codec decodes what it encoded however the bytes are split into reads,
+ * whole or in chunks, and that the decoders refuse frames which are too large before
+ * holding on to them.
+ */
+class FrameCodecTest {
+    public static void main(String[] args) throws IOException {
+        FrameCodec[] codecs = {
+                new MarkerFrameCodec(), new FixedLengthPrefixFrameCodec(), new VarintLengthPrefixFrameCodec() };
+        for (FrameCodec codec : codecs) {
+            List<byte[]> messages = messagesFor(codec);
+            byte[] stream = encode(codec, messages);
+
+            checkEverySplit(codec, messages, stream);
+            checkByteAtATime(codec, messages, stream);
+            checkChunked(codec, messages, stream);
+            if (!codec.isLengthPrefixed())
+                checkReadBuffer(codec, messages, stream);
+            else
+                checkOwnedReadBuffer(codec, messages, stream);
+        }
+
+        checkVarintPrefixLengths();
+        checkOversizeFrames();
+        checkStreamedFrameSizes();
+        System.out.println("FrameCodecTest passed.");
+    }
+
+    /**
+     * Empty messages, the lengths where a varint prefix gets another byte, and a message
+     * larger than the room a length prefix decoder gives before the bytes arrive.
+     */
+    private static List<byte[]> messagesFor(FrameCodec codec) {
+        List<byte[]> messages = new ArrayList<>();
+        for (int length : new int[] { 0, 1, 127, 128, 300, 16383, 16384, 0, 5, 200 * 1024 }) {
+            byte[] message = new byte[length];
+            for (int i = 0; i < length; i++)
+                message[i] = (byte) (codec.isLengthPrefixed() ? i * 31 : 'a' + i % 26);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static byte[] encode(FrameCodec codec, List<byte[]> messages) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] message : messages) {
+            ByteBuffer frame = ByteBuffer.allocate(codec.getEncodedLength(message.length));
+            codec.encode(message, frame);
+            stream.write(frame.array(), 0, frame.position());
+        }
+        return stream.toByteArray();
+    }
+
+    private static void checkEverySplit(FrameCodec codec, List<byte[]> messages, byte[] stream) throws IOException {
+        // Every split in the first frames, where the prefixes and the short messages are.
+        for (int split = 0; split <= 1200; split++) {
+            FrameCodec.Decoder decoder = codec.newDecoder();
+            List<byte[]> decoded = new ArrayList<>();
+            decoder.decode(ByteBuffer.wrap(stream, 0, split), decoded);
+            decoder.decode(ByteBuffer.wrap(stream, split, stream.length - split), decoded);
+            checkMessages(codec, messages, decoded, "split at " + split);
+        }
+    }
+
+    private static void checkByteAtATime(FrameCodec codec, List<byte[]> messages, byte[] stream) throws IOException {
+        FrameCodec.Decoder decoder = codec.newDecoder();
+        List<byte[]> decoded = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1);
+        for (byte b : stream) {
+            buffer.clear();
+            buffer.put(b).flip();
+            decoder.decode(buffer, decoded);
+            check(!buffer.hasRemaining(), "The decoder left bytes of the read behind.");
+        }
+        checkMessages(codec, messages, decoded, "one byte at a time");
+    }
+
+    private static void checkChunked(FrameCodec codec, List<byte[]> messages, byte[] stream) throws IOException {
+        final List<byte[]> decoded = new ArrayList<>();
+        final List<Integer> startLengths = new ArrayList<>();
+        final ByteArrayOutputStream current = new ByteArrayOutputStream();
+        FrameCodec.ChunkListener chunkListener = new FrameCodec.ChunkListener() {
+            @Override
+            public void onMessageStart(int length) {
+                startLengths.add(length);
+            }
+
+            @Override
+            public void onChunk(ByteBuffer chunk) {
+                while (chunk.hasRemaining())
+                    current.write(chunk.get());
+            }
+
+            @Override
+            public void onMessageEnd() {
+                decoded.add(current.toByteArray());
+                current.reset();
+            }
+        };
+
+        FrameCodec.Decoder decoder = codec.newDecoder();
+        for (int offset = 0; offset < stream.length; offset += 777)
+            decoder.decode(ByteBuffer.wrap(stream, offset, Math.min(777, stream.length - offset)), chunkListener);
+
+        checkMessages(codec, messages, decoded, "streamed in chunks");
+        for (int i = 0; i < messages.size(); i++)
+            checkEquals(codec.isLengthPrefixed() ? messages.get(i).length : -1, startLengths.get(i),
+                    "The length given at the start of message " + i);
+    }
+
+    /**
+     * The path the server takes with an allocator, where the bytes are read straight into
+     * the buffer the decoder lends.
+     */
+    private static void checkReadBuffer(FrameCodec codec, List<byte[]> messages, byte[] stream) throws IOException {
+        PooledBufferAllocator allocator = new PooledBufferAllocator();
+        FrameCodec.Decoder decoder = codec.newDecoder(allocator);
+        List<byte[]> decoded = new ArrayList<>();
+        for (int offset = 0; offset < stream.length; offset += 1000) {
+            int length = Math.min(1000, stream.length - offset);
+            ByteBuffer readBuffer = decoder.getReadBuffer(length);
+            readBuffer.put(stream, offset, length);
+            decoder.decodeReadBuffer(readBuffer, decoded);
+        }
+        decoder.release();
+        checkMessages(codec, messages, decoded, "read into the lent buffer");
+    }
+
+    /**
+     * Decodes the stream through a decoder which lends a buffer of its own and leaves the
+     * decoding of what was read into it to the default.
+     */
+    private static void checkOwnedReadBuffer(FrameCodec codec, List<byte[]> messages, byte[] stream)
+            throws IOException {
+        final FrameCodec.Decoder delegate = codec.newDecoder();
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder() {
+            private final ByteBuffer ownedBuffer = ByteBuffer.allocate(1000);
+
+            @Override
+            public void decode(ByteBuffer buffer, List<byte[]> messages) throws IOException {
+                delegate.decode(buffer, messages);
+            }
+
+            @Override
+            public void decode(ByteBuffer buffer, FrameCodec.ChunkListener chunkListener) throws IOException {
+                delegate.decode(buffer, chunkListener);
+            }
+
+            @Override
+            public ByteBuffer getReadBuffer(int minWritable) {
+                return ownedBuffer;
+            }
+        };
+
+        List<byte[]> decoded = new ArrayList<>();
+        for (int offset = 0; offset < stream.length; offset += 1000) {
+            int length = Math.min(1000, stream.length - offset);
+            ByteBuffer readBuffer = decoder.getReadBuffer(length);
+            readBuffer.put(stream, offset, length);
+            decoder.decodeReadBuffer(readBuffer, decoded);
+        }
+        checkMessages(codec, messages, decoded, "read into a buffer the decoder owns");
+    }
+
+    private static void checkMessages(FrameCodec codec, List<byte[]> expected, List<byte[]> actual, String how) {
+        String name = codec.getClass().getSimpleName();
+        checkEquals(expected.size(), actual.size(), name + ", " + how + ", the number of messages");
+        for (int i = 0; i < expected.size(); i++)
+            check(Arrays.equals(expected.get(i), actual.get(i)), name + ", " + how + ", message " + i + " differs.");
+    }
+
+    private static void checkVarintPrefixLengths() {
+        VarintLengthPrefixFrameCodec codec = new VarintLengthPrefixFrameCodec();
+        int[] lengths = { 0, 127, 128, 16383, 16384, 2097151, 2097152, 268435455, 268435456, Integer.MAX_VALUE };
+        int[] prefixLengths = { 1, 1, 2, 2, 3, 3, 4, 4, 5, 5 };
+        for (int i = 0; i < lengths.length; i++)
+            checkEquals(prefixLengths[i], codec.getHeaderLength(lengths[i]), "The varint prefix of " + lengths[i]);
+    }
+
+    private static void checkOversizeFrames() throws IOException {
+        FixedLengthPrefixFrameCodec fixedCodec = new FixedLengthPrefixFrameCodec();
+        checkEquals(FrameCodec.DEFAULT_MAX_FRAME_SIZE, fixedCodec.getMaxFrameSize(), "The default maximum frame size");
+
+        // A bare prefix claiming 2 GB must be refused, not allocated for.
+        checkRefused(fixedCodec, new byte[] { 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF });
+        checkRefused(new VarintLengthPrefixFrameCodec(),
+                new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 });
+        checkRefused(new VarintLengthPrefixFrameCodec(),
+                new byte[] { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01 });
+
+        FixedLengthPrefixFrameCodec limitedCodec = new FixedLengthPrefixFrameCodec();
+        limitedCodec.setMaxFrameSize(1000);
+        byte[] atLimit = encode(limitedCodec, Arrays.asList(new byte[1000]));
+        List<byte[]> decoded = new ArrayList<>();
+        limitedCodec.newDecoder().decode(ByteBuffer.wrap(atLimit), decoded);
+        checkEquals(1, decoded.size(), "The messages at the limit");
+        checkRefused(limitedCodec, encode(limitedCodec, Arrays.asList(new byte[1001])));
+
+        MarkerFrameCodec markerCodec = new MarkerFrameCodec();
+        markerCodec.setMaxFrameSize(1000);
+        byte[] unterminated = new byte[1001];
+        Arrays.fill(unterminated, (byte) 'a');
+        checkRefused(markerCodec, unterminated);
+    }
+
+    /**
+     * A streamed message is not held, so only the limit on streamed messages applies to it.
+     */
+    private static void checkStreamedFrameSizes() throws IOException {
+        FrameCodec[] codecs = { new MarkerFrameCodec(), new FixedLengthPrefixFrameCodec() };
+        for (FrameCodec codec : codecs) {
+            String name = codec.getClass().getSimpleName();
+            codec.setMaxFrameSize(1000);
+            codec.setMaxStreamedFrameSize(2000);
+            byte[] message = new byte[2000];
+            Arrays.fill(message, (byte) 'a');
+            byte[] tooLong = new byte[2001];
+            Arrays.fill(tooLong, (byte) 'a');
+
+            final int[] streamedBytes = new int[1];
+            FrameCodec.ChunkListener chunkListener = new FrameCodec.ChunkListener() {
+                @Override
+                public void onMessageStart(int length) {
+                }
+
+                @Override
+                public void onChunk(ByteBuffer chunk) {
+                    streamedBytes[0] += chunk.remaining();
+                }
+
+                @Override
+                public void onMessageEnd() {
+                }
+            };
+            codec.newDecoder().decode(ByteBuffer.wrap(encode(codec, Arrays.asList(message))), chunkListener);
+            checkEquals(2000, streamedBytes[0], name + ", the bytes streamed past the limit on whole messages");
+
+            try {
+                codec.newDecoder().decode(ByteBuffer.wrap(encode(codec, Arrays.asList(tooLong))), chunkListener);
+            } catch (ProtocolException e) {
+                continue;
+            }
+            throw new AssertionError(name + " streamed a message which is too large.");
+        }
+    }
+
+    private static void checkRefused(FrameCodec codec, byte[] stream) throws IOException {
+        try {
+            codec.newDecoder().decode(ByteBuffer.wrap(stream), new ArrayList<byte[]>());
+        } catch (ProtocolException e) {
+            return;
+        }
+        throw new AssertionError(codec.getClass().getSimpleName() + " accepted a frame which is too large.");
+    }
+}
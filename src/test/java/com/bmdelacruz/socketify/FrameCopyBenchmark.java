@@ -0,0 +1,149 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.commons.AccumulationBuffer;
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.commons.FrameScanner;
+import com.bmdelacruz.socketify.commons.MarkerFrameCodec;
+import com.bmdelacruz.socketify.commons.PooledBufferAllocator;
+import com.bmdelacruz.socketify.commons.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Feeds a stream of marker framed messages to the decoder in reads of a fixed size and
+ * reports how many bytes get copied per byte received, counting the copy out of the
+ * socket, before and after the accumulation buffer replaced the list of fragments. The
+ * time each decoder takes is reported as well.
+ * Usage: FrameCopyBenchmark [message size] [read size] [messages]
+ */
+class FrameCopyBenchmark {
+    private static final byte MARKER = MarkerFrameCodec.DEFAULT_MARKER_BYTE;
+
+    public static void main(String[] args) throws IOException {
+        int messageSize = args.length > 0 ? Integer.parseInt(args[0]) : 16 * 1024;
+        int readSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+        byte[] message = new byte[messageSize];
+        Arrays.fill(message, (byte) 'x');
+        ByteBuffer stream = ByteBuffer.allocate((messageSize + 1) * messages);
+        for (int i = 0; i < messages; i++)
+            stream.put(message).put(MARKER);
+        stream.flip();
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            long copiedBefore = runFragmentList(stream.duplicate(), readSize);
+            long beforeNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long copiedAfter = runAccumulationBuffer(stream.duplicate(), readSize);
+            long afterNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            runDecoder(stream.duplicate(), readSize);
+            long decoderNanos = System.nanoTime() - start;
+
+            double received = stream.remaining();
+            System.out.printf("%d byte messages, %d byte reads: list of fragments %.2f copies/byte in %d ms, "
+                            + "accumulation buffer %.2f copies/byte in %d ms, decoder %d ms%n",
+                    messageSize, readSize, copiedBefore / received, beforeNanos / 1000000,
+                    copiedAfter / received, afterNanos / 1000000, decoderNanos / 1000000);
+        }
+    }
+
+    /**
+     * The old decoding: every read lands in a scratch buffer, the fragments of a partial
+     * message are copied out of it and glued together once the marker arrives.
+     */
+    private static long runFragmentList(ByteBuffer stream, int readSize) {
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(readSize);
+        List<byte[]> pendingDataList = new ArrayList<>();
+        long copied = 0;
+
+        while (stream.hasRemaining()) {
+            readBuffer.clear();
+            copied += read(stream, readBuffer);
+            readBuffer.flip();
+
+            int limit = readBuffer.limit();
+            int start = 0;
+            int end;
+            while ((end = FrameScanner.indexOf(readBuffer, start, limit, MARKER)) != -1) {
+                byte[] newData = Utils.extractBytesFrom(readBuffer, start, end - start);
+                copied += newData.length;
+                if (pendingDataList.size() > 0) {
+                    pendingDataList.add(newData);
+                    newData = Utils.concatenate(pendingDataList);
+                    copied += newData.length;
+                    pendingDataList.clear();
+                }
+                start = end + 1;
+            }
+            if (start < limit) {
+                pendingDataList.add(Utils.extractBytesFrom(readBuffer, start, limit - start));
+                copied += limit - start;
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * The new decoding: every read lands after the partial message in the accumulation
+     * buffer, and each message is copied once, out of it.
+     */
+    private static long runAccumulationBuffer(ByteBuffer stream, int readSize) {
+        AccumulationBuffer pending = new AccumulationBuffer(PooledBufferAllocator.DEFAULT, 1024);
+        long copied = 0;
+
+        while (stream.hasRemaining()) {
+            int scannedBytes = pending.readableBytes();
+            copied += read(stream, pending.writableBuffer(readSize));
+            pending.commitWritten();
+
+            ByteBuffer buffer = pending.readableBuffer();
+            int limit = buffer.limit();
+            int start = buffer.position();
+            int from = start + scannedBytes;
+            int end;
+            while ((end = FrameScanner.indexOf(buffer, from, limit, MARKER)) != -1) {
+                copied += Utils.extractBytesFrom(buffer, start, end - start).length;
+                start = end + 1;
+                from = start;
+            }
+            pending.consumeTo(start);
+        }
+        copied += pending.getCopiedBytes();
+        pending.release();
+        return copied;
+    }
+
+    private static void runDecoder(ByteBuffer stream, int readSize) throws IOException {
+        FrameCodec.Decoder decoder = new MarkerFrameCodec().newDecoder(PooledBufferAllocator.DEFAULT);
+        List<byte[]> messages = new ArrayList<>();
+
+        while (stream.hasRemaining()) {
+            ByteBuffer readBuffer = decoder.getReadBuffer(readSize);
+            read(stream, readBuffer);
+            decoder.decodeReadBuffer(readBuffer, messages);
+            messages.clear();
+        }
+        decoder.release();
+    }
+
+    /**
+     * Stands in for a socket read of at most readSize bytes.
+     */
+    private static int read(ByteBuffer stream, ByteBuffer destination) {
+        int count = Math.min(stream.remaining(), destination.remaining());
+        ByteBuffer chunk = stream.duplicate();
+        chunk.limit(chunk.position() + count);
+        destination.put(chunk);
+        stream.position(stream.position() + count);
+        return count;
+    }
+}
@@ -0,0 +1,84 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.client.Client;
+import com.bmdelacruz.socketify.commons.IdleTimeouts;
+import com.bmdelacruz.socketify.server.ClientConnection;
+import com.bmdelacruz.socketify.server.Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Runs a server which drops clients that stay silent for a second. A client which sends
+ * heartbeats stays connected, while a bare socket which never sends anything is dropped.
+ */
+class IdleTimeoutTest {
+    private static final int PORT = 10857;
+    private static final byte[] HEARTBEAT = new byte[0];
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Server server = new Server(PORT);
+        server.setIdleTimeout(IdleTimeouts.State.READER_IDLE, 1000, IdleTimeouts.Action.DISCONNECT);
+        server.setHeartbeatData(HEARTBEAT);
+        server.setListener(new Server.Listener() {
+            @Override
+            public void onClientConnect(ClientConnection clientConnection) {
+                System.out.println("Client connected.");
+                clientConnection.addListener(new ClientConnection.Listener() {
+                    @Override
+                    public void onDataReceived(ClientConnection clientConnection, byte[] data,
+                                               ClientConnection.Messenger messenger) {
+                        System.out.println("Received data from client: " + new String(data));
+                    }
+
+                    @Override
+                    public void onDisconnected(ClientConnection clientConnection) {
+                        System.out.println("Client disconnected.");
+                    }
+
+                    @Override
+                    public void onFailure(ClientConnection clientConnection) {
+                        System.out.println("Client was dropped.");
+                    }
+                });
+            }
+
+            @Override
+            public void onClientMessageFailed(ClientConnection clientConnection, Exception e) {
+            }
+        });
+        server.start();
+
+        Client client = new Client(PORT);
+        client.setIdleTimeout(IdleTimeouts.State.WRITER_IDLE, 400, IdleTimeouts.Action.HEARTBEAT);
+        client.setHeartbeatData(HEARTBEAT);
+        client.setListener(new Client.Listener() {
+            @Override
+            public void onDataReceived(byte[] data) {
+            }
+
+            @Override
+            public void onServerDisconnect() {
+                System.out.println("The heartbeat client was dropped.");
+            }
+        });
+        client.connect();
+
+        SocketChannel silentChannel = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+        long start = System.nanoTime();
+        int read = silentChannel.read(ByteBuffer.allocate(1));
+        System.out.println("The silent client was " + (read == -1 ? "dropped" : "not dropped") + " after "
+                + (System.nanoTime() - start) / 1000000 + " ms.");
+        silentChannel.close();
+
+        Thread.sleep(3000);
+        client.sendBytes("Still here.".getBytes());
+        Thread.sleep(200);
+
+        System.out.println(server.getClientConnections().size() + " client(s) still connected.");
+        client.disconnect();
+        server.stop();
+    }
+}
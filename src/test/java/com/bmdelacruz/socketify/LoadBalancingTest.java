@@ -0,0 +1,117 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.server.ClientConnection;
+import com.bmdelacruz.socketify.server.Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.bmdelacruz.socketify.Checks.checkEquals;
+
+/**
+ * Checks that the least-connections balancing spreads a burst of connections evenly over
+ * the selector loops, and fills up a loop whose connections ended. A connection's
+ * listener runs on the thread of the loop which registered it, which tells the loops
+ * apart.
+ */
+class LoadBalancingTest {
+    private static final int PORT = 10872;
+    private static final int LOOP_COUNT = 4;
+    private static final int CONNECTIONS_PER_LOOP = 10;
+
+    /**
+     * The loop thread of each connection, by the client's local port.
+     */
+    private static final Map<Integer, String> loopsByPort = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        Server server = startServer();
+
+        List<SocketChannel> clients = connectAtOnce(LOOP_COUNT * CONNECTIONS_PER_LOOP);
+        waitForConnections(server, LOOP_COUNT * CONNECTIONS_PER_LOOP);
+        Map<String, List<SocketChannel>> clientsByLoop = clientsByLoop(clients);
+        checkEquals(LOOP_COUNT, clientsByLoop.size(), "The loops which got connections");
+        for (Map.Entry<String, List<SocketChannel>> entry : clientsByLoop.entrySet())
+            checkEquals(CONNECTIONS_PER_LOOP, entry.getValue().size(), "The connections of " + entry.getKey());
+
+        // The loop whose clients all leave gets every connection of the next burst.
+        String emptiedLoop = clientsByLoop.keySet().iterator().next();
+        for (SocketChannel client : clientsByLoop.remove(emptiedLoop))
+            client.close();
+        waitForConnections(server, (LOOP_COUNT - 1) * CONNECTIONS_PER_LOOP);
+        List<SocketChannel> newClients = connectAtOnce(CONNECTIONS_PER_LOOP);
+        waitForConnections(server, LOOP_COUNT * CONNECTIONS_PER_LOOP);
+        Map<String, List<SocketChannel>> newClientsByLoop = clientsByLoop(newClients);
+        checkEquals(1, newClientsByLoop.size(), "The loops which got the new connections");
+        checkEquals(emptiedLoop, newClientsByLoop.keySet().iterator().next(), "The loop of the new connections");
+
+        for (List<SocketChannel> loopClients : clientsByLoop.values())
+            for (SocketChannel client : loopClients)
+                client.close();
+        for (SocketChannel client : newClients)
+            client.close();
+        server.stop();
+        System.out.println("LoadBalancingTest passed.");
+    }
+
+    private static Server startServer() throws IOException {
+        Server server = new Server(PORT);
+        server.setSelectorLoopCount(LOOP_COUNT);
+        server.setLoadBalancing(Server.LoadBalancing.LEAST_CONNECTIONS);
+        server.setListener(new Server.Listener() {
+            @Override
+            public void onClientConnect(ClientConnection clientConnection) {
+                loopsByPort.put(clientConnection.getSocketChannel().socket().getPort(),
+                        Thread.currentThread().getName());
+            }
+
+            @Override
+            public void onClientMessageFailed(ClientConnection clientConnection, Exception e) {
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Starts every connection before finishing any, so that the acceptor finds them
+     * waiting together.
+     */
+    private static List<SocketChannel> connectAtOnce(int count) throws IOException {
+        List<SocketChannel> clients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            SocketChannel client = SocketChannel.open();
+            client.configureBlocking(false);
+            client.connect(new InetSocketAddress("127.0.0.1", PORT));
+            clients.add(client);
+        }
+        for (SocketChannel client : clients) {
+            client.configureBlocking(true);
+            client.finishConnect();
+        }
+        return clients;
+    }
+
+    private static Map<String, List<SocketChannel>> clientsByLoop(List<SocketChannel> clients) {
+        Map<String, List<SocketChannel>> clientsByLoop = new HashMap<>();
+        for (SocketChannel client : clients) {
+            String loop = loopsByPort.get(client.socket().getLocalPort());
+            if (!clientsByLoop.containsKey(loop))
+                clientsByLoop.put(loop, new ArrayList<SocketChannel>());
+            clientsByLoop.get(loop).add(client);
+        }
+        return clientsByLoop;
+    }
+
+    private static void waitForConnections(Server server, int count) throws InterruptedException {
+        for (int i = 0; i < 500 && server.getClientConnections().size() != count; i++)
+            Thread.sleep(10);
+        checkEquals(count, server.getClientConnections().size(), "The connections of the server");
+    }
+}
@@ -0,0 +1,465 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.commons.HeapBufferAllocator;
+import com.bmdelacruz.socketify.commons.OutboundFrame;
+import com.bmdelacruz.socketify.commons.OutboundQueue;
+import com.bmdelacruz.socketify.commons.OutboundSpool;
+import com.bmdelacruz.socketify.commons.SharedBuffer;
+import com.bmdelacruz.socketify.commons.WriteFuture;
+import com.bmdelacruz.socketify.server.ClientConnection;
+import com.bmdelacruz.socketify.server.OutboundQueueFullException;
+import com.bmdelacruz.socketify.server.Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.bmdelacruz.socketify.Checks.check;
+import static com.bmdelacruz.socketify.Checks.checkEquals;
+
+/**
+ * Checks what the outbound queue drops and keeps: on its own, while its owner writes
+ * from another thread, and through each backpressure policy of a server whose client
+ * stops reading.
+ */
+class OutboundQueueTest {
+    /**
+     * Each policy gets its own server and port, since a stopped server lets go of its
+     * port in the background.
+     */
+    private static final int FIRST_PORT = 10861;
+    private static final int MESSAGE_LENGTH = 1000;
+    private static final long QUEUE_LIMIT = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        File spoolDirectory = Files.createTempDirectory("socketify-queue").toFile();
+
+        checkPartialWrites();
+        checkDropOldest();
+        checkDropOldestKeepsSpool(spoolDirectory);
+        checkDropWhileWriting(spoolDirectory);
+        checkMoveTo(spoolDirectory);
+
+        checkFailPolicy();
+        checkDropOldestPolicy();
+        checkDisconnectPolicy();
+        checkBlockPolicy();
+
+        spoolDirectory.delete();
+        System.out.println("OutboundQueueTest passed.");
+    }
+
+    /**
+     * A channel which takes a little at a time must still get every frame whole and in
+     * order, across gathered writes of more frames and bytes than one write takes, and a
+     * frame's future must only complete once its last byte is written.
+     */
+    private static void checkPartialWrites() throws IOException {
+        OutboundQueue queue = new OutboundQueue();
+        RecordingChannel channel = new RecordingChannel(1000, true);
+        StringBuilder expected = new StringBuilder();
+        List<WriteFuture> futures = new ArrayList<>();
+        List<Integer> frameEnds = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            int length = i == 100 ? 3 * OutboundQueue.MAX_GATHERED_BYTES : 1 + i * 37 % 5000;
+            String content = repeat((char) ('a' + i % 26), length);
+            expected.append(content);
+            futures.add(add(queue, content));
+            frameEnds.add(expected.length());
+        }
+
+        ByteBuffer[] gatheredBuffers = new ByteBuffer[OutboundQueue.MAX_GATHERED_BUFFERS];
+        int writes = 0;
+        while (!queue.writeTo(channel, gatheredBuffers)) {
+            int written = channel.toString().length();
+            for (int i = 0; i < futures.size(); i++)
+                checkEquals(frameEnds.get(i) <= written, futures.get(i).isDone(),
+                        "Whether frame " + i + " is done after " + written + " bytes");
+            writes++;
+        }
+
+        check(writes > 0, "The channel took everything at once.");
+        check(expected.toString().equals(channel.toString()), "The written bytes differ from the frames.");
+        for (WriteFuture future : futures)
+            check(future.isDone() && future.isSuccess(), "A written frame did not succeed.");
+        checkEquals(0L, queue.getQueuedBytes(), "The queued bytes once written");
+    }
+
+    private static void checkDropOldest() {
+        OutboundQueue queue = new OutboundQueue();
+        WriteFuture a = add(queue, 'a', 100);
+        WriteFuture b = add(queue, 'b', 100);
+        WriteFuture c = add(queue, 'c', 100);
+
+        queue.dropOldest(100, 250);
+        check(a.isDone() && !a.isSuccess() && b.isDone() && !b.isSuccess(), "The oldest frames were not dropped.");
+        check(!c.isDone(), "More frames were dropped than needed.");
+        checkEquals(100L, queue.getQueuedBytes(), "The queued bytes after dropping");
+        checkEquals(1, queue.getQueuedFrames(), "The queued frames after dropping");
+    }
+
+    private static void checkDropOldestKeepsSpool(File spoolDirectory) throws IOException {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setSpool(new OutboundSpool(spoolDirectory), 150);
+        WriteFuture a = add(queue, 'a', 100);
+        WriteFuture b = add(queue, 'b', 100);
+        WriteFuture c = add(queue, 'c', 100);
+
+        queue.dropOldest(100, 150);
+        check(a.isDone() && !a.isSuccess(), "The frame in memory was not dropped.");
+        check(!b.isDone() && !c.isDone(), "A spooled frame was dropped.");
+        check(queue.hasPendingFrames(), "The spool marker was taken off the queue.");
+
+        RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+        check(queue.writeTo(channel, new ByteBuffer[OutboundQueue.MAX_GATHERED_BUFFERS]), "The queue was not written out.");
+        checkEquals(repeat('b', 100) + repeat('c', 100), channel.toString(), "The bytes written after dropping");
+        check(b.isSuccess() && c.isSuccess(), "The spooled frames were not completed.");
+        checkEquals(0L, queue.getQueuedBytes(), "The queued bytes once written");
+    }
+
+    /**
+     * A sender which drops to make room while the owner writes through a narrow channel.
+     * Every frame must end up either written, in order, or dropped.
+     */
+    private static void checkDropWhileWriting(File spoolDirectory) throws Exception {
+        final int frameCount = 20000;
+        final OutboundQueue queue = new OutboundQueue();
+        queue.setSpool(new OutboundSpool(spoolDirectory), 2048);
+        final RecordingChannel channel = new RecordingChannel(512);
+        final AtomicBoolean isSending = new AtomicBoolean(true);
+
+        Thread owner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer[] gatheredBuffers = new ByteBuffer[OutboundQueue.MAX_GATHERED_BUFFERS];
+                try {
+                    while (isSending.get() || queue.getQueuedFrames() > 0)
+                        queue.writeTo(channel, gatheredBuffers);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        // The owner starts late so that there is something to drop while it catches up.
+        List<WriteFuture> futures = new ArrayList<>();
+        for (int i = 0; i < frameCount; i++) {
+            if (i == frameCount / 4)
+                owner.start();
+            queue.dropOldest(16, 4096);
+            futures.add(add(queue, String.format("%015d,", i)));
+        }
+        isSending.set(false);
+        owner.join(10000);
+        check(!owner.isAlive(), "The owner never wrote out the queue.");
+
+        int written = 0;
+        int dropped = 0;
+        for (WriteFuture future : futures) {
+            check(future.isDone(), "A frame was neither written nor dropped.");
+            if (future.isSuccess()) written++; else dropped++;
+        }
+        checkEquals(frameCount, written + dropped, "The written and dropped frames");
+        check(dropped > 0, "Nothing was dropped.");
+
+        String[] sequence = channel.toString().split(",");
+        checkEquals(written, sequence.length, "The frames which reached the channel");
+        for (int i = 1; i < sequence.length; i++)
+            check(Long.parseLong(sequence[i]) > Long.parseLong(sequence[i - 1]), "The frames were reordered.");
+        checkEquals(0L, queue.getQueuedBytes(), "The queued bytes once written");
+        System.out.println("Dropping while writing: " + written + " written, " + dropped + " dropped.");
+    }
+
+    private static void checkMoveTo(File spoolDirectory) throws IOException {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setSpool(new OutboundSpool(spoolDirectory), 150);
+        for (int i = 0; i < 5; i++)
+            add(queue, 'm', 100);
+
+        OutboundSpool target = new OutboundSpool(spoolDirectory);
+        queue.moveTo(target, new IOException("Moved."));
+        checkEquals(5, target.getUnreadFrames(), "The frames moved to the spool");
+        checkEquals(0L, queue.getQueuedBytes(), "The queued bytes after moving");
+        checkEquals(0, queue.getQueuedFrames(), "The queued frames after moving");
+        target.discard(new IOException("Done."));
+    }
+
+    private static void checkFailPolicy() throws Exception {
+        Server server = startServer(FIRST_PORT + 0, Server.BackpressurePolicy.FAIL, null);
+        SocketChannel client = connect(server, FIRST_PORT + 0);
+        ClientConnection clientConnection = server.getClientConnections().iterator().next();
+
+        int sent = 0;
+        try {
+            while (sent < 100000) {
+                server.sendTo(clientConnection, message(sent));
+                sent++;
+            }
+            throw new AssertionError("The full queue never refused a message.");
+        } catch (OutboundQueueFullException expected) {
+        }
+        check(clientConnection.getQueuedBytes() <= QUEUE_LIMIT + MESSAGE_LENGTH + 1, "The queue went past its limit.");
+
+        // The messages which were taken are all delivered, in order.
+        List<Integer> received = readMessages(client, sent);
+        checkEquals(sent, received.size(), "The messages received after the refusal");
+        for (int i = 0; i < sent; i++)
+            checkEquals(i, received.get(i), "The message at " + i);
+
+        client.close();
+        server.stop();
+    }
+
+    private static void checkDropOldestPolicy() throws Exception {
+        Server server = startServer(FIRST_PORT + 1, Server.BackpressurePolicy.DROP_OLDEST, null);
+        SocketChannel client = connect(server, FIRST_PORT + 1);
+        ClientConnection clientConnection = server.getClientConnections().iterator().next();
+
+        int sent = 20000;
+        for (int i = 0; i < sent; i++) {
+            server.sendTo(clientConnection, message(i));
+            check(clientConnection.getQueuedBytes() <= QUEUE_LIMIT + MESSAGE_LENGTH + 1, "The queue went past its limit.");
+        }
+
+        // Only the oldest are dropped, so the newest message always arrives.
+        List<Integer> received = readMessagesUntil(client, sent - 1);
+        check(received.size() < sent, "Nothing was dropped.");
+        for (int i = 1; i < received.size(); i++)
+            check(received.get(i) > received.get(i - 1), "The messages were reordered.");
+        System.out.println("DROP_OLDEST: " + received.size() + " of " + sent + " messages arrived.");
+
+        client.close();
+        server.stop();
+    }
+
+    private static void checkDisconnectPolicy() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        Server server = startServer(FIRST_PORT + 2, Server.BackpressurePolicy.DISCONNECT, failures);
+        SocketChannel client = connect(server, FIRST_PORT + 2);
+        ClientConnection clientConnection = server.getClientConnections().iterator().next();
+
+        for (int i = 0; i < 20000 && !server.getClientConnections().isEmpty(); i++)
+            server.sendTo(clientConnection, message(i));
+        for (int i = 0; i < 100 && failures.get() == 0; i++)
+            Thread.sleep(10);
+        checkEquals(1, failures.get(), "The failures of the slow client");
+        check(server.getClientConnections().isEmpty(), "The slow client is still connected.");
+
+        client.close();
+        server.stop();
+    }
+
+    private static void checkBlockPolicy() throws Exception {
+        final Server server = startServer(FIRST_PORT + 3, Server.BackpressurePolicy.BLOCK, null);
+        SocketChannel client = connect(server, FIRST_PORT + 3);
+        final ClientConnection clientConnection = server.getClientConnections().iterator().next();
+
+        final int sent = 20000;
+        final AtomicInteger taken = new AtomicInteger();
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < sent; i++) {
+                        server.sendTo(clientConnection, message(i));
+                        taken.incrementAndGet();
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        sender.start();
+        Thread.sleep(500);
+        check(sender.isAlive() && taken.get() < sent, "The sender was not held back.");
+        check(clientConnection.getQueuedBytes() <= QUEUE_LIMIT + MESSAGE_LENGTH + 1, "The queue went past its limit.");
+
+        List<Integer> received = readMessages(client, sent);
+        sender.join(5000);
+        checkEquals(sent, received.size(), "The messages received once the client read");
+        for (int i = 0; i < sent; i++)
+            checkEquals(i, received.get(i), "The message at " + i);
+
+        client.close();
+        server.stop();
+    }
+
+    private static Server startServer(int port, Server.BackpressurePolicy policy, final AtomicInteger failures)
+            throws IOException {
+        Server server = new Server(port);
+        server.setOutboundQueueLimit(QUEUE_LIMIT);
+        server.setBackpressurePolicy(policy);
+        server.setListener(new Server.Listener() {
+            @Override
+            public void onClientConnect(ClientConnection clientConnection) {
+                clientConnection.addListener(new ClientConnection.Listener() {
+                    @Override
+                    public void onDataReceived(ClientConnection clientConnection, byte[] data,
+                                               ClientConnection.Messenger messenger) {
+                    }
+
+                    @Override
+                    public void onDisconnected(ClientConnection clientConnection) {
+                    }
+
+                    @Override
+                    public void onFailure(ClientConnection clientConnection) {
+                        if (failures != null)
+                            failures.incrementAndGet();
+                    }
+                });
+            }
+
+            @Override
+            public void onClientMessageFailed(ClientConnection clientConnection, Exception e) {
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Connects a client which reads nothing until told to, with small socket buffers so
+     * that the server's queue fills up soon.
+     */
+    private static SocketChannel connect(Server server, int port) throws Exception {
+        SocketChannel client = SocketChannel.open();
+        client.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+        client.connect(new InetSocketAddress("localhost", port));
+        while (server.getClientConnections().isEmpty())
+            Thread.sleep(10);
+        ClientConnection clientConnection = server.getClientConnections().iterator().next();
+        clientConnection.getSocketChannel().setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+        return client;
+    }
+
+    private static byte[] message(int sequence) {
+        byte[] message = repeat('x', MESSAGE_LENGTH).getBytes();
+        byte[] digits = String.format("%010d", sequence).getBytes();
+        System.arraycopy(digits, 0, message, 0, digits.length);
+        return message;
+    }
+
+    private static List<Integer> readMessages(SocketChannel client, int count) throws IOException {
+        return readMessages(client, count, -1);
+    }
+
+    private static List<Integer> readMessagesUntil(SocketChannel client, int lastSequence) throws IOException {
+        return readMessages(client, Integer.MAX_VALUE, lastSequence);
+    }
+
+    private static List<Integer> readMessages(SocketChannel client, int count, int lastSequence) throws IOException {
+        List<Integer> sequences = new ArrayList<>();
+        ByteArrayOutputStream current = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (sequences.size() < count) {
+            buffer.clear();
+            if (client.read(buffer) == -1)
+                break;
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b != 0) {
+                    current.write(b);
+                    continue;
+                }
+                int sequence = Integer.parseInt(new String(current.toByteArray(), 0, 10));
+                checkEquals(MESSAGE_LENGTH, current.size(), "The length of message " + sequence);
+                sequences.add(sequence);
+                current.reset();
+                if (sequence == lastSequence)
+                    return sequences;
+            }
+        }
+        return sequences;
+    }
+
+    private static WriteFuture add(OutboundQueue queue, char c, int length) {
+        return add(queue, repeat(c, length));
+    }
+
+    private static WriteFuture add(OutboundQueue queue, String content) {
+        WriteFuture future = new WriteFuture();
+        queue.add(new OutboundFrame(new SharedBuffer(ByteBuffer.wrap(content.getBytes()), HeapBufferAllocator.INSTANCE),
+                future));
+        return future;
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++)
+            builder.append(c);
+        return builder.toString();
+    }
+
+    /**
+     * Keeps whatever is written to it, taking at most so many bytes per write, and if told
+     * to, nothing at all on every other write, like a socket whose buffer is full.
+     */
+    private static class RecordingChannel implements GatheringByteChannel {
+        private final int maxBytesPerWrite;
+        private final boolean isStalling;
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private boolean isStalled;
+
+        RecordingChannel(int maxBytesPerWrite) {
+            this(maxBytesPerWrite, false);
+        }
+
+        RecordingChannel(int maxBytesPerWrite, boolean isStalling) {
+            this.maxBytesPerWrite = maxBytesPerWrite;
+            this.isStalling = isStalling;
+        }
+
+        @Override
+        public synchronized long write(ByteBuffer[] sources, int offset, int length) {
+            if (isStalling) {
+                isStalled = !isStalled;
+                if (!isStalled)
+                    return 0;
+            }
+
+            long count = 0;
+            for (int i = offset; i < offset + length && count < maxBytesPerWrite; i++) {
+                while (sources[i].hasRemaining() && count < maxBytesPerWrite) {
+                    written.write(sources[i].get());
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            return (int) write(new ByteBuffer[] { source }, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public synchronized String toString() {
+            return new String(written.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.data.DataProcessor;
+import com.bmdelacruz.socketify.data.DataProcessorChain;
+import com.bmdelacruz.socketify.data.DataProcessorFactory;
+import com.bmdelacruz.socketify.data.DataProcessorPipeline;
+import com.bmdelacruz.socketify.data.DeflateDataProcessor;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Runs messages of several connections through a write chain which compresses, encrypts
+ * and checksums them, once on the sending thread and then through a pipeline per
+ * connection on pools of growing size, and reports the messages processed per second.
+ * Usage: PipelineBenchmark [connections] [messages per connection] [message size]
+ */
+class PipelineBenchmark {
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int messageSize = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+
+        byte[] message = new byte[messageSize];
+        Random random = new Random(42);
+        for (int i = 0; i < message.length; i++)
+            message[i] = (byte) ('a' + random.nextInt(8));
+
+        DataProcessorChain template = new DataProcessorChain();
+        template.addDataProcessorFactory(DeflateDataProcessor.factory(6, null));
+        template.addDataProcessorFactory(new DataProcessorFactory() {
+            @Override
+            public DataProcessor newDataProcessor() {
+                return new Encryption();
+            }
+        });
+        template.addDataProcessor(new Checksum());
+
+        for (int round = 0; round < 2; round++) {
+            System.out.printf("%d connections, %d messages each, %d bytes per message%n",
+                    connections, messages, messageSize);
+            report("sending thread", runOnSendingThread(template, connections, messages, message), connections, messages);
+            for (int workers = 1; workers <= Math.max(8, Runtime.getRuntime().availableProcessors()); workers *= 2)
+                report(workers + " workers", runPipelined(template, connections, messages, message, workers),
+                        connections, messages);
+        }
+    }
+
+    private static void report(String name, long nanos, int connections, int messages) {
+        System.out.printf("  %-16s %10.0f messages/s%n", name, connections * (double) messages * 1e9 / nanos);
+    }
+
+    private static long runOnSendingThread(DataProcessorChain template, int connections, int messages,
+                                           byte[] message) {
+        DataProcessorChain[] chains = new DataProcessorChain[connections];
+        for (int i = 0; i < connections; i++)
+            chains[i] = template.newConnectionChain();
+
+        long start = System.nanoTime();
+        long bytes = 0;
+        for (int j = 0; j < messages; j++)
+            for (DataProcessorChain chain : chains)
+                bytes += chain.process(message).length;
+        long nanos = System.nanoTime() - start;
+
+        for (DataProcessorChain chain : chains)
+            chain.release();
+        if (bytes == 0)
+            throw new IllegalStateException("Nothing was processed.");
+        return nanos;
+    }
+
+    private static long runPipelined(DataProcessorChain template, int connections, int messages,
+                                     byte[] message, int workers) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        final CountDownLatch done = new CountDownLatch(connections * messages);
+        final AtomicLong bytes = new AtomicLong();
+
+        DataProcessorPipeline[] pipelines = new DataProcessorPipeline[connections];
+        for (int i = 0; i < connections; i++) {
+            pipelines[i] = new DataProcessorPipeline(template.newConnectionChain(), executor, 256,
+                    new DataProcessorPipeline.Output() {
+                        @Override
+                        public void onProcessed(byte[] data) {
+                            bytes.addAndGet(data.length);
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void onFailure(RuntimeException exception) {
+                            exception.printStackTrace();
+                            done.countDown();
+                        }
+                    });
+        }
+
+        long start = System.nanoTime();
+        for (int j = 0; j < messages; j++)
+            for (DataProcessorPipeline pipeline : pipelines)
+                pipeline.submit(message, true);
+        done.await();
+        long nanos = System.nanoTime() - start;
+
+        for (DataProcessorPipeline pipeline : pipelines)
+            pipeline.close();
+        executor.shutdown();
+        if (bytes.get() == 0)
+            throw new IllegalStateException("Nothing was processed.");
+        return nanos;
+    }
+
+    /**
+     * Encrypts the stream of a connection with AES in counter mode, which keeps its
+     * position across messages.
+     */
+    private static class Encryption extends DataProcessor {
+        private final Cipher cipher;
+
+        public Encryption() {
+            try {
+                cipher = Cipher.getInstance("AES/CTR/NoPadding");
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[16], "AES"),
+                        new IvParameterSpec(new byte[16]));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public byte[] process(byte[] data) {
+            return cipher.update(data);
+        }
+    }
+
+    /**
+     * Appends the CRC32 of the message.
+     */
+    private static class Checksum extends DataProcessor {
+        @Override
+        public byte[] process(byte[] data) {
+            CRC32 crc32 = new CRC32();
+            crc32.update(data);
+            long value = crc32.getValue();
+
+            byte[] checked = Arrays.copyOf(data, data.length + 4);
+            for (int i = 0; i < 4; i++)
+                checked[data.length + i] = (byte) (value >>> (24 - 8 * i));
+            return checked;
+        }
+    }
+}
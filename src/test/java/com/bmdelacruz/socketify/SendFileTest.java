@@ -0,0 +1,115 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.commons.FixedLengthPrefixFrameCodec;
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.commons.WriteFuture;
+import com.bmdelacruz.socketify.server.ClientConnection;
+import com.bmdelacruz.socketify.server.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.bmdelacruz.socketify.Checks.check;
+import static com.bmdelacruz.socketify.Checks.checkEquals;
+
+/**
+ * Checks that file regions sent to a client which reads slowly arrive whole and in order
+ * with the messages sent between them.
+ */
+class SendFileTest {
+    private static final int PORT = 10871;
+    private static final int FILE_LENGTH = 2 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        byte[] fileContent = new byte[FILE_LENGTH];
+        for (int i = 0; i < fileContent.length; i++)
+            fileContent[i] = (byte) (i * 13);
+        File file = File.createTempFile("socketify-sendfile", ".bin");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.write(fileContent);
+        FileChannel fileChannel = randomAccessFile.getChannel();
+
+        FixedLengthPrefixFrameCodec frameCodec = new FixedLengthPrefixFrameCodec();
+        Server server = startServer(frameCodec);
+        SocketChannel client = SocketChannel.open();
+        client.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+        client.connect(new InetSocketAddress("localhost", PORT));
+        while (server.getClientConnections().isEmpty())
+            Thread.sleep(10);
+        ClientConnection clientConnection = server.getClientConnections().iterator().next();
+        clientConnection.getSocketChannel().setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+
+        // Regions of many sizes, each between two messages, all queued before the client
+        // reads anything.
+        List<byte[]> expected = new ArrayList<>();
+        List<WriteFuture> futures = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            byte[] message = ("message " + i).getBytes();
+            server.sendTo(clientConnection, message);
+            expected.add(message);
+
+            int position = i * 37 * 1024 % (FILE_LENGTH / 2);
+            int count = i == 20 ? FILE_LENGTH / 2 : 1 + i * 9973 % 100000;
+            futures.add(server.sendFile(clientConnection, fileChannel, position, count));
+            expected.add(Arrays.copyOfRange(fileContent, position, position + count));
+        }
+        byte[] lastMessage = "last".getBytes();
+        server.sendTo(clientConnection, lastMessage);
+        expected.add(lastMessage);
+
+        List<byte[]> received = readMessages(client, frameCodec, expected.size());
+        checkEquals(expected.size(), received.size(), "The messages received");
+        for (int i = 0; i < expected.size(); i++)
+            check(Arrays.equals(expected.get(i), received.get(i)), "Message " + i + " differs.");
+        for (int i = 0; i < 500 && !futures.get(futures.size() - 1).isDone(); i++)
+            Thread.sleep(10);
+        for (WriteFuture future : futures)
+            check(future.isDone() && future.isSuccess(), "A region which arrived did not succeed.");
+
+        client.close();
+        server.stop();
+        fileChannel.close();
+        file.delete();
+        System.out.println("SendFileTest passed.");
+    }
+
+    private static Server startServer(FrameCodec frameCodec) throws IOException {
+        Server server = new Server(PORT);
+        server.setFrameCodec(frameCodec);
+        server.setListener(new Server.Listener() {
+            @Override
+            public void onClientConnect(ClientConnection clientConnection) {
+            }
+
+            @Override
+            public void onClientMessageFailed(ClientConnection clientConnection, Exception e) {
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static List<byte[]> readMessages(SocketChannel client, FrameCodec frameCodec, int count)
+            throws IOException {
+        FrameCodec.Decoder decoder = frameCodec.newDecoder();
+        List<byte[]> messages = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        while (messages.size() < count) {
+            buffer.clear();
+            if (client.read(buffer) == -1)
+                break;
+            buffer.flip();
+            decoder.decode(buffer, messages);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,200 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.server.ClientConnection;
+import com.bmdelacruz.socketify.server.Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.bmdelacruz.socketify.Checks.check;
+import static com.bmdelacruz.socketify.Checks.checkEquals;
+
+/**
+ * Checks that the frames a session's connection could not deliver are sent to the
+ * connection which resumes the session, ahead of the newer ones, and that a stopped
+ * server leaves nothing in its spool directory.
+ */
+class SessionTest {
+    private static final int FIRST_PORT = 10865;
+    private static final int MESSAGE_LENGTH = 1000;
+    private static final int MESSAGE_COUNT = 2000;
+
+    public static void main(String[] args) throws Exception {
+        checkReplay();
+        checkStopDeletesSpool();
+        System.out.println("SessionTest passed.");
+    }
+
+    private static void checkReplay() throws Exception {
+        File spoolDirectory = Files.createTempDirectory("socketify-session").toFile();
+        Server server = startServer(FIRST_PORT + 0, spoolDirectory);
+
+        // The first client reads nothing and goes away with most of the messages queued.
+        SocketChannel firstClient = connect(server, FIRST_PORT + 0, "a");
+        ClientConnection firstConnection = server.getClientConnections().iterator().next();
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+            server.sendTo(firstConnection, message(i));
+        firstClient.setOption(StandardSocketOptions.SO_LINGER, 0);
+        firstClient.close();
+        waitForNoConnections(server);
+
+        SocketChannel secondClient = connect(server, FIRST_PORT + 0, "a");
+        ClientConnection secondConnection = server.getClientConnections().iterator().next();
+        for (int i = MESSAGE_COUNT; i < 2 * MESSAGE_COUNT; i++)
+            server.sendTo(secondConnection, message(i));
+
+        // What the first client did not get arrives first and in order, then the rest.
+        List<Integer> received = readMessagesUntil(secondClient, 2 * MESSAGE_COUNT - 1);
+        check(received.get(0) < MESSAGE_COUNT, "The kept messages were not sent.");
+        for (int i = 1; i < received.size(); i++)
+            checkEquals(received.get(i - 1) + 1, received.get(i), "The message after " + received.get(i - 1));
+        System.out.println("Replay: " + (MESSAGE_COUNT - received.get(0)) + " of " + MESSAGE_COUNT
+                + " messages were kept for the session.");
+
+        secondClient.close();
+        server.stop();
+        waitForEmpty(spoolDirectory);
+        spoolDirectory.delete();
+    }
+
+    private static void checkStopDeletesSpool() throws Exception {
+        File spoolDirectory = Files.createTempDirectory("socketify-session").toFile();
+        Server server = startServer(FIRST_PORT + 1, spoolDirectory);
+
+        // One session whose client went away, and one whose client is still connected
+        // when the server stops.
+        SocketChannel goneClient = connect(server, FIRST_PORT + 1, "gone");
+        ClientConnection goneConnection = server.getClientConnections().iterator().next();
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+            server.sendTo(goneConnection, message(i));
+        goneClient.setOption(StandardSocketOptions.SO_LINGER, 0);
+        goneClient.close();
+        waitForNoConnections(server);
+
+        SocketChannel liveClient = connect(server, FIRST_PORT + 1, "live");
+        ClientConnection liveConnection = server.getClientConnections().iterator().next();
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+            server.sendTo(liveConnection, message(i));
+        check(spoolDirectory.list().length > 0, "Nothing was spooled.");
+
+        server.stop();
+        waitForEmpty(spoolDirectory);
+        liveClient.close();
+        spoolDirectory.delete();
+    }
+
+    /**
+     * A server which spools almost everything and resumes the session a client names in
+     * its first message.
+     */
+    private static Server startServer(int port, File spoolDirectory) throws IOException {
+        final Server server = new Server(port);
+        server.setSpoolDirectory(spoolDirectory);
+        server.setSpoolWatermark(16 * 1024);
+        server.setListener(new Server.Listener() {
+            @Override
+            public void onClientConnect(ClientConnection clientConnection) {
+                clientConnection.addListener(new ClientConnection.Listener() {
+                    @Override
+                    public void onDataReceived(ClientConnection clientConnection, byte[] data,
+                                               ClientConnection.Messenger messenger) {
+                        if (clientConnection.getSessionId() == null)
+                            server.resumeSession(clientConnection, new String(data));
+                    }
+
+                    @Override
+                    public void onDisconnected(ClientConnection clientConnection) {
+                    }
+
+                    @Override
+                    public void onFailure(ClientConnection clientConnection) {
+                    }
+                });
+            }
+
+            @Override
+            public void onClientMessageFailed(ClientConnection clientConnection, Exception e) {
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Connects a client with small socket buffers which names its session, and waits
+     * until the server has tied the connection to it.
+     */
+    private static SocketChannel connect(Server server, int port, String sessionId) throws Exception {
+        SocketChannel client = SocketChannel.open();
+        client.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+        client.connect(new InetSocketAddress("localhost", port));
+        client.write(ByteBuffer.wrap((sessionId + "\0").getBytes()));
+
+        while (server.getClientConnections().isEmpty()
+                || server.getClientConnections().iterator().next().getSessionId() == null)
+            Thread.sleep(10);
+        ClientConnection clientConnection = server.getClientConnections().iterator().next();
+        clientConnection.getSocketChannel().setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+        return client;
+    }
+
+    private static void waitForNoConnections(Server server) throws InterruptedException {
+        for (int i = 0; i < 500 && !server.getClientConnections().isEmpty(); i++)
+            Thread.sleep(10);
+        check(server.getClientConnections().isEmpty(), "The server did not notice the client leaving.");
+        // The connection is forgotten before its frames are kept for the session.
+        Thread.sleep(100);
+    }
+
+    /**
+     * The selector loops end their connections after the server is told to stop, so the
+     * directory is given a while to empty.
+     */
+    private static void waitForEmpty(File spoolDirectory) throws InterruptedException {
+        for (int i = 0; i < 500 && spoolDirectory.list().length > 0; i++)
+            Thread.sleep(10);
+        checkEquals(0, spoolDirectory.list().length, "The files left in the spool directory");
+    }
+
+    private static byte[] message(int sequence) {
+        byte[] message = new byte[MESSAGE_LENGTH];
+        for (int i = 0; i < MESSAGE_LENGTH; i++)
+            message[i] = 'x';
+        byte[] digits = String.format("%010d", sequence).getBytes();
+        System.arraycopy(digits, 0, message, 0, digits.length);
+        return message;
+    }
+
+    private static List<Integer> readMessagesUntil(SocketChannel client, int lastSequence) throws IOException {
+        List<Integer> sequences = new ArrayList<>();
+        ByteArrayOutputStream current = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (true) {
+            buffer.clear();
+            if (client.read(buffer) == -1)
+                return sequences;
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b != 0) {
+                    current.write(b);
+                    continue;
+                }
+                int sequence = Integer.parseInt(new String(current.toByteArray(), 0, 10));
+                checkEquals(MESSAGE_LENGTH, current.size(), "The length of message " + sequence);
+                sequences.add(sequence);
+                current.reset();
+                if (sequence == lastSequence)
+                    return sequences;
+            }
+        }
+    }
+}
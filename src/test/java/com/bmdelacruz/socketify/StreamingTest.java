@@ -0,0 +1,146 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.commons.FixedLengthPrefixFrameCodec;
+import com.bmdelacruz.socketify.commons.FrameCodec;
+import com.bmdelacruz.socketify.server.ClientConnection;
+import com.bmdelacruz.socketify.server.Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.bmdelacruz.socketify.Checks.check;
+import static com.bmdelacruz.socketify.Checks.checkEquals;
+
+/**
+ * Checks that a server hands a message larger than the limit on whole messages to the
+ * stream listener in chunks as it arrives, and drops a client which announces a message
+ * over the limit on streamed messages.
+ */
+class StreamingTest {
+    private static final int PORT = 10870;
+    private static final long MAX_STREAMED_FRAME_SIZE = 32 * 1024 * 1024;
+
+    private static final AtomicLong receivedBytes = new AtomicLong();
+    private static final AtomicLong misplacedBytes = new AtomicLong();
+    private static final AtomicInteger startLength = new AtomicInteger();
+    private static final AtomicInteger chunks = new AtomicInteger();
+    private static final AtomicInteger endedMessages = new AtomicInteger();
+    private static final AtomicInteger failures = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        FixedLengthPrefixFrameCodec frameCodec = new FixedLengthPrefixFrameCodec();
+        frameCodec.setMaxStreamedFrameSize(MAX_STREAMED_FRAME_SIZE);
+        Server server = startServer(frameCodec);
+
+        checkLargeMessage(frameCodec);
+        checkOversizeMessage(server);
+
+        server.stop();
+        System.out.println("StreamingTest passed.");
+    }
+
+    private static void checkLargeMessage(FixedLengthPrefixFrameCodec frameCodec) throws Exception {
+        // Past the limit on whole messages, which does not apply to streamed ones.
+        byte[] message = new byte[FrameCodec.DEFAULT_MAX_FRAME_SIZE + 4 * 1024 * 1024];
+        for (int i = 0; i < message.length; i++)
+            message[i] = (byte) (i * 31);
+        ByteBuffer frame = ByteBuffer.allocate(frameCodec.getEncodedLength(message.length));
+        frameCodec.encode(message, frame);
+        frame.flip();
+
+        SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+        while (frame.hasRemaining()) {
+            ByteBuffer piece = frame.duplicate();
+            piece.limit(Math.min(frame.limit(), frame.position() + 100 * 1024));
+            frame.position(frame.position() + client.write(piece));
+        }
+
+        for (int i = 0; i < 1000 && endedMessages.get() == 0; i++)
+            Thread.sleep(10);
+        checkEquals(1, endedMessages.get(), "The messages which ended");
+        checkEquals(message.length, startLength.get(), "The length given at the start");
+        check(chunks.get() > 1, "The message arrived in one piece.");
+        checkEquals((long) message.length, receivedBytes.get(), "The bytes received in chunks");
+        checkEquals(0L, misplacedBytes.get(), "The bytes which differ from the message");
+        System.out.println("Streaming: " + message.length + " bytes arrived in " + chunks.get() + " chunks.");
+        client.close();
+    }
+
+    private static void checkOversizeMessage(Server server) throws Exception {
+        SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+        ByteBuffer prefix = ByteBuffer.allocate(4).putInt(0, (int) MAX_STREAMED_FRAME_SIZE + 1);
+        client.write(prefix);
+
+        for (int i = 0; i < 500 && failures.get() == 0; i++)
+            Thread.sleep(10);
+        checkEquals(1, failures.get(), "The failures of the client over the limit");
+        int read;
+        try {
+            read = client.read(ByteBuffer.allocate(1));
+        } catch (IOException e) {
+            read = -1;
+        }
+        checkEquals(-1, read, "What the dropped client reads");
+        for (int i = 0; i < 500 && !server.getClientConnections().isEmpty(); i++)
+            Thread.sleep(10);
+        check(server.getClientConnections().isEmpty(), "The client over the limit is still connected.");
+        client.close();
+    }
+
+    private static Server startServer(FixedLengthPrefixFrameCodec frameCodec) throws IOException {
+        Server server = new Server(PORT);
+        server.setFrameCodec(frameCodec);
+        server.setListener(new Server.Listener() {
+            @Override
+            public void onClientConnect(ClientConnection clientConnection) {
+                clientConnection.setStreamListener(new ClientConnection.StreamListener() {
+                    @Override
+                    public void onMessageStart(ClientConnection clientConnection, int length) {
+                        startLength.set(length);
+                    }
+
+                    @Override
+                    public void onChunk(ClientConnection clientConnection, ByteBuffer chunk) {
+                        // Checked as it arrives, since the message is too large to keep.
+                        chunks.incrementAndGet();
+                        long position = receivedBytes.get();
+                        while (chunk.hasRemaining())
+                            if (chunk.get() != (byte) (position++ * 31))
+                                misplacedBytes.incrementAndGet();
+                        receivedBytes.set(position);
+                    }
+
+                    @Override
+                    public void onMessageEnd(ClientConnection clientConnection, ClientConnection.Messenger messenger) {
+                        endedMessages.incrementAndGet();
+                    }
+                });
+                clientConnection.addListener(new ClientConnection.Listener() {
+                    @Override
+                    public void onDataReceived(ClientConnection clientConnection, byte[] data,
+                                               ClientConnection.Messenger messenger) {
+                    }
+
+                    @Override
+                    public void onDisconnected(ClientConnection clientConnection) {
+                    }
+
+                    @Override
+                    public void onFailure(ClientConnection clientConnection) {
+                        failures.incrementAndGet();
+                    }
+                });
+            }
+
+            @Override
+            public void onClientMessageFailed(ClientConnection clientConnection, Exception e) {
+            }
+        });
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,57 @@
+package com.bmdelacruz.socketify;
+
+import com.bmdelacruz.socketify.commons.TimingWheel;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.bmdelacruz.socketify.Checks.check;
+import static com.bmdelacruz.socketify.Checks.checkEquals;
+
+/**
+ * Checks that the tasks of a timing wheel never run before their delay has passed and run
+ * at most two ticks after it, whatever point of a tick they are scheduled at, including
+ * tasks which wait several turns of the wheel. The wheel is advanced through made-up
+ * times in steps which do not line up with its ticks.
+ */
+class TimingWheelTest {
+    private static final long TICK_MILLIS = 10;
+    private static final int BUCKET_COUNT = 8;
+    private static final long STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(3);
+
+    private static int ranTasks;
+
+    public static void main(String[] args) {
+        final TimingWheel timingWheel = new TimingWheel(TICK_MILLIS, BUCKET_COUNT);
+        final long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+        Random random = new Random(42);
+
+        long now = System.nanoTime();
+        int scheduledTasks = 0;
+        for (int step = 0; step < 2000; step++) {
+            now += STEP_NANOS;
+            timingWheel.advance(now);
+
+            if (step < 1000) {
+                final long scheduledAt = timingWheel.getCurrentTime();
+                final long delayNanos = random.nextInt(40) == 0 ? 0
+                        : (long) (random.nextDouble() * 3 * BUCKET_COUNT * tickNanos);
+                timingWheel.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        long elapsed = timingWheel.getCurrentTime() - scheduledAt;
+                        check(elapsed >= delayNanos, "A task with a delay of " + delayNanos
+                                + " ns ran after " + elapsed + " ns.");
+                        check(elapsed <= delayNanos + 2 * tickNanos + STEP_NANOS, "A task with a delay of "
+                                + delayNanos + " ns ran after " + elapsed + " ns.");
+                        ranTasks++;
+                    }
+                }, delayNanos);
+                scheduledTasks++;
+            }
+        }
+
+        checkEquals(scheduledTasks, ranTasks, "The tasks which ran");
+        System.out.println("TimingWheelTest passed.");
+    }
+}